@@ -1,10 +1,15 @@
 package org.pentaho.di.plugins.dl4j;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
@@ -14,9 +19,7 @@ import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
 
-import weka.core.BatchPredictor;
 import weka.core.Instances;
-import weka.core.SerializedObject;
 
 /**
  * Applies a pre-built Weka model (forecaster) to incoming rows and
@@ -41,6 +44,34 @@ public class RNNForecasting extends BaseStep implements StepInterface {
     /** size of the batches of rows to be scored if the model is a batch scorer */
     private List<Object[]> m_batch;
 
+    /** the cached model that our copy was taken from (if loaded from file) */
+    private volatile RNNForecastingModel m_sharedModel;
+
+    /** loads (and warms up) the model in the background, if preloading */
+    private FutureTask<RNNForecastingModel> m_preload;
+    private Thread m_preloader;
+
+    /**
+     * set once the step is disposed, so that a model a cancelled preload
+     * still manages to load is released rather than kept (guarded by this)
+     */
+    private boolean m_disposed;
+
+    /** how long dispose waits for a cancelled preload to stop (milliseconds) */
+    private static final long PRELOAD_STOP_WAIT = 5000;
+
+    /** picks up new versions of the model file, if watching */
+    private RNNForecastingModelWatcher m_watcher;
+
+    /** in streaming mode, the number of rows between forecasts (0 for none) */
+    private int m_forecastEvery;
+
+    /** in streaming mode, the time stamp boundary to forecast at (or null) */
+    private String m_forecastBoundary;
+
+    /** index of the incoming time stamp field, if forecasting at boundaries */
+    private int m_timeStampIndex = -1;
+
     /**
      * Creates a new <code>RNNForecasting</code> instance.
      *
@@ -55,21 +86,162 @@ public class RNNForecasting extends BaseStep implements StepInterface {
         super(stepMeta, stepDataInterface, copyNr, transMeta, trans);
     }
 
-    private RNNForecastingModel setModel(String modelFileName)
+    private RNNForecastingModel loadModel(String modelFileName)
             throws KettleException {
 
-        // Load the model
-        RNNForecastingModel model = null;
+        // Load the model (or grab it from the cache) and take our own copy
+        // of it. The network parameters themselves are shared
         try {
-            model = RNNForecastingData.loadSerializedModel(modelFileName,
+            RNNForecastingModel shared = RNNForecastingModelCache.getInstance().acquire(modelFileName,
                     getLogChannel(), this);
-            m_data.setModel(model);
+            synchronized (this) {
+                if (m_disposed) {
+                    // a preload that finished after the step was stopped
+                    RNNForecastingModelCache.getInstance().release(shared);
+                    throw new InterruptedException();
+                }
+                m_sharedModel = shared;
+            }
+            return shared.copy();
+        } catch (Exception ex) {
+            throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Error.ProblemDeserializingModel"), ex); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Get this copy's model, either from file or from the model embedded in the
+     * step meta data
+     *
+     * @return the model for this copy of the step
+     * @throws KettleException if the model can't be loaded
+     */
+    private RNNForecastingModel prepareModel() throws KettleException {
+        if (m_meta.getModel() == null
+                || !Const.isEmpty(m_meta.getSerializedModelFileName())) {
+            // If we don't have a model, or a file name is set, then load from file
+
+            // Check that we have a file to try and load a classifier from
+            if (Const.isEmpty(m_meta.getSerializedModelFileName())) {
+                throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                        "RNNForecasting.Error.NoFilenameToLoadModelFrom")); //$NON-NLS-1$
+            }
+
+            return loadModel(m_meta.getSerializedModelFileName());
+        }
+
+        // copy the primary model over to the data class
+        try {
+            return m_meta.getModel().copy();
+        } catch (Exception ex) {
+            throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Error.ProblemDeserializingModel"), ex); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Start loading the model (and running any warm-up forecasts) on a
+     * background thread
+     */
+    private void startPreload() {
+        final int warmups = Const.toInt(environmentSubstitute(m_meta.getWarmupForecasts()), 0);
+
+        m_preload = new FutureTask<RNNForecastingModel>(new Callable<RNNForecastingModel>() {
+            public RNNForecastingModel call() throws Exception {
+                long start = System.currentTimeMillis();
+                RNNForecastingModel model = prepareModel();
+                m_data.setLoadTime(System.currentTimeMillis() - start);
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (warmups > 0) {
+                    start = System.currentTimeMillis();
+                    RNNForecastingData.warmUp(model, warmups);
+                    m_data.setWarmupTime(System.currentTimeMillis() - start);
+                }
+                return model;
+            }
+        });
+
+        m_preloader = new Thread(m_preload, "RNNForecasting preload - " //$NON-NLS-1$
+                + getStepname() + "." + getCopy()); //$NON-NLS-1$
+        m_preloader.setDaemon(true);
+        m_preloader.start();
+    }
+
+    /**
+     * Wait for the background preload to finish
+     *
+     * @return the preloaded model
+     * @throws KettleException if preloading failed
+     */
+    private RNNForecastingModel awaitPreload() throws KettleException {
+        try {
+            return m_preload.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof KettleException) {
+                throw (KettleException) ex.getCause();
+            }
+            throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Error.ProblemDeserializingModel"), ex.getCause()); //$NON-NLS-1$
+        } catch (InterruptedException ex) {
+            throw new KettleException(ex);
+        }
+    }
 
+    /**
+     * Start watching the model file for new versions
+     */
+    private void startWatching() {
+        long interval = Const.toInt(environmentSubstitute(m_meta.getWatchInterval()),
+                RNNForecastingMeta.DEFAULT_watch_interval) * 1000L;
+
+        m_watcher = new RNNForecastingModelWatcher(m_meta.getSerializedModelFileName(),
+                m_sharedModel, this, getLogChannel());
+        m_watcher.start(Math.max(interval, 1000L), "RNNForecasting model watcher - " //$NON-NLS-1$
+                + getStepname() + "." + getCopy()); //$NON-NLS-1$
+    }
+
+    /**
+     * Switch to a new version of the model if the watcher has loaded one. Only
+     * called between batches.
+     *
+     * @throws KettleException if the new version can't be copied
+     */
+    private void switchToNewModel() throws KettleException {
+        RNNForecastingModel shared = m_watcher.poll();
+        if (shared == null) {
+            return;
+        }
+
+        RNNForecastingModel next;
+        try {
+            next = shared.copy();
         } catch (Exception ex) {
+            RNNForecastingModelCache.getInstance().release(shared);
             throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
                     "RNNForecasting.Error.ProblemDeserializingModel"), ex); //$NON-NLS-1$
         }
-        return model;
+        if (!m_meta.getResetStateOnReload()) {
+            // carry the RNN state over - this assumes that the new version has
+            // the same network architecture
+            List<Object> state = m_data.getModel().getPreviousState();
+            if (state != null) {
+                next.setPreviousState(state);
+            }
+        }
+        m_data.setModel(next);
+        if (m_meta.getResetStateOnReload()) {
+            m_data.clearSeriesStates();
+        }
+
+        RNNForecastingModelCache.getInstance().release(m_sharedModel);
+        m_sharedModel = shared;
+
+        logBasic(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecasting.Message.SwitchedModel", shared.getFingerprint(), //$NON-NLS-1$
+                !m_meta.getResetStateOnReload()));
     }
 
     /**
@@ -91,14 +263,36 @@ public class RNNForecasting extends BaseStep implements StepInterface {
 
         // No more rows to be read -- make forecast here
         if (r == null) {
-            try {
-                outputBatchRows();
-            } catch (Exception ex) {
-                throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
-                        "RNNForecasting.Error.ProblemWhileGettingPredictionsForBatch"), ex); //$NON-NLS-1$
-            }
+            if (!first) {
+                if (m_meta.getStreamingMode()) {
+                    if (m_data.getRowsSinceForecast() > 0) {
+                        outputWindowForecast();
+                    }
+                } else if (m_meta.getBoundedPriming()) {
+                    outputBufferedForecast();
+                } else if (m_meta.getPassRowsThrough()) {
+                    outputHistoryForecast();
+                } else if (m_data.getSpool() != null) {
+                    outputSpooledRows();
+                } else {
+                    try {
+                        outputBatchRows();
+                    } catch (Exception ex) {
+                        throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                                "RNNForecasting.Error.ProblemWhileGettingPredictionsForBatch"), ex); //$NON-NLS-1$
+                    }
+                }
 
-            m_data.getModel().done();
+                logUnseenLabels();
+                logSeriesStates();
+                logNetworkBatches();
+                logDirectEngine();
+                logMemory();
+                if (m_data.getCheckpoint() != null) {
+                    saveCheckpoint();
+                }
+                m_data.getModel().done();
+            }
 
             setOutputDone();
             return false;
@@ -109,29 +303,17 @@ public class RNNForecasting extends BaseStep implements StepInterface {
             first = false;
 
             m_data.setOutputRowMeta(getInputRowMeta().clone());
-            if (m_meta.getModel() == null
-                    || !Const.isEmpty(m_meta.getSerializedModelFileName())) {
-                // If we don't have a model, or a file name is set, then load from file
-
-                // Check that we have a file to try and load a classifier from
-                if (Const.isEmpty(m_meta.getSerializedModelFileName())) {
-                    throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
-                            "RNNForecasting.Error.NoFilenameToLoadModelFrom")); //$NON-NLS-1$
-                }
 
-                setModel(m_meta.getSerializedModelFileName());
-
-            } else if (m_meta.getModel() != null) {
-                // copy the primary model over to the data class
-                try {
-                    SerializedObject so = new SerializedObject(m_meta.getModel());
-                    RNNForecastingModel defaultModel = (RNNForecastingModel) so.getObject();
-
-                    m_data.setModel(defaultModel);
-                } catch (Exception ex) {
-                    throw new KettleException(ex);
-                }
+            long start = System.currentTimeMillis();
+            if (m_preload != null) {
+                m_data.setModel(awaitPreload());
+            } else {
+                m_data.setModel(prepareModel());
+                m_data.setLoadTime(System.currentTimeMillis() - start);
             }
+            logBasic(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Message.ModelReady", m_data.getLoadTime(), //$NON-NLS-1$
+                    Math.max(m_data.getWarmupTime(), 0), System.currentTimeMillis() - start));
 
             // Check the input row meta data against the instances
             // header that the classifier was trained with
@@ -143,47 +325,109 @@ public class RNNForecasting extends BaseStep implements StepInterface {
                         "RNNForecasting.Error.IncomingDataFormatDoesNotMatchModel"), ex); //$NON-NLS-1$
             }
 
+            m_data.setEncodeStrings(m_meta.getEncodeStrings());
+
+            if (!Const.isEmpty(m_meta.getSeriesKeyField())) {
+                String keyField = environmentSubstitute(m_meta.getSeriesKeyField());
+                int keyIndex = getInputRowMeta().indexOfValue(keyField);
+                if (keyIndex < 0) {
+                    throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                            "RNNForecasting.Error.SeriesKeyFieldNotFound", keyField)); //$NON-NLS-1$
+                }
+                if (m_meta.getStreamingMode() || m_meta.getBoundedPriming()) {
+                    throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                            "RNNForecasting.Error.SeriesKeyInStreamingMode")); //$NON-NLS-1$
+                }
+                m_data.setSeriesKeyIndex(keyIndex);
+            }
+
+            if (m_meta.getWatchModelFile() && m_sharedModel != null) {
+                startWatching();
+            }
+
             // Determine the output format
             m_meta.getFields(m_data.getOutputRowMeta(), getStepname(), null, null, this);
 
-            if (!Const.isEmpty(m_meta.getStepsToForecast())) {
-                try {
-                    String stf = environmentSubstitute(m_meta.getStepsToForecast());
-                } catch (NumberFormatException ex) {
-                    String modelPreferred = environmentSubstitute(((BatchPredictor) m_meta
-                            .getModel().getModel()).getBatchSize());
-
-                    boolean sizeOk = false;
-                    if (!Const.isEmpty(modelPreferred)) {
-                        logBasic(BaseMessages.getString(RNNForecastingMeta.PKG,
-                                "RNNForecasting.Message.UnableToParseStepsToForecast", //$NON-NLS-1$
-                                modelPreferred));
-                        try {
-                            sizeOk = true;
-                        } catch (NumberFormatException e) {
-                        }
-                    }
+            // Work out the class, target and date indexes and the horizon once,
+            // rather than for every batch
+            int stepsToForecast = Const.toInt(environmentSubstitute(m_meta.getStepsToForecast()), -1);
+            if (stepsToForecast <= 0) {
+                logBasic(BaseMessages.getString(RNNForecastingMeta.PKG,
+                        "RNNForecasting.Message.UnableToParseStepsToForecastDefault", //$NON-NLS-1$
+                        RNNForecastingMeta.DEFAULT_steps_to_forecast));
+                stepsToForecast = RNNForecastingMeta.DEFAULT_steps_to_forecast;
+            }
+            RNNForecastingPlan plan = new RNNForecastingPlan(m_data.getModel(), getInputRowMeta(),
+                    m_data.getOutputRowMeta(), stepsToForecast);
+            if (plan.getClassIndex() < 0) {
+                throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                        "RNNForecasting.Error.TargetNotInModel")); //$NON-NLS-1$
+            }
+            m_data.setPlan(plan);
 
-                    if (!sizeOk) {
-                        logBasic(BaseMessages.getString(RNNForecastingMeta.PKG,
-                                "RNNForecasting.Message.UnableToParseStepsToForecastDefault", //$NON-NLS-1$
-                                RNNForecastingMeta.DEFAULT_steps_to_forecast));
-                    }
+            int seriesInMemory = Const.toInt(environmentSubstitute(m_meta.getSeriesInMemory()), -1);
+            if (seriesInMemory <= 0) {
+                seriesInMemory = RNNForecastingMeta.DEFAULT_series_in_memory;
+            }
+            m_data.setSeriesInMemory(seriesInMemory);
+            m_data.setSeriesBatchSize(Const.toInt(environmentSubstitute(m_meta.getSeriesBatchSize()), 1));
+            m_data.setUseDirectEngine(m_meta.getDirectEngine());
+            m_data.setReuseBuffers(m_meta.getReuseBuffers());
+
+            if (!Const.isEmpty(m_meta.getStateFile())) {
+                if (m_meta.getStreamingMode()) {
+                    throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                            "RNNForecasting.Error.StateFileInStreamingMode")); //$NON-NLS-1$
                 }
+                restoreCheckpoint(seriesInMemory);
             }
 
-            m_batch = new ArrayList<Object[]>();
+            if (m_meta.getStreamingMode()) {
+                initStreaming();
+            } else if (m_meta.getBoundedPriming()) {
+                m_data.initPrimingBuffer();
+            } else if (m_meta.getPassRowsThrough()) {
+                m_data.initHistory();
+            } else {
+                long spoolRows = Const.toLong(environmentSubstitute(m_meta.getSpoolRows()), 0);
+                long spoolMegabytes = Const.toLong(environmentSubstitute(m_meta.getSpoolMegabytes()), 0);
+                if (spoolRows > 0 || spoolMegabytes > 0) {
+                    m_data.initSpool(getInputRowMeta(), spoolRows, spoolMegabytes * 1024 * 1024);
+                } else {
+                    m_batch = new ArrayList<Object[]>();
+                }
+            }
 
         } // end (if first)
 
+        if (m_meta.getStreamingMode()) {
+            processStreamingRow(r);
+        } else if (m_meta.getBoundedPriming()) {
+            if (m_data.bufferRow(getInputRowMeta(), r)) {
+                // only the attribute values are kept, so the row itself can go
+                putRow(m_data.getOutputRowMeta(), m_data.getPlan().convertPassThrough(
+                        RowDataUtil.resizeArray(r, m_data.getOutputRowMeta().size())));
+            }
+        } else if (m_meta.getPassRowsThrough()) {
+            if (m_data.addToHistory(getInputRowMeta(), r)) {
+                // the row is kept as an instance, so the row itself can go
+                putRow(m_data.getOutputRowMeta(), m_data.getPlan().convertPassThrough(
+                        RowDataUtil.resizeArray(r, m_data.getOutputRowMeta().size())));
+            }
+        } else if (m_data.getSpool() != null) {
+            // overlay rows are kept with the history, as they get predictions
+            if (m_data.addToHistory(getInputRowMeta(), r)) {
+                m_data.getSpool().add(r);
+            }
+        } else {
+            try {
+                // add current row to batch
+                m_batch.add(r);
 
-        try {
-            // add current row to batch
-            m_batch.add(r);
-
-        } catch (Exception ex) {
-            throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
-                    "RNNForecasting.Error.UnableToAddRow", getLinesRead()), ex); //$NON-NLS-1$
+            } catch (Exception ex) {
+                throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                        "RNNForecasting.Error.UnableToAddRow", getLinesRead()), ex); //$NON-NLS-1$
+            }
         }
 
         if (log.isRowLevel()) {
@@ -196,7 +440,358 @@ public class RNNForecasting extends BaseStep implements StepInterface {
         return true;
     }
 
+    /**
+     * Log how many labels of each nominal attribute were not ones the model
+     * was trained on (and so were treated as missing)
+     */
+    private void logUnseenLabels() {
+        RNNForecastingDictionary[] dictionaries = m_data.getDictionaries();
+        if (dictionaries == null) {
+            return;
+        }
+        Instances header = m_data.getModel().getHeader();
+        for (int i = 0; i < dictionaries.length; i++) {
+            if (dictionaries[i] != null && dictionaries[i].getUnseen() > 0) {
+                logBasic(BaseMessages.getString(RNNForecastingMeta.PKG,
+                        "RNNForecasting.Message.UnseenLabels", //$NON-NLS-1$
+                        dictionaries[i].getUnseen(), header.attribute(i).name()));
+            }
+        }
+    }
+
+    /**
+     * Log how the RNN states of the series were kept: always if some had to go
+     * to disk, otherwise only when logging in detail
+     */
+    private void logSeriesStates() {
+        if (m_data.getSeriesKeyIndex() < 0) {
+            return;
+        }
+        RNNForecastingStateStore<List<Object>> states = m_data.getSeriesStates();
+        String message = BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecasting.Message.StateStore", states.size(), //$NON-NLS-1$
+                states.getHits(), states.getMisses(), states.getEvictions(),
+                states.getBytesWritten(), states.getCompactions(), states.getWriteFailures());
+        if (states.getWriteFailures() > 0) {
+            logError(message);
+        } else if (states.getEvictions() > 0) {
+            logBasic(message);
+        } else if (log.isDetailed()) {
+            logDetailed(message);
+        }
+    }
+
+    /**
+     * Log how many series were run through the network at once, if they were
+     * batched
+     */
+    private void logNetworkBatches() {
+        if (m_data.isBatchingUnavailable()) {
+            logBasic(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Message.BatchingUnavailable")); //$NON-NLS-1$
+        }
+        if (m_data.getBatches() > 0 && log.isDetailed()) {
+            logDetailed(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Message.NetworkBatches", m_data.getBatchedSeries(), //$NON-NLS-1$
+                    m_data.getBatches()));
+        }
+    }
+
+    /**
+     * Log whether the network was run directly, and why not if it couldn't be
+     */
+    private void logDirectEngine() {
+        if (!m_meta.getDirectEngine()) {
+            return;
+        }
+        if (m_data.getDirectEngineReason() != null) {
+            logBasic(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Message.DirectEngineUnavailable", //$NON-NLS-1$
+                    m_data.getDirectEngineReason()));
+        } else if (m_data.getDirectEngine() != null && log.isDetailed()) {
+            logDetailed(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Message.DirectEngine", //$NON-NLS-1$
+                    RNNForecastingDirectEngine.TOLERANCE));
+        }
+    }
+
+    /**
+     * Set up the policy that keeps the off-heap memory used by ND4J within the
+     * budget, if there is a budget or periodic garbage collection
+     */
+    private void startMemoryPolicy() {
+        long maxOffHeap = Const.toLong(environmentSubstitute(m_meta.getMaxOffHeap()), 0);
+        long gcInterval = Const.toLong(environmentSubstitute(m_meta.getGcInterval()), 0);
+        if (maxOffHeap > 0 || gcInterval > 0) {
+            m_data.setMemory(new RNNForecastingMemory(Math.max(maxOffHeap, 0) * 1024 * 1024, gcInterval));
+        }
+    }
+
+    /**
+     * Log the off-heap memory used by ND4J, and the garbage collections run
+     * to keep it within the budget
+     */
+    private void logMemory() {
+        RNNForecastingMemory memory = m_data.getMemory();
+        if (memory == null) {
+            // without a policy there's no peak tracked and no collections run
+            long bytes = RNNForecastingMemory.getOffHeapBytes();
+            if (log.isDetailed() && bytes >= 0) {
+                logDetailed(BaseMessages.getString(RNNForecastingMeta.PKG,
+                        "RNNForecasting.Message.OffHeapInUse", bytes)); //$NON-NLS-1$
+            }
+            return;
+        }
+
+        long bytes = RNNForecastingMemory.getOffHeapBytes();
+        String message;
+        if (bytes < 0) {
+            message = BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Message.OffHeapUnknown", //$NON-NLS-1$
+                    memory.getPeriodicCollections());
+        } else if (memory.getMaxBytes() > 0) {
+            message = BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Message.OffHeap", bytes, //$NON-NLS-1$
+                    Math.max(memory.getPeakBytes(), bytes), memory.getMaxBytes(),
+                    memory.getBudgetCollections(), memory.getPeriodicCollections());
+        } else {
+            message = BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Message.OffHeapNoBudget", bytes, //$NON-NLS-1$
+                    Math.max(memory.getPeakBytes(), bytes), memory.getPeriodicCollections());
+        }
+        // going over the budget is worth knowing about at the basic level
+        if (memory.getBudgetCollections() > 0 || bytes < 0) {
+            logBasic(message);
+        } else {
+            logDetailed(message);
+        }
+    }
+
+    /**
+     * Restore the forecast state saved by the previous run (if any), and start
+     * keeping the state of this run
+     *
+     * @param seriesInMemory the number of series to hold in memory
+     * @throws KettleException if the state file can't be read
+     */
+    private void restoreCheckpoint(int seriesInMemory) throws KettleException {
+        String stateFile = environmentSubstitute(m_meta.getStateFile());
+        RNNForecastingCheckpoint restored;
+        try {
+            restored = RNNForecastingCheckpoint.read(stateFile, seriesInMemory);
+        } catch (Exception ex) {
+            throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Error.UnableToReadState", stateFile), ex); //$NON-NLS-1$
+        }
+
+        if (restored != null) {
+            String fingerprint = m_data.getModel().getFingerprint();
+            if (fingerprint == null || !fingerprint.equals(restored.getFingerprint())) {
+                logBasic(BaseMessages.getString(RNNForecastingMeta.PKG,
+                        "RNNForecasting.Message.StateForOtherModel", stateFile)); //$NON-NLS-1$
+                restored = null;
+            } else {
+                logBasic(BaseMessages.getString(RNNForecastingMeta.PKG,
+                        "RNNForecasting.Message.RestoredState", restored.numSeries(), //$NON-NLS-1$
+                        stateFile));
+            }
+        }
+        m_data.initCheckpoint(restored);
+    }
+
+    /**
+     * Save the forecast state of this run
+     *
+     * @throws KettleException if the state file can't be written
+     */
+    private void saveCheckpoint() throws KettleException {
+        String stateFile = environmentSubstitute(m_meta.getStateFile());
+        try {
+            m_data.saveCheckpoint(stateFile);
+        } catch (Exception ex) {
+            throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Error.UnableToSaveState", stateFile), ex); //$NON-NLS-1$
+        }
+        logBasic(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecasting.Message.SavedState", m_data.getCheckpoint().numSeries(), //$NON-NLS-1$
+                stateFile));
+    }
+
+    /**
+     * Set up streaming mode: work out when to forecast and start the sliding
+     * window
+     *
+     * @throws KettleException if forecasting at time stamp boundaries is
+     *           requested but there is no time stamp field
+     */
+    private void initStreaming() throws KettleException {
+        m_forecastEvery = Const.toInt(environmentSubstitute(m_meta.getForecastEvery()), 0);
+        m_forecastBoundary = m_meta.getForecastBoundary();
+        if (Const.isEmpty(m_forecastBoundary)
+                || RNNForecastingMeta.FORECAST_BOUNDARIES[0].equals(m_forecastBoundary)) {
+            m_forecastBoundary = null;
+        }
+
+        if (m_forecastBoundary != null) {
+            String timeStampField = m_data.getModel().getTimeStampField();
+            m_timeStampIndex = Const.isEmpty(timeStampField) ? -1
+                    : getInputRowMeta().indexOfValue(timeStampField);
+            if (m_timeStampIndex < 0) {
+                throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                        "RNNForecasting.Error.NoTimeStampForBoundary", m_forecastBoundary)); //$NON-NLS-1$
+            }
+        } else if (m_forecastEvery <= 0) {
+            m_forecastEvery = 1;
+        }
+
+        m_data.initWindow(m_forecastEvery);
+    }
+
+    /**
+     * Pass a row straight on and add it to the sliding window, forecasting from
+     * the window when a time stamp boundary is crossed or enough rows have
+     * arrived
+     *
+     * @param r the incoming row
+     * @throws KettleException if a problem occurs
+     */
+    private void processStreamingRow(Object[] r) throws KettleException {
+        if (m_timeStampIndex >= 0) {
+            Date timeStamp = getInputRowMeta().getValueMeta(m_timeStampIndex).getDate(r[m_timeStampIndex]);
+            if (m_data.crossesBoundary(timeStamp, m_forecastBoundary)
+                    && m_data.getRowsSinceForecast() > 0) {
+                // the window holds the period that has just finished
+                outputWindowForecast();
+            }
+        }
+
+        putRow(m_data.getOutputRowMeta(), m_data.getPlan().convertPassThrough(
+                RowDataUtil.createResizedCopy(r, m_data.getOutputRowMeta().size())));
+        m_data.addToWindow(getInputRowMeta(), r);
+
+        if (m_forecastEvery > 0 && m_data.getRowsSinceForecast() >= m_forecastEvery) {
+            outputWindowForecast();
+        }
+    }
+
+    /**
+     * Forecast from the rows in the sliding window and output the forecast rows
+     *
+     * @throws KettleException if a problem occurs
+     */
+    private void outputWindowForecast() throws KettleException {
+        if (m_watcher != null) {
+            switchToNewModel();
+        }
+
+        try {
+            Object[][] outputRows = m_data.generateForecast(getInputRowMeta(),
+                    m_data.getOutputRowMeta(), m_data.getWindow(), m_meta, true);
+
+            for (Object[] row : outputRows) {
+                putRow(m_data.getOutputRowMeta(), row);
+            }
+        } catch (Exception ex) {
+            throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Error.ProblemWhileGettingPredictionsForBatch"), ex); //$NON-NLS-1$
+        }
+        m_data.windowForecasted();
+    }
+
+    /**
+     * Forecast from the rows in the priming buffer and output the forecast rows
+     *
+     * @throws KettleException if a problem occurs
+     */
+    private void outputBufferedForecast() throws KettleException {
+        if (m_watcher != null) {
+            switchToNewModel();
+        }
+
+        try {
+            Object[][] outputRows = m_data.generateBufferedForecast(getInputRowMeta(),
+                    m_data.getOutputRowMeta(), m_meta);
+
+            for (Object[] row : outputRows) {
+                putRow(m_data.getOutputRowMeta(), row);
+            }
+        } catch (Exception ex) {
+            throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Error.ProblemWhileGettingPredictionsForBatch"), ex); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Forecast from the rows that have been passed on and output the forecast
+     * rows (and the overlay rows with their predictions)
+     *
+     * @throws KettleException if a problem occurs
+     */
+    private void outputHistoryForecast() throws KettleException {
+        if (m_watcher != null) {
+            switchToNewModel();
+        }
+
+        try {
+            Object[][] outputRows = m_data.generateHistoryForecast(m_meta);
+
+            for (Object[] row : outputRows) {
+                putRow(m_data.getOutputRowMeta(), row);
+            }
+        } catch (Exception ex) {
+            throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Error.ProblemWhileGettingPredictionsForBatch"), ex); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Output the spooled rows followed by the forecast rows (and the overlay
+     * rows with their predictions)
+     *
+     * @throws KettleException if a problem occurs
+     */
+    private void outputSpooledRows() throws KettleException {
+        if (m_watcher != null) {
+            switchToNewModel();
+        }
+
+        Object[][] outputRows;
+        try {
+            outputRows = m_data.generateHistoryForecast(m_meta);
+        } catch (Exception ex) {
+            throw new KettleException(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Error.ProblemWhileGettingPredictionsForBatch"), ex); //$NON-NLS-1$
+        }
+
+        RNNForecastingRowSpool.Reader reader = m_data.getSpool().replay();
+        try {
+            int outputSize = m_data.getOutputRowMeta().size();
+            Object[] row;
+            while ((row = reader.next()) != null) {
+                putRow(m_data.getOutputRowMeta(), m_data.getPlan().convertPassThrough(
+                        RowDataUtil.resizeArray(row, outputSize)));
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (m_data.getSpilledRows() > 0) {
+            logBasic(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Message.Spooled", m_data.getSpilledRows(), //$NON-NLS-1$
+                    m_data.getSpilledBytes()));
+        }
+        m_data.closeSpool();
+
+        for (Object[] row : outputRows) {
+            putRow(m_data.getOutputRowMeta(), row);
+        }
+    }
+
     protected void outputBatchRows() throws Exception {
+        if (m_watcher != null) {
+            switchToNewModel();
+        }
+
         // get predictions for the batch
         Object[][] outputRows = m_data.generateForecast(getInputRowMeta(),
                 m_data.getOutputRowMeta(), m_batch, m_meta);
@@ -229,8 +824,61 @@ public class RNNForecasting extends BaseStep implements StepInterface {
         m_data = (RNNForecastingData) sdi;
 
         if (super.init(smi, sdi)) {
+            startMemoryPolicy();
+            if (m_meta.getPreloadModel()) {
+                // get the model loaded (and warmed up) before the first row arrives
+                startPreload();
+            }
             return true;
         }
         return false;
     }
+
+    /**
+     * Clean up after the step has finished.
+     *
+     * @param smi a <code>StepMetaInterface</code> value
+     * @param sdi a <code>StepDataInterface</code> value
+     */
+    @Override
+    public void dispose(StepMetaInterface smi, StepDataInterface sdi) {
+        if (m_preload != null) {
+            // stop a background load (or its warm-up forecasts) that is still
+            // running, and give it a little while to do so. A model it loads
+            // after all is released as soon as it is loaded (see loadModel)
+            m_preload.cancel(true);
+            try {
+                m_preloader.join(PRELOAD_STOP_WAIT);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            m_preload = null;
+            m_preloader = null;
+        }
+
+        if (m_watcher != null) {
+            m_watcher.stop();
+            m_watcher = null;
+        }
+
+        m_data.stopSeriesPool();
+        m_data.closeSpool();
+        m_data.closeStateStores();
+
+        RNNForecastingModel shared;
+        synchronized (this) {
+            m_disposed = true;
+            shared = m_sharedModel;
+            m_sharedModel = null;
+        }
+        if (shared != null) {
+            RNNForecastingModelCache.getInstance().release(shared);
+
+            if (log.isDetailed()) {
+                logDetailed(RNNForecastingModelCache.getInstance().toString());
+            }
+        }
+
+        super.dispose(smi, sdi);
+    }
 }
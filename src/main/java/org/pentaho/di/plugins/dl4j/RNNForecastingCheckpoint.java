@@ -0,0 +1,333 @@
+package org.pentaho.di.plugins.dl4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.vfs2.FileObject;
+import org.pentaho.di.core.vfs.KettleVFS;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * The state of a forecast that is kept from one run of a transformation to
+ * the next: for each series, the RNN state after priming, the last rows (as
+ * attribute values) that the lagged variables of the next rows are made from,
+ * and the time stamp of the last row (the watermark). A run that restores a
+ * checkpoint only needs to be given the rows that are newer than the
+ * watermark; older rows are not primed with again.
+ *
+ * The series are held in a {@link RNNForecastingStateStore}, so that only the
+ * most recently used ones take up memory, and are written to and read from the
+ * state file one at a time.
+ *
+ * The methods are synchronized, as series are forecast in parallel.
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingCheckpoint {
+
+    /** Number of series written between resets of the object stream */
+    private static final int RESET_INTERVAL = 1000;
+
+    /** Suffix of the temporary file the state file is written to first */
+    private static final String TEMP_SUFFIX = ".tmp"; //$NON-NLS-1$
+
+    /** Watermark of series without time stamps */
+    public static final long NO_WATERMARK = Long.MIN_VALUE;
+
+    /** Fingerprint of the model the checkpoint was made with */
+    private final String m_fingerprint;
+
+    /** The checkpoint of each series (a single null key if there are no series) */
+    private final RNNForecastingStateStore<Series> m_series;
+
+    /**
+     * The checkpoint of one series
+     */
+    public static class Series implements Serializable {
+
+        /** For serialization */
+        private static final long serialVersionUID = 4781225466137218690L;
+
+        private final List<Object> m_state;
+        private final double[][] m_window;
+        private final long m_watermark;
+
+        Series(List<Object> state, double[][] window, long watermark) {
+            m_state = state;
+            m_window = window;
+            m_watermark = watermark;
+        }
+
+        /**
+         * Get the RNN state after priming
+         *
+         * @return the state, or null if there was none
+         */
+        public List<Object> getState() {
+            return m_state;
+        }
+
+        /**
+         * Get the time stamp of the last row primed with
+         *
+         * @return the watermark, or NO_WATERMARK if the model has no time stamp
+         */
+        public long getWatermark() {
+            return m_watermark;
+        }
+
+        /**
+         * Put the last rows of the previous run in front of the rows of this run
+         * that are newer than the watermark
+         *
+         * @param primeData the rows to prime with in this run
+         * @param dateIndex the index of the time stamp attribute, or -1
+         * @return the rows to prime with
+         */
+        public Instances prepend(Instances primeData, int dateIndex) {
+            Instances result = new Instances(primeData, m_window.length + primeData.numInstances());
+            for (double[] vals : m_window) {
+                Instance inst = new DenseInstance(1.0, vals.clone());
+                inst.setDataset(result);
+                result.add(inst);
+            }
+            for (int i = 0; i < primeData.numInstances(); i++) {
+                Instance inst = primeData.instance(i);
+                if (dateIndex < 0 || m_watermark == NO_WATERMARK
+                        || inst.isMissing(dateIndex) || inst.value(dateIndex) > m_watermark) {
+                    result.add(inst);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Creates a new, empty <code>RNNForecastingCheckpoint</code>
+     *
+     * @param fingerprint the fingerprint of the model
+     * @param seriesInMemory the number of series to hold in memory
+     */
+    public RNNForecastingCheckpoint(String fingerprint, int seriesInMemory) {
+        m_fingerprint = fingerprint;
+        m_series = new RNNForecastingStateStore<Series>(seriesInMemory);
+    }
+
+    /**
+     * Get the fingerprint of the model the checkpoint was made with
+     *
+     * @return the fingerprint
+     */
+    public String getFingerprint() {
+        return m_fingerprint;
+    }
+
+    /**
+     * Record the checkpoint of a series, after priming
+     *
+     * @param key the series key, or null if there are no series
+     * @param state the RNN state
+     * @param primeData the rows primed with
+     * @param windowSize the number of rows to keep for the lagged variables
+     * @param dateIndex the index of the time stamp attribute, or -1
+     * @throws IOException if checkpoints moved to disk to make room can't be
+     *           written
+     */
+    public synchronized void put(String key, List<Object> state, Instances primeData,
+                                 int windowSize, int dateIndex) throws IOException {
+        int size = Math.min(Math.max(windowSize, 1), primeData.numInstances());
+        double[][] window = new double[size][];
+        int first = primeData.numInstances() - size;
+        for (int i = 0; i < size; i++) {
+            window[i] = primeData.instance(first + i).toDoubleArray();
+        }
+
+        long watermark = NO_WATERMARK;
+        if (dateIndex >= 0) {
+            for (double[] vals : window) {
+                if (!Double.isNaN(vals[dateIndex])) {
+                    watermark = Math.max(watermark, (long) vals[dateIndex]);
+                }
+            }
+        }
+        m_series.put(key, new Series(state, window, watermark));
+    }
+
+    /**
+     * Check whether there is a checkpoint of a series
+     *
+     * @param key the series key, or null if there are no series
+     * @return true if there is one
+     */
+    public synchronized boolean contains(String key) {
+        return m_series.containsKey(key);
+    }
+
+    /**
+     * Take the checkpoint of a series, so that it is only restored once
+     *
+     * @param key the series key, or null if there are no series
+     * @return the checkpoint, or null if there is none for the series
+     * @throws Exception if the checkpoint can't be read back from disk
+     */
+    public synchronized Series remove(String key) throws Exception {
+        return m_series.remove(key);
+    }
+
+    /**
+     * Bring the checkpoints of the given series into memory, ahead of
+     * forecasting them
+     *
+     * @param keys the series keys
+     * @throws Exception if a checkpoint can't be read back from disk
+     */
+    public synchronized void prefetch(Collection<String> keys) throws Exception {
+        m_series.prefetch(keys);
+    }
+
+    /**
+     * Keep the checkpoints of series that another checkpoint has and this one
+     * doesn't (series that had no rows in this run)
+     *
+     * @param previous the other checkpoint
+     * @throws Exception if a checkpoint can't be read back from disk
+     */
+    public synchronized void carryOver(RNNForecastingCheckpoint previous) throws Exception {
+        synchronized (previous) {
+            previous.m_series.visit(new RNNForecastingStateStore.Visitor<Series>() {
+                public void visit(String key, Series series) throws IOException {
+                    if (!m_series.containsKey(key)) {
+                        m_series.put(key, series);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Get the number of series held
+     *
+     * @return the number of series
+     */
+    public synchronized int numSeries() {
+        return m_series.size();
+    }
+
+    /**
+     * Release the checkpoints and delete the temporary file (if any)
+     */
+    public synchronized void close() {
+        m_series.clear();
+    }
+
+    /**
+     * Read a checkpoint from a state file
+     *
+     * @param stateFile the (resolved) name of the state file
+     * @param seriesInMemory the number of series to hold in memory
+     * @return the checkpoint, or null if there is no state file
+     * @throws Exception if the state file can't be read
+     */
+    public static RNNForecastingCheckpoint read(String stateFile, int seriesInMemory)
+            throws Exception {
+        FileObject stateF = KettleVFS.getFileObject(stateFile);
+        if (!stateF.exists()) {
+            return null;
+        }
+        ObjectInputStream is = new ObjectInputStream(new BufferedInputStream(
+                KettleVFS.getInputStream(stateF)));
+        try {
+            RNNForecastingCheckpoint checkpoint = new RNNForecastingCheckpoint(
+                    (String) is.readObject(), seriesInMemory);
+            int numSeries = is.readInt();
+            for (int i = 0; i < numSeries; i++) {
+                checkpoint.m_series.put((String) is.readObject(), (Series) is.readObject());
+            }
+            return checkpoint;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Write the checkpoint to a state file. It is written to a temporary file
+     * next to the state file first, which then replaces the state file, so a
+     * failed write leaves the previous state file as it was.
+     *
+     * @param stateFile the (resolved) name of the state file
+     * @throws Exception if the state file can't be written
+     */
+    public synchronized void write(String stateFile) throws Exception {
+        String tempFile = stateFile + TEMP_SUFFIX;
+        boolean written = false;
+        try {
+            writeTo(tempFile);
+            written = true;
+        } finally {
+            if (!written) {
+                try {
+                    KettleVFS.getFileObject(tempFile).delete();
+                } catch (Exception ex) {
+                    // the write failed anyway; a stale temporary file is overwritten next time
+                }
+            }
+        }
+        replace(KettleVFS.getFileObject(tempFile), KettleVFS.getFileObject(stateFile));
+    }
+
+    /**
+     * Replace a file with another one, atomically for local files. Other file
+     * systems have no atomic replace, but the old file is only removed once
+     * the new one is complete.
+     */
+    static void replace(FileObject from, FileObject to) throws Exception {
+        URL source = from.getURL();
+        URL target = to.getURL();
+        if ("file".equals(source.getProtocol()) && "file".equals(target.getProtocol())) { //$NON-NLS-1$ //$NON-NLS-2$
+            Files.move(new File(source.toURI()).toPath(), new File(target.toURI()).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            from.moveTo(to);
+        }
+    }
+
+    /**
+     * Write the checkpoint to a file, closing it only if everything was written
+     */
+    private void writeTo(String fileName) throws Exception {
+        final ObjectOutputStream os = new ObjectOutputStream(new BufferedOutputStream(
+                KettleVFS.getOutputStream(fileName, false)));
+        try {
+            os.writeObject(m_fingerprint);
+            os.writeInt(m_series.size());
+            m_series.visit(new RNNForecastingStateStore.Visitor<Series>() {
+                private int m_written;
+
+                public void visit(String key, Series series) throws Exception {
+                    os.writeObject(key);
+                    os.writeObject(series);
+                    if (++m_written % RESET_INTERVAL == 0) {
+                        // don't let the stream hold on to every series written
+                        os.reset();
+                    }
+                }
+            });
+        } finally {
+            os.close();
+        }
+    }
+}
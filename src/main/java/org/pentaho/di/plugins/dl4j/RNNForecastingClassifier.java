@@ -1,5 +1,7 @@
 package org.pentaho.di.plugins.dl4j;
 
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
 import weka.classifiers.evaluation.NumericPrediction;
 import weka.classifiers.timeseries.WekaForecaster;
 import weka.core.Attribute;
@@ -19,9 +21,20 @@ import java.util.List;
 
 class RNNForecastingClassifier extends RNNForecastingModel {
 
-    // The encapsulated WekaForecaster
+    /** For serialization (value of the original implicit UID, so embedded models still load) */
+    private static final long serialVersionUID = 6815991618856905113L;
+
+    // The encapsulated WekaForecaster (its networks may share their
+    // parameters with those of other copies)
     private WekaForecaster m_model;
 
+    // Engine that runs the forecaster's network directly, if one is installed
+    private transient RNNForecastingDirectEngine m_engine;
+
+    // True when the last series couldn't be primed by the engine, so the
+    // forecaster holds the live state until the next prime
+    private transient boolean m_wekaPrimed;
+
     /**
      * Creates a new <code>RNNForecastingWekaForecaster</code> instance.
      *
@@ -49,6 +62,84 @@ class RNNForecastingClassifier extends RNNForecastingModel {
         return m_model;
     }
 
+    /**
+     * Create a copy with its own WekaForecaster (lag maker, filters) and
+     * network, whose parameters are shared with this one's. The copy starts
+     * from this model's RNN state.
+     *
+     * @return the copy
+     * @throws Exception if the forecaster can't be copied
+     */
+    public RNNForecastingModel copy() throws Exception {
+        RNNForecastingClassifier copy = new RNNForecastingClassifier(
+                RNNForecastingNetworks.copySharing(m_model));
+        copy.setHeader(new Instances(getHeader(), 0));
+        copy.setFingerprint(getFingerprint());
+        if (m_engine != null) {
+            copy.setDirectEngine(m_engine);
+        }
+        copy.setPreviousState(getPreviousState());
+        return copy;
+    }
+
+    /**
+     * Prime and forecast with a direct engine, bound to the network inside
+     * this copy's forecaster. The live state is carried over.
+     *
+     * @param engine the calibrated engine, or null to use the forecaster
+     * @return true if the engine was installed
+     * @throws Exception if the network can't be found
+     */
+    public boolean setDirectEngine(RNNForecastingDirectEngine engine) throws Exception {
+        MultiLayerNetwork network = engine == null ? null
+                : RNNForecastingDirectEngine.findNetwork(m_model);
+        if (engine != null && network == null) {
+            return false;
+        }
+        List<Object> state = liveState();
+        m_engine = engine == null ? null : engine.bind(network);
+        m_wekaPrimed = false;
+        setLiveState(state);
+        return m_engine != null;
+    }
+
+    /**
+     * Get the direct engine installed in this copy
+     *
+     * @return the engine, or null if the forecaster is used
+     */
+    public RNNForecastingDirectEngine getDirectEngine() {
+        return m_engine;
+    }
+
+    /**
+     * Whether the engine (rather than the forecaster) holds the live state
+     */
+    private boolean isDirect() {
+        return m_engine != null && !m_wekaPrimed;
+    }
+
+    /**
+     * Get the live RNN state, from the engine or the forecaster
+     */
+    private List<Object> liveState() {
+        return isDirect() ? m_engine.getState() : m_model.getPreviousState();
+    }
+
+    /**
+     * Set (or clear, for null) the live RNN state
+     */
+    private void setLiveState(List<Object> state) {
+        if (m_engine != null) {
+            m_wekaPrimed = false;
+            m_engine.setState(state);
+        } else if (state == null) {
+            m_model.clearPreviousState();
+        } else {
+            m_model.setPreviousState(state);
+        }
+    }
+
     /**
      * Set the base model
      */
@@ -71,9 +162,84 @@ class RNNForecastingClassifier extends RNNForecastingModel {
      * @throws Exception if a problem occurs
      */
     public void primeForecaster(Instances batch) throws Exception {
+        if (m_engine != null) {
+            if (m_wekaPrimed) {
+                m_engine.setState(m_model.getPreviousState());
+                m_wekaPrimed = false;
+            }
+            if (m_engine.prime(batch)) {
+                return;
+            }
+            // rows the engine can't take (e.g. missing values) go through
+            // the forecaster, from the same state
+            List<Object> state = m_engine.getState();
+            if (state == null) {
+                m_model.clearPreviousState();
+            } else {
+                m_model.setPreviousState(state);
+            }
+            m_wekaPrimed = true;
+        }
         m_model.primeForecaster(batch);
     }
 
+    /**
+     * Prime the engine from the raw values of a series
+     *
+     * @param rows the raw values of the rows to prime with
+     * @return false if there is no engine, or it can't take the rows
+     */
+    public boolean primeForecaster(RNNForecastingLagBuffer rows) {
+        if (m_engine == null) {
+            return false;
+        }
+        if (m_wekaPrimed) {
+            m_engine.setState(m_model.getPreviousState());
+            m_wekaPrimed = false;
+        }
+        return m_engine.prime(rows);
+    }
+
+    /**
+     * Prime the engine with the last rows of a series, the earlier ones only
+     * giving the lagged values
+     *
+     * @param rows the raw values of the series, ending with the new rows
+     * @param fresh the number of new rows at the end of the buffer
+     * @return false if there is no engine, or it can't take the rows
+     */
+    public boolean primeForecaster(RNNForecastingLagBuffer rows, int fresh) {
+        if (m_engine == null) {
+            return false;
+        }
+        if (m_wekaPrimed) {
+            m_engine.setState(m_model.getPreviousState());
+            m_wekaPrimed = false;
+        }
+        return m_engine.prime(rows, fresh);
+    }
+
+    /**
+     * Prime the forecaster with one more row. The forecaster keeps the lag
+     * history, so this always goes through it (from the engine's state, if
+     * the engine holds it).
+     *
+     * @param row the next row of the series
+     * @throws Exception if a problem occurs
+     */
+    public void primeForecasterIncremental(Instance row) throws Exception {
+        if (isDirect()) {
+            List<Object> state = m_engine.getState();
+            if (state == null) {
+                m_model.clearPreviousState();
+            } else {
+                m_model.setPreviousState(state);
+            }
+            m_wekaPrimed = true;
+        }
+        m_model.primeForecasterIncremental(row);
+    }
+
     /**
      * Get the dates for the time steps to forecast
      *
@@ -87,7 +253,7 @@ class RNNForecastingClassifier extends RNNForecastingModel {
         List<String> dates = new ArrayList<>(stepsToForecast);
         TSLagMaker tsLagMaker = m_model.getTSLagMaker();
         Attribute dateAtt = lastInst.attribute(dateIndex);
-        double lastDate = tsLagMaker.getCurrentTimeStampValue();
+        double lastDate = isDirect() ? m_engine.getLastTimeStamp() : tsLagMaker.getCurrentTimeStampValue();
 
         for (int i = 0; i < stepsToForecast; i++) {
             lastDate = tsLagMaker.advanceSuppliedTimeValue(lastDate);
@@ -97,16 +263,47 @@ class RNNForecastingClassifier extends RNNForecastingModel {
         return dates;
     }
 
+    /**
+     * Get the time stamps for the time steps to forecast
+     *
+     * @param stepsToForecast the number of predictions to be made
+     * @return the time stamp of each future time step
+     * @throws Exception if a problem occurs
+     */
+    public long[] getForecastTimeStamps(int stepsToForecast) throws Exception {
+        return getForecastTimeStamps(stepsToForecast, isDirect() ? m_engine.getLastTimeStamp()
+                : m_model.getTSLagMaker().getCurrentTimeStampValue());
+    }
+
+    /**
+     * Get the time stamps for the time steps that follow a given time stamp
+     *
+     * @param stepsToForecast the number of predictions to be made
+     * @param lastDate the time stamp of the last row of the series
+     * @return the time stamp of each future time step
+     * @throws Exception if a problem occurs
+     */
+    public long[] getForecastTimeStamps(int stepsToForecast, double lastDate) throws Exception {
+        long[] timeStamps = new long[stepsToForecast];
+        TSLagMaker tsLagMaker = m_model.getTSLagMaker();
+
+        for (int i = 0; i < stepsToForecast; i++) {
+            lastDate = tsLagMaker.advanceSuppliedTimeValue(lastDate);
+            timeStamps[i] = (long) lastDate;
+        }
+        return timeStamps;
+    }
+
     public void clearPreviousState() {
-        m_model.clearPreviousState();
+        setLiveState(null);
     }
 
     public void setPreviousState(List<Object> state) {
-        m_model.setPreviousState(state);
+        setLiveState(state);
     }
 
     public List<Object> getPreviousState() {
-        return m_model.getPreviousState();
+        return liveState();
     }
 
     public List<String> getTargetFieldNames() {
@@ -120,6 +317,19 @@ class RNNForecastingClassifier extends RNNForecastingModel {
         return targetFields;
     }
 
+    public String getTimeStampField() {
+        String timeStamp = m_model.getTSLagMaker().getTimeStampField();
+        return timeStamp == null || timeStamp.length() == 0 ? null : timeStamp;
+    }
+
+    public int getMinLag() {
+        return m_model.getTSLagMaker().getMinLag();
+    }
+
+    public int getMaxLag() {
+        return m_model.getTSLagMaker().getMaxLag();
+    }
+
     /**
      * Return a classification (number for regression problems
      * or index of a class value for classification problems).
@@ -145,6 +355,57 @@ class RNNForecastingClassifier extends RNNForecastingModel {
         return m_model.forecast(numStepsToForecast);
     }
 
+    /**
+     * Forecast into caller supplied arrays (steps by targets)
+     *
+     * @param numSteps the number of steps to forecast
+     * @param overlay overlay data for the steps to forecast, or null
+     * @param out the array to put the predictions in
+     * @param lower the array for the lower interval bounds, or null
+     * @param upper the array for the upper interval bounds, or null
+     * @throws Exception if a problem occurs
+     */
+    public void forecastInto(int numSteps, Instances overlay, double[][] out,
+                             double[][] lower, double[][] upper) throws Exception {
+        if (isDirect()) {
+            // the engine is only used for models without overlay fields or intervals
+            m_engine.forecastInto(numSteps, m_engine.usesTimeStamps() ? getForecastTimeStamps(numSteps) : null,
+                    out);
+            for (int i = 0; i < numSteps; i++) {
+                for (int j = 0; j < out[i].length; j++) {
+                    if (lower != null) {
+                        lower[i][j] = Double.NaN;
+                    }
+                    if (upper != null) {
+                        upper[i][j] = Double.NaN;
+                    }
+                }
+            }
+            return;
+        }
+
+        List<List<NumericPrediction>> forecast = overlay == null ? m_model.forecast(numSteps)
+                : m_model.forecast(numSteps, overlay);
+
+        for (int i = 0; i < numSteps; i++) {
+            List<NumericPrediction> predAtStep = forecast.get(i);
+            for (int j = 0; j < predAtStep.size(); j++) {
+                NumericPrediction pred = predAtStep.get(j);
+                out[i][j] = pred.predicted();
+                if (lower != null || upper != null) {
+                    double[][] intervals = pred.predictionIntervals();
+                    boolean hasInterval = intervals != null && intervals.length > 0;
+                    if (lower != null) {
+                        lower[i][j] = hasInterval ? intervals[0][0] : Double.NaN;
+                    }
+                    if (upper != null) {
+                        upper[i][j] = hasInterval ? intervals[0][1] : Double.NaN;
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Returns the textual description of the WekaForecaster model.
      *
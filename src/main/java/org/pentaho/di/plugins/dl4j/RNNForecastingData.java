@@ -2,12 +2,19 @@ package org.pentaho.di.plugins.dl4j;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.vfs2.FileObject;
+import org.pentaho.di.core.exception.KettleValueException;
 import org.pentaho.di.core.logging.LogChannelInterface;
 import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.core.row.RowMetaInterface;
-import org.pentaho.di.core.row.ValueMeta;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.variables.VariableSpace;
 import org.pentaho.di.core.vfs.KettleVFS;
@@ -15,7 +22,6 @@ import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
 
-import weka.classifiers.evaluation.NumericPrediction;
 import weka.core.Attribute;
 import weka.core.DenseInstance;
 import weka.core.Instance;
@@ -54,379 +60,1863 @@ public class RNNForecastingData extends BaseStepData implements StepDataInterfac
     /** used to map attribute indices to incoming field indices */
     private int[] m_mappingIndexes;
 
+    /** the target, class and date indexes, output layout and horizon */
+    private RNNForecastingPlan m_plan;
+
+    /**
+     * the compiled mapping, and the header, row format and mapping it was
+     * compiled for. It is compiled from the model's own header, and used for
+     * the headers of its replicas too, as they have the same structure.
+     */
+    private RNNForecastingRowConverter m_converter;
+    private Instances m_converterHeader;
+    private RowMetaInterface m_converterMeta;
+    private int[] m_converterMapping;
+
+    /** the last converter compiled for a replica's header, if it can't share */
+    private RNNForecastingRowConverter m_replicaConverter;
+    private Instances m_replicaHeader;
+
+    /**
+     * the label dictionaries of the nominal (and encoded string) attributes.
+     * Kept when the model is replaced, as the new version has the same header
+     */
+    private RNNForecastingDictionary[] m_dictionaries;
+
+    /** whether to dictionary encode the values of string attributes */
+    private boolean m_encodeStrings;
+
+    /** the most recent rows, as attribute values, in bounded priming mode */
+    private RNNForecastingPrimingBuffer m_primingBuffer;
+
+    /** rows without target values (overlay data), in bounded priming mode */
+    private List<Object[]> m_overlayRows;
+
+    /**
+     * the rows seen so far, as compressed attribute values, of each series (a
+     * single null key if the rows aren't split into series), when rows are
+     * passed on as they arrive or spooled
+     */
+    private Map<String, SeriesHistory> m_history;
+
+    /** the checkpoint restored from the state file, and the one being made */
+    private RNNForecastingCheckpoint m_restoredCheckpoint;
+    private RNNForecastingCheckpoint m_checkpoint;
+
+    /** the rows to output at the end, in batch mode with spooling */
+    private RNNForecastingRowSpool m_spool;
+
+    /** index of the incoming field that identifies the series, or -1 */
+    private int m_seriesKeyIndex = -1;
+
+    /**
+     * the RNN state of each series, with the least recently used ones on disk
+     * once there are more series than are to be kept in memory
+     */
+    private int m_seriesInMemory = RNNForecastingMeta.DEFAULT_series_in_memory;
+    private RNNForecastingStateStore<List<Object>> m_seriesStates =
+            new RNNForecastingStateStore<List<Object>>(m_seriesInMemory);
+
+    /** forecasts series in parallel, each thread using one of the model replicas */
+    private ForkJoinPool m_seriesPool;
+    private BlockingQueue<RNNForecastingModel> m_replicas;
+
+    /**
+     * the most series to run through the network at once (1 for none), and
+     * how many batches and series in them have been run
+     */
+    private int m_seriesBatchSize = 1;
+    private final AtomicLong m_batches = new AtomicLong();
+    private final AtomicLong m_batchedSeries = new AtomicLong();
+
+    /**
+     * whether to prime and forecast by running the network directly, the
+     * calibrated engine that does so (installed in each model copy and replica
+     * as it is used), and why the model can't be run directly, if it can't
+     */
+    private boolean m_useDirectEngine;
+    private boolean m_directEngineTried;
+    private RNNForecastingDirectEngine m_directEngine;
+    private String m_directEngineReason;
+
+    /**
+     * whether to reuse the arrays fed to the network when it is run directly,
+     * and the policy that keeps the off-heap memory used by ND4J within budget
+     */
+    private boolean m_reuseBuffers;
+    private RNNForecastingMemory m_memory;
+
+    /** time spent loading the model and warming it up (milliseconds) */
+    private long m_loadTime = -1;
+    private long m_warmupTime = -1;
+
+    /** the most recent rows, in streaming mode */
+    private ArrayDeque<Object[]> m_window;
+    private int m_windowCapacity;
+
+    /**
+     * the raw values (targets and time stamp) of the rows in the window, kept
+     * as the rows arrive once the network is run directly, so that a window
+     * can be primed from without converting all of its rows again
+     */
+    private RNNForecastingLagBuffer m_windowLags;
+
+    /** number of rows added to the window since the last forecast */
+    private int m_rowsSinceForecast;
+
+    /**
+     * the RNN state after the rows of the stream primed so far (not after the
+     * forecast from them), so that each window only primes its new rows
+     */
+    private List<Object> m_streamState;
+    private boolean m_streamPrimed;
+
+    /** whether the stream was primed from the raw values of the window rows */
+    private boolean m_streamDirect;
+
+    /** the time stamp boundary period of the last row, in streaming mode */
+    private long m_lastPeriod = Long.MIN_VALUE;
+    private Calendar m_calendar;
+
     public RNNForecastingData() {
         super();
     }
 
     /**
-     * Set the model for this copy of the step to use
+     * Set the model for this copy of the step to use
+     *
+     * @param model the model to use
+     */
+    public void setModel(RNNForecastingModel model) {
+        if (model != m_model) {
+            // any replicas are of the old model
+            stopSeriesPool();
+            m_directEngineTried = false;
+            m_directEngine = null;
+            m_directEngineReason = null;
+            m_windowLags = null;
+            // the new model has seen none of the stream
+            resetStream();
+        }
+        m_model = model;
+        if (m_plan != null && model != null) {
+            setPlan(m_plan.forModel(model));
+        }
+    }
+
+    /**
+     * Set whether to dictionary encode the values of string attributes, rather
+     * than setting them on the (shared) model header
+     *
+     * @param encode true to encode string values
+     */
+    public void setEncodeStrings(boolean encode) {
+        m_encodeStrings = encode;
+    }
+
+    /**
+     * Get the label dictionaries of the nominal (and encoded string) attributes
+     *
+     * @return the dictionary for each attribute (null for attributes without
+     *         one), or null if no rows have been converted yet
+     */
+    public RNNForecastingDictionary[] getDictionaries() {
+        return m_dictionaries;
+    }
+
+    /**
+     * Set the plan for forecasting with this copy's model. The model's class
+     * index is set from the plan.
+     *
+     * @param plan the plan
+     */
+    public void setPlan(RNNForecastingPlan plan) {
+        m_plan = plan;
+        if (plan.getClassIndex() >= 0) {
+            m_model.getHeader().setClassIndex(plan.getClassIndex());
+        }
+    }
+
+    /**
+     * Get the plan for forecasting with this copy's model
+     *
+     * @return the plan
+     */
+    public RNNForecastingPlan getPlan() {
+        return m_plan;
+    }
+
+    /**
+     * Get the model that this copy of the step is using
+     *
+     * @return the model that this copy of the step is using
+     */
+    public RNNForecastingModel getModel() {
+        return m_model;
+    }
+
+    /**
+     * Set the time it took to load the model
+     *
+     * @param loadTime the load time in milliseconds
+     */
+    public void setLoadTime(long loadTime) {
+        m_loadTime = loadTime;
+    }
+
+    /**
+     * Get the time it took to load the model
+     *
+     * @return the load time in milliseconds, or -1 if the model hasn't been loaded
+     */
+    public long getLoadTime() {
+        return m_loadTime;
+    }
+
+    /**
+     * Set the time spent running warm-up forecasts
+     *
+     * @param warmupTime the warm-up time in milliseconds
+     */
+    public void setWarmupTime(long warmupTime) {
+        m_warmupTime = warmupTime;
+    }
+
+    /**
+     * Get the time spent running warm-up forecasts
+     *
+     * @return the warm-up time in milliseconds, or -1 if there was no warm-up
+     */
+    public long getWarmupTime() {
+        return m_warmupTime;
+    }
+
+    /**
+     * Set the index of the incoming field that identifies the series that each
+     * row belongs to
+     *
+     * @param seriesKeyIndex the index of the key field, or -1 if the rows are one
+     *          series
+     */
+    public void setSeriesKeyIndex(int seriesKeyIndex) {
+        m_seriesKeyIndex = seriesKeyIndex;
+    }
+
+    /**
+     * Get the index of the incoming field that identifies the series that each
+     * row belongs to
+     *
+     * @return the index of the key field, or -1 if the rows are one series
+     */
+    public int getSeriesKeyIndex() {
+        return m_seriesKeyIndex;
+    }
+
+    /**
+     * Start bounded priming mode. Only as many rows as the model's largest lag
+     * are kept (converted to attribute values) to prime the forecaster with.
+     */
+    public void initPrimingBuffer() {
+        Instances header = m_model.getHeader();
+        m_primingBuffer = new RNNForecastingPrimingBuffer(m_model.getMaxLag(), header.numAttributes());
+        m_overlayRows = new ArrayList<Object[]>();
+    }
+
+    /**
+     * Start passing rows on as they arrive. The rows are kept as instances
+     * only, apart from rows without a target value, which are output with
+     * their predictions after the forecast.
+     */
+    public void initHistory() {
+        m_history = new LinkedHashMap<String, SeriesHistory>();
+    }
+
+    /**
+     * Start keeping checkpoints of the series forecast, to be saved at the end
+     * of the run
+     *
+     * @param restored the checkpoint saved by the previous run, or null if
+     *          there is none
+     */
+    public void initCheckpoint(RNNForecastingCheckpoint restored) {
+        m_restoredCheckpoint = restored;
+        m_checkpoint = new RNNForecastingCheckpoint(m_model.getFingerprint(), m_seriesInMemory);
+    }
+
+    /**
+     * Get the checkpoint of the series forecast in this run
+     *
+     * @return the checkpoint, or null if checkpoints aren't kept
+     */
+    public RNNForecastingCheckpoint getCheckpoint() {
+        return m_checkpoint;
+    }
+
+    /**
+     * Save the checkpoint of this run, along with those of any restored series
+     * that had no rows in this run
+     *
+     * @param stateFile the (resolved) name of the state file
+     * @throws Exception if the state file can't be written
+     */
+    public void saveCheckpoint(String stateFile) throws Exception {
+        if (m_restoredCheckpoint != null) {
+            m_checkpoint.carryOver(m_restoredCheckpoint);
+        }
+        m_checkpoint.write(stateFile);
+    }
+
+    /**
+     * Release the series states and checkpoints, deleting their temporary
+     * files
+     */
+    public void closeStateStores() {
+        m_seriesStates.clear();
+        if (m_restoredCheckpoint != null) {
+            m_restoredCheckpoint.close();
+        }
+        if (m_checkpoint != null) {
+            m_checkpoint.close();
+        }
+    }
+
+    /**
+     * Start spooling the rows to output at the end. The forecast is made from
+     * the history of each series, so it needs to be started too.
+     *
+     * @param inputMeta the meta data for the incoming rows
+     * @param maxRows the number of rows to keep in memory (0 for no limit)
+     * @param maxBytes the number of bytes to keep in memory (0 for no limit)
+     */
+    public void initSpool(RowMetaInterface inputMeta, long maxRows, long maxBytes) {
+        initHistory();
+        m_spool = new RNNForecastingRowSpool(inputMeta, maxRows, maxBytes);
+    }
+
+    /**
+     * Get the spool of rows to output at the end
+     *
+     * @return the spool, or null if rows aren't spooled
+     */
+    public RNNForecastingRowSpool getSpool() {
+        return m_spool;
+    }
+
+    /**
+     * Release the spooled rows (and delete the spool file, if any)
+     */
+    public void closeSpool() {
+        if (m_spool != null) {
+            m_spool.close();
+        }
+    }
+
+    /**
+     * Get the number of rows that have been spooled to disk
+     *
+     * @return the number of rows
+     */
+    public long getSpilledRows() {
+        return m_spool == null ? 0 : m_spool.getSpilledRows();
+    }
+
+    /**
+     * Get the number of bytes that have been spooled to disk
+     *
+     * @return the number of bytes
+     */
+    public long getSpilledBytes() {
+        return m_spool == null ? 0 : m_spool.getSpilledBytes();
+    }
+
+    /**
+     * Add a row to the history of its series
+     *
+     * @param inputMeta the meta data for the incoming rows
+     * @param row the incoming row
+     * @return true if the row can be passed on, false if it has been kept as
+     *         overlay data
+     * @throws KettleValueException if the series key can't be read
+     */
+    public boolean addToHistory(RowMetaInterface inputMeta, Object[] row)
+            throws KettleValueException {
+        String key = null;
+        if (m_seriesKeyIndex >= 0) {
+            key = inputMeta.getValueMeta(m_seriesKeyIndex).getString(row[m_seriesKeyIndex]);
+        }
+        Instances header = m_model.getHeader();
+        SeriesHistory history = m_history.get(key);
+        if (history == null) {
+            history = new SeriesHistory(m_seriesKeyIndex < 0 ? null : row[m_seriesKeyIndex],
+                    new RNNForecastingHistoryStore(header));
+            m_history.put(key, history);
+        }
+
+        if (m_vals == null || m_vals.length != header.numAttributes()) {
+            m_vals = new double[header.numAttributes()];
+        }
+        convertRow(inputMeta, row, m_mappingIndexes, header, m_vals);
+        history.m_store.add(m_vals);
+        if (Utils.isMissingValue(m_vals[header.classIndex()])) {
+            history.m_overlayRows.add(row);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The rows of one series that have been passed on
+     */
+    private class SeriesHistory {
+        private final Object m_keyValue;
+        private final RNNForecastingHistoryStore m_store;
+        private final List<Object[]> m_overlayRows = new ArrayList<Object[]>();
+
+        SeriesHistory(Object keyValue, RNNForecastingHistoryStore store) {
+            m_keyValue = keyValue;
+            m_store = store;
+        }
+
+        /**
+         * Whether the series can be primed from its raw values (it has no
+         * overlay rows, which must be primed as instances)
+         */
+        boolean canPrimeDirect(String key) throws Exception {
+            return m_overlayRows.isEmpty() && RNNForecastingData.this.canPrimeDirect(key);
+        }
+    }
+
+    /**
+     * Add a row to the priming buffer. Rows without a target value are overlay
+     * data, and are kept until the forecast is made.
+     *
+     * @param inputMeta the meta data for the incoming rows
+     * @param row the incoming row
+     * @return true if the row has been buffered and can be passed on, false if
+     *         it has been kept as overlay data
+     */
+    public boolean bufferRow(RowMetaInterface inputMeta, Object[] row) {
+        Instances header = m_model.getHeader();
+        if (m_vals == null || m_vals.length != header.numAttributes()) {
+            m_vals = new double[header.numAttributes()];
+        }
+        convertRow(inputMeta, row, m_mappingIndexes, header, m_vals);
+        if (Utils.isMissingValue(m_vals[header.classIndex()])) {
+            m_overlayRows.add(row);
+            return false;
+        }
+
+        System.arraycopy(m_vals, 0, m_primingBuffer.nextSlot(), 0, m_vals.length);
+        return true;
+    }
+
+    /**
+     * Set the number of series whose RNN state is kept in memory. Forgets the
+     * RNN state of every series.
+     *
+     * @param seriesInMemory the number of series
+     */
+    public void setSeriesInMemory(int seriesInMemory) {
+        m_seriesStates.clear();
+        m_seriesInMemory = seriesInMemory;
+        m_seriesStates = new RNNForecastingStateStore<List<Object>>(seriesInMemory);
+    }
+
+    /**
+     * Get the store of the RNN state of each series
+     *
+     * @return the store
+     */
+    public RNNForecastingStateStore<List<Object>> getSeriesStates() {
+        return m_seriesStates;
+    }
+
+    /**
+     * Forget the RNN state of every series
+     */
+    public void clearSeriesStates() {
+        m_seriesStates.clear();
+        resetStream();
+    }
+
+    /**
+     * Bring the RNN state (and checkpoint) of the given series into memory in
+     * one go, ahead of forecasting them
+     */
+    private void prefetchSeries(Collection<String> keys) throws Exception {
+        m_seriesStates.prefetch(keys);
+        if (m_restoredCheckpoint != null) {
+            m_restoredCheckpoint.prefetch(keys);
+        }
+    }
+
+    /**
+     * Start a sliding window for streaming mode. The window holds the lag
+     * context the model needs (its maximum lag) plus the rows that arrive
+     * between forecasts, so that memory use doesn't depend on the length of
+     * the stream.
+     *
+     * @param forecastEvery the number of rows between forecasts (or 0 if
+     *          forecasts are only triggered by time stamp boundaries)
+     */
+    public void initWindow(int forecastEvery) {
+        m_windowCapacity = Math.max(m_model.getMaxLag(), 1) + Math.max(forecastEvery, 1);
+        m_window = new ArrayDeque<Object[]>(m_windowCapacity);
+        m_windowLags = null;
+        m_rowsSinceForecast = 0;
+        m_lastPeriod = Long.MIN_VALUE;
+        resetStream();
+    }
+
+    /**
+     * Add a row to the sliding window, dropping the oldest row if the window is
+     * full
+     *
+     * @param inputMeta the meta data for the incoming rows
+     * @param row the row to add
+     */
+    public void addToWindow(RowMetaInterface inputMeta, Object[] row) {
+        if (m_window.size() == m_windowCapacity) {
+            m_window.removeFirst();
+        }
+        m_window.addLast(row);
+        if (m_windowLags != null) {
+            m_windowLags.push(constructInstance(inputMeta, row, m_mappingIndexes, m_model, false));
+        }
+        m_rowsSinceForecast++;
+    }
+
+    /**
+     * Get the raw values of the rows in the window, starting to keep them if
+     * the network is run directly
+     *
+     * @param inputMeta the meta data for the incoming rows
+     * @return the values, or null if the network isn't run directly
+     */
+    private RNNForecastingLagBuffer getWindowLags(RowMetaInterface inputMeta) {
+        if (m_windowLags == null && m_useDirectEngine && m_directEngine != null) {
+            // the buffer drops rows exactly when the window does
+            m_windowLags = m_directEngine.newBuffer(m_windowCapacity);
+            for (Object[] row : m_window) {
+                m_windowLags.push(constructInstance(inputMeta, row, m_mappingIndexes, m_model, false));
+            }
+        }
+        return m_windowLags;
+    }
+
+    /**
+     * Forecast from the window, carrying the RNN state forward from the
+     * previous window so that only the rows added since then are primed (the
+     * earlier ones only give the lagged values). The first window, and any
+     * window that can't carry on from the previous one, is primed in full from
+     * a cleared state.
+     *
+     * @param model the model to use
+     * @param inputMeta the meta data for the incoming rows
+     * @param inputRows the window rows
+     * @return the forecast rows, or null if the window can't be primed as a
+     *         stream (e.g. it has overlay rows)
+     * @throws Exception if a problem occurs
+     */
+    private Object[][] forecastStream(RNNForecastingModel model, RowMetaInterface inputMeta,
+                                      List<Object[]> inputRows) throws Exception {
+        RNNForecastingLagBuffer rows = getWindowLags(inputMeta);
+        boolean direct = rows != null;
+        if (direct && model.getDirectEngine() == null) {
+            model.setDirectEngine(m_directEngine);
+        }
+        int fresh = m_rowsSinceForecast;
+
+        // the model's state (and lag history) is only known again once primed
+        boolean carryOn = m_streamPrimed && direct == m_streamDirect
+                && fresh <= inputRows.size();
+        m_streamPrimed = false;
+
+        boolean primed = false;
+        if (carryOn) {
+            if (m_streamState == null) {
+                model.clearPreviousState();
+            } else {
+                model.setPreviousState(m_streamState);
+            }
+            primed = fresh == 0 || (direct ? model.primeForecaster(rows, fresh)
+                    : primeIncremental(model, inputMeta, inputRows, fresh));
+        }
+        if (!primed) {
+            primed = direct ? primeWindow(model, rows) : primeWindow(model, inputMeta, inputRows);
+        }
+        if (!primed) {
+            return null;
+        }
+        m_streamState = model.getPreviousState();
+        m_streamPrimed = true;
+        m_streamDirect = direct;
+
+        Object[][] result = generateOutputRows(model, inputRows, inputRows.size(), true);
+        afterForecast();
+        return result;
+    }
+
+    /**
+     * Prime the model with the whole window, from its raw values, from a
+     * cleared state
+     */
+    private boolean primeWindow(RNNForecastingModel model, RNNForecastingLagBuffer rows)
+            throws Exception {
+        model.clearPreviousState();
+        return model.primeForecaster(rows);
+    }
+
+    /**
+     * Prime the model with the whole window, as instances, from a cleared
+     * state. Windows with overlay rows (rows without target values) are
+     * declined.
+     */
+    private boolean primeWindow(RNNForecastingModel model, RowMetaInterface inputMeta,
+                                List<Object[]> inputRows) throws Exception {
+        Instances primeData = toInstances(inputMeta, inputRows, model);
+        for (Instance instance : primeData) {
+            if (instance.classIsMissing()) {
+                return false;
+            }
+        }
+        useDirectEngine(model, primeData);
+        model.clearPreviousState();
+        model.primeForecaster(primeData);
+        return true;
+    }
+
+    /**
+     * Prime the model with the last rows of the window one at a time, carrying
+     * on from the lag history the model kept from the rows before them. Rows
+     * without target values are declined before any are primed.
+     */
+    private boolean primeIncremental(RNNForecastingModel model, RowMetaInterface inputMeta,
+                                     List<Object[]> inputRows, int fresh) throws Exception {
+        List<Instance> instances = new ArrayList<Instance>(fresh);
+        for (Object[] r : inputRows.subList(inputRows.size() - fresh, inputRows.size())) {
+            Instance instance = constructInstance(inputMeta, r, m_mappingIndexes, model, true);
+            if (instance.classIsMissing()) {
+                return false;
+            }
+            instances.add(instance);
+        }
+        for (Instance instance : instances) {
+            model.primeForecasterIncremental(instance);
+        }
+        return true;
+    }
+
+    /**
+     * Forget the state carried from window to window, so that the next window
+     * is primed in full
+     */
+    private void resetStream() {
+        m_streamState = null;
+        m_streamPrimed = false;
+    }
+
+    /**
+     * Get the rows currently in the sliding window, oldest first
+     *
+     * @return the rows in the window
+     */
+    public List<Object[]> getWindow() {
+        return new ArrayList<Object[]>(m_window);
+    }
+
+    /**
+     * Get the number of rows added to the window since the last forecast
+     *
+     * @return the number of rows
+     */
+    public int getRowsSinceForecast() {
+        return m_rowsSinceForecast;
+    }
+
+    /**
+     * Note that a forecast has been made from the current window
+     */
+    public void windowForecasted() {
+        m_rowsSinceForecast = 0;
+    }
+
+    /**
+     * Check whether a time stamp falls in a later period than the previous one
+     * checked. For example, with a boundary of "day" this returns true for the
+     * first time stamp after midnight.
+     *
+     * @param timeStamp the time stamp of the incoming row (may be null)
+     * @param boundary one of {@link RNNForecastingMeta#FORECAST_BOUNDARIES}
+     * @return true if a boundary has been crossed
+     */
+    public boolean crossesBoundary(Date timeStamp, String boundary) {
+        if (timeStamp == null) {
+            return false;
+        }
+        if (m_calendar == null) {
+            m_calendar = Calendar.getInstance();
+        }
+
+        m_calendar.setTime(timeStamp);
+        m_calendar.set(Calendar.MILLISECOND, 0);
+        m_calendar.set(Calendar.SECOND, 0);
+        if (!"minute".equals(boundary)) { //$NON-NLS-1$
+            m_calendar.set(Calendar.MINUTE, 0);
+            if (!"hour".equals(boundary)) { //$NON-NLS-1$
+                m_calendar.set(Calendar.HOUR_OF_DAY, 0);
+                if ("week".equals(boundary)) { //$NON-NLS-1$
+                    m_calendar.set(Calendar.DAY_OF_WEEK, m_calendar.getFirstDayOfWeek());
+                } else if ("month".equals(boundary)) { //$NON-NLS-1$
+                    m_calendar.set(Calendar.DAY_OF_MONTH, 1);
+                } else if ("year".equals(boundary)) { //$NON-NLS-1$
+                    m_calendar.set(Calendar.DAY_OF_YEAR, 1);
+                }
+            }
+        }
+
+        long period = m_calendar.getTimeInMillis();
+        boolean crossed = m_lastPeriod != Long.MIN_VALUE && period > m_lastPeriod;
+        m_lastPeriod = period;
+        return crossed;
+    }
+
+    /**
+     * Get the meta data for the output format
+     *
+     * @return a <code>RowMetaInterface</code> value
+     */
+    public RowMetaInterface getOutputRowMeta() {
+        return m_outputRowMeta;
+    }
+
+    /**
+     * Set the meta data for the output format
+     *
+     * @param rmi a <code>RowMetaInterface</code> value
+     */
+    public void setOutputRowMeta(RowMetaInterface rmi) {
+        m_outputRowMeta = rmi;
+    }
+
+    /**
+     * Finds a mapping between the attributes that a Weka model has been trained
+     * with and the incoming Kettle row format. Returns an array of indices, where
+     * the element at index 0 of the array is the index of the Kettle field that
+     * corresponds to the first attribute in the Instances structure, the element
+     * at index 1 is the index of the Kettle fields that corresponds to the second
+     * attribute, ...
+     *
+     * @param header the Instances header
+     * @param inputRowMeta the meta data for the incoming rows
+     * @param log the log to use
+     */
+    public void mapIncomingRowMetaData(Instances header,
+                                       RowMetaInterface inputRowMeta, LogChannelInterface log) {
+        m_mappingIndexes = RNNForecastingData.findMappings(header, inputRowMeta);
+        m_converter = null;
+    }
+
+    public static boolean modelFileExists(String modelFile, VariableSpace space)
+            throws Exception {
+
+        modelFile = space.environmentSubstitute(modelFile);
+        FileObject modelF = KettleVFS.getFileObject(modelFile);
+
+        return modelF.exists();
+    }
+
+    /**
+     * Loads a binary serialized Java object containing the forecaster. The
+     * source of the model file is read once, but the base network and RNN
+     * state are restored with further reads of the (local copy of the) file
+     * (see <code>RNNForecastingModelLoader</code>).
+     *
+     * @param modelFile a <code>File</code> value
+     * @return the model
+     * @throws Exception if there is a problem laoding the model.
+     */
+    public static RNNForecastingModel loadSerializedModel(String modelFile,
+                                                       LogChannelInterface log, VariableSpace space) throws Exception {
+
+        modelFile = space.environmentSubstitute(modelFile);
+        FileObject modelF = KettleVFS.getFileObject(modelFile);
+
+        if (!modelF.exists()) {
+            throw new Exception(
+                    BaseMessages
+                            .getString(
+                                    RNNForecastingMeta.PKG,
+                                    "RNNForecasting.Error.NonExistentModelFile", space.environmentSubstitute(modelFile))); //$NON-NLS-1$
+        }
+
+        RNNForecastingModelLoader loader = new RNNForecastingModelLoader(modelF);
+        return loader.load(log);
+    }
+
+    /**
+     * Runs a number of dummy forecasts on synthetic priming data so that the JIT,
+     * the ND4J native backend and the network's buffers are warmed up before the
+     * first real batch arrives. The model's RNN state is restored afterwards.
+     *
+     * @param model the model to warm up
+     * @param numForecasts the number of dummy forecasts to run
+     * @throws InterruptedException if the thread is interrupted between
+     *           forecasts (e.g. the step is stopped while preloading)
+     * @throws Exception if a problem occurs
+     */
+    public static void warmUp(RNNForecastingModel model, int numForecasts) throws Exception {
+        Instances header = model.getHeader();
+        int primeSize = Math.max(model.getMaxLag(), 1) + 1;
+        long day = 24L * 60L * 60L * 1000L;
+
+        Instances dummy = new Instances(header, primeSize);
+        for (int i = 0; i < primeSize; i++) {
+            double[] vals = new double[header.numAttributes()];
+            for (int j = 0; j < vals.length; j++) {
+                Attribute att = header.attribute(j);
+                if (att.isDate()) {
+                    vals[j] = i * day;
+                } else if (att.isNumeric() || att.isNominal()) {
+                    vals[j] = 0;
+                } else {
+                    vals[j] = Utils.missingValue();
+                }
+            }
+            Instance inst = new DenseInstance(1.0, vals);
+            inst.setDataset(dummy);
+            dummy.add(inst);
+        }
+
+        List<Object> state = model.getPreviousState();
+        double[][] forecast = new double[1][model.getTargetFieldNames().size()];
+        try {
+            for (int i = 0; i < numForecasts; i++) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                model.primeForecaster(dummy);
+                model.forecastInto(1, forecast);
+            }
+        } finally {
+            if (state == null) {
+                model.clearPreviousState();
+            } else {
+                model.setPreviousState(state);
+            }
+        }
+    }
+
+    /**
+     * Finds a mapping between the attributes that a Weka model has been trained
+     * with and the incoming Kettle row format. Returns an array of indices, where
+     * the element at index 0 of the array is the index of the Kettle field that
+     * corresponds to the first attribute in the Instances structure, the element
+     * at index 1 is the index of the Kettle fields that corresponds to the second
+     * attribute, ...
+     *
+     * @param header the Instances header
+     * @param inputRowMeta the meta data for the incoming rows
+     * @return the mapping as an array of integer indices
+     */
+    public static int[] findMappings(Instances header,
+                                     RowMetaInterface inputRowMeta) {
+        // Instances header = m_model.getHeader();
+        int[] mappingIndexes = new int[header.numAttributes()];
+
+        HashMap<String, Integer> inputFieldLookup = new HashMap<String, Integer>();
+        for (int i = 0; i < inputRowMeta.size(); i++) {
+            ValueMetaInterface inField = inputRowMeta.getValueMeta(i);
+            inputFieldLookup.put(inField.getName(), Integer.valueOf(i));
+        }
+
+        // check each attribute in the header against what is incoming
+        for (int i = 0; i < header.numAttributes(); i++) {
+            Attribute temp = header.attribute(i);
+            String attName = temp.name();
+
+            // look for a matching name
+            Integer matchIndex = inputFieldLookup.get(attName);
+            boolean ok = false;
+            int status = NO_MATCH;
+            if (matchIndex != null) {
+                // check for type compatibility
+                ValueMetaInterface tempField = inputRowMeta.getValueMeta(matchIndex
+                        .intValue());
+                if (tempField.isNumeric() || tempField.isBoolean()) {
+                    if (temp.isNumeric()) {
+                        ok = true;
+                        status = 0;
+                    } else {
+                        status = TYPE_MISMATCH;
+                    }
+                } else if (tempField.isString()) {
+                    if (temp.isNominal() || temp.isString()) {
+                        ok = true;
+                        status = 0;
+                        // All we can assume is that this input field is ok.
+                        // Since we wont know what the possible values are
+                        // until the data is pumping throug, we will defer
+                        // the matching of legal values until then
+                    } else {
+                        status = TYPE_MISMATCH;
+                    }
+                } else if (tempField.isDate()) {
+                    if(temp.isDate()) {
+                        ok = true;
+                        status = 0;
+                    } else {
+                        status = TYPE_MISMATCH;
+                    }
+                } else {
+                    // any other type is a mismatch (might be able to do
+                    // something with dates at some stage)
+                    status = TYPE_MISMATCH;
+                }
+            }
+            if (ok) {
+                mappingIndexes[i] = matchIndex.intValue();
+            } else {
+                // mark this attribute as missing or type mismatch
+                mappingIndexes[i] = status;
+            }
+        }
+        return mappingIndexes;
+    }
+
+    /**
+     * Generates a batch of predictions (more specifically, an array of output
+     * rows containing all input Kettle fields plus new fields that hold the
+     * prediction(s)) for each incoming Kettle row given a Weka model.
+     *
+     * @param inputMeta the meta data for the incoming rows
+     * @param outputMeta the meta data for the output rows
+     * @param inputRows the values of the incoming row
+     * @param meta meta data for this step
+     * @return a Kettle row containing all incoming fields along with new ones
+     *         that hold the prediction(s)
+     * @exception Exception if an error occurs
+     */
+    public Object[][] generateForecast(RowMetaInterface inputMeta,
+                                       RowMetaInterface outputMeta, List<Object[]> inputRows,
+                                       RNNForecastingMeta meta) throws Exception {
+        return generateForecast(inputMeta, outputMeta, inputRows, meta, false);
+    }
+
+    /**
+     * Generates forecast rows from a batch of incoming rows. In window mode
+     * (streaming) the RNN state is carried from one window to the next, and
+     * only the rows added since the previous forecast are primed, since
+     * consecutive windows overlap; keyed windows, and windows that have to
+     * clear the state (or are checkpointed), are primed in full from a cleared
+     * state instead. Only the forecast rows are returned in window mode,
+     * because the incoming rows have already been passed on.
+     *
+     * @param inputMeta the meta data for the incoming rows
+     * @param outputMeta the meta data for the output rows
+     * @param inputRows the values of the incoming rows
+     * @param meta meta data for this step
+     * @param window true if the rows are a sliding window
+     * @return the output rows
+     * @exception Exception if an error occurs
+     */
+    public Object[][] generateForecast(RowMetaInterface inputMeta,
+                                       RowMetaInterface outputMeta, List<Object[]> inputRows,
+                                       RNNForecastingMeta meta, boolean window) throws Exception {
+        RNNForecastingModel model = getModel(); // copy of the model for this copy of the step
+        boolean clearState = meta.getClearPreviousState() || window;
+
+        if (m_seriesKeyIndex < 0) {
+            if (window && canStream(meta)) {
+                Object[][] result = forecastStream(model, inputMeta, inputRows);
+                if (result != null) {
+                    return result;
+                }
+            }
+            return forecastSeries(model, null, null, toInstances(inputMeta, inputRows, model),
+                    inputRows, window, clearState);
+        }
+
+        // Split the rows up by series, keeping the order in which the series first
+        // appear, and convert them here since instance construction isn't thread-safe
+        Map<String, List<Object[]>> seriesRows = new LinkedHashMap<String, List<Object[]>>();
+        ValueMetaInterface keyMeta = inputMeta.getValueMeta(m_seriesKeyIndex);
+        for (Object[] r : inputRows) {
+            String key = keyMeta.getString(r[m_seriesKeyIndex]);
+            List<Object[]> rows = seriesRows.get(key);
+            if (rows == null) {
+                rows = new ArrayList<Object[]>();
+                seriesRows.put(key, rows);
+            }
+            rows.add(r);
+        }
+
+        prefetchSeries(seriesRows.keySet());
+        List<SeriesTask> tasks = new ArrayList<SeriesTask>(seriesRows.size());
+        for (Map.Entry<String, List<Object[]>> series : seriesRows.entrySet()) {
+            String key = series.getKey();
+            List<Object[]> rows = series.getValue();
+            Object keyValue = rows.get(0)[m_seriesKeyIndex];
+            RNNForecastingLagBuffer lags = toLagBuffer(inputMeta, key, rows, model);
+            if (lags != null) {
+                tasks.add(new SeriesTask(key, keyValue, lags, inputMeta, rows, window, clearState));
+            } else {
+                tasks.add(new SeriesTask(key, keyValue, toInstances(inputMeta, rows, model), rows,
+                        window, clearState));
+            }
+        }
+        return forecastAll(tasks);
+    }
+
+    /**
+     * Check whether the windows of an unkeyed stream can carry the RNN state
+     * forward: the state mustn't be cleared for each forecast, and no
+     * checkpoint may be restored or made (checkpoints are kept per forecast)
+     */
+    private boolean canStream(RNNForecastingMeta meta) {
+        return !meta.getClearPreviousState() && m_checkpoint == null
+                && (m_restoredCheckpoint == null || !m_restoredCheckpoint.contains(null));
+    }
+
+    /**
+     * Convert the rows of a series into a buffer of their raw values, if the
+     * series can be primed from one (see {@link #canPrimeDirect})
+     *
+     * @return the buffer, or null if the series must be primed from instances
+     */
+    private RNNForecastingLagBuffer toLagBuffer(RowMetaInterface inputMeta, String key,
+                                                List<Object[]> inputRows, RNNForecastingModel model)
+            throws Exception {
+        if (!canPrimeDirect(key)) {
+            return null;
+        }
+        RNNForecastingDirectEngine engine = m_directEngine;
+        Instances header = model.getHeader();
+        if (m_vals == null || m_vals.length != header.numAttributes()) {
+            m_vals = new double[header.numAttributes()];
+        }
+        RNNForecastingLagBuffer lags = engine.newBuffer(inputRows.size());
+        for (Object[] r : inputRows) {
+            convertRow(inputMeta, r, m_mappingIndexes, header, m_vals);
+            lags.pushValues(m_vals);
+        }
+        // rows without target values (overlay rows) show up as missing values
+        return engine.canPrime(lags) ? lags : null;
+    }
+
+    /**
+     * Check whether a series can be primed from the raw values of its rows,
+     * without building instances: the network must be run directly, and no
+     * checkpoint of the series is restored or made (checkpoints are kept as
+     * instances)
+     *
+     * @param key the series key, or null if the rows aren't split into series
+     * @return true if the series can be primed from its raw values
+     */
+    private boolean canPrimeDirect(String key) throws Exception {
+        return m_useDirectEngine && m_directEngine != null && m_checkpoint == null
+                && (m_restoredCheckpoint == null || !m_restoredCheckpoint.contains(key));
+    }
+
+    /**
+     * Generates the forecast rows for the rows that have been passed on as
+     * they arrived, followed by the overlay rows (rows without target values)
+     * of each series with their predictions
+     *
+     * @param meta meta data for this step
+     * @return the forecast rows
+     * @exception Exception if an error occurs
+     */
+    public Object[][] generateHistoryForecast(RNNForecastingMeta meta) throws Exception {
+        RNNForecastingModel model = getModel();
+        boolean clearState = meta.getClearPreviousState();
+
+        if (m_seriesKeyIndex < 0) {
+            SeriesHistory history = m_history.get(null);
+            if (history == null) {
+                return new Object[0][];
+            }
+            calibrateOnHistory();
+            if (history.canPrimeDirect(null)) {
+                RNNForecastingLagBuffer lags = m_directEngine.newBuffer(history.m_store.size());
+                history.m_store.decodeInto(lags);
+                Object[][] result = forecastSeries(model, null, null, lags, history.m_overlayRows, true,
+                        clearState);
+                if (result != null) {
+                    return result;
+                }
+            }
+            return forecastSeries(model, null, null, history.m_store.toInstances(model.getHeader()),
+                    history.m_overlayRows, true, clearState);
+        }
+
+        prefetchSeries(m_history.keySet());
+        calibrateOnHistory();
+        List<SeriesTask> tasks = new ArrayList<SeriesTask>(m_history.size());
+        for (Map.Entry<String, SeriesHistory> series : m_history.entrySet()) {
+            String key = series.getKey();
+            SeriesHistory history = series.getValue();
+            tasks.add(new SeriesTask(key, history.m_keyValue, history.m_store,
+                    history.m_overlayRows, history.canPrimeDirect(key), clearState));
+        }
+        return forecastAll(tasks);
+    }
+
+    /**
+     * Calibrate the direct engine, if it is to be used and hasn't been tried
+     * yet, on the first series history that is long enough. History forecasts
+     * are made all at once, so this lets every series be primed from its raw
+     * values rather than only those forecast after the calibration.
+     */
+    private void calibrateOnHistory() throws Exception {
+        if (!m_useDirectEngine || m_directEngineTried) {
+            return;
+        }
+        int minRows = RNNForecastingDirectEngine.minSampleRows(m_model);
+        for (SeriesHistory history : m_history.values()) {
+            if (history.m_overlayRows.isEmpty() && history.m_store.size() >= minRows
+                    && calibrateDirectEngine(m_model, history.m_store.toInstances(m_model.getHeader()))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forecast series in parallel, each on one of the model replicas, or in
+     * batches if asked (see {@link #batchSeries})
+     *
+     * @param series the task for each series
+     * @return the output rows of all the series, in the order of the tasks
+     * @exception Exception if an error occurs
+     */
+    private Object[][] forecastAll(List<SeriesTask> series) throws Exception {
+        List<Callable<Object[][]>> tasks = batchSeries(series);
+        startSeriesPool(Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+        List<Object[]> result = new ArrayList<Object[]>();
+        for (Future<Object[][]> rows : m_seriesPool.invokeAll(tasks)) {
+            try {
+                result.addAll(Arrays.asList(rows.get()));
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof Exception) {
+                    throw (Exception) ex.getCause();
+                }
+                throw ex;
+            }
+        }
+        return result.toArray(new Object[result.size()][]);
+    }
+
+    /**
+     * Group runs of consecutive series that can be primed from their raw
+     * values into batches of up to the series batch size, each to be run
+     * through the network together by one thread. Other series are forecast
+     * on their own.
+     *
+     * @param series the task for each series
+     * @return the tasks to run, in the same order as the series
+     */
+    private List<Callable<Object[][]>> batchSeries(List<SeriesTask> series) {
+        List<Callable<Object[][]>> tasks = new ArrayList<Callable<Object[][]>>(series.size());
+        if (m_seriesBatchSize <= 1 || m_directEngine == null) {
+            tasks.addAll(series);
+            return tasks;
+        }
+        List<SeriesTask> batch = new ArrayList<SeriesTask>();
+        for (SeriesTask task : series) {
+            boolean batchable = task.m_primeDirect && task.m_key != null;
+            if (!batch.isEmpty() && (!batchable || batch.size() == m_seriesBatchSize)) {
+                addBatch(tasks, batch);
+                batch = new ArrayList<SeriesTask>();
+            }
+            if (batchable) {
+                batch.add(task);
+            } else {
+                tasks.add(task);
+            }
+        }
+        addBatch(tasks, batch);
+        return tasks;
+    }
+
+    /**
+     * Add a batch of series to the tasks to run (a batch of one series is
+     * forecast on its own)
+     */
+    private void addBatch(List<Callable<Object[][]>> tasks, List<SeriesTask> batch) {
+        if (batch.size() == 1) {
+            tasks.add(batch.get(0));
+        } else if (!batch.isEmpty()) {
+            tasks.add(new BatchTask(batch));
+        }
+    }
+
+    /**
+     * Forecasts a batch of series, all primed from the raw values of their
+     * rows, by running them through the network of one model replica as the
+     * rows of one minibatch (see {@link RNNForecastingDirectEngine#forecastBatch}).
+     * A series the engine can't prime after all is forecast on its own.
+     */
+    private class BatchTask implements Callable<Object[][]> {
+        private final List<SeriesTask> m_series;
+
+        BatchTask(List<SeriesTask> series) {
+            m_series = series;
+        }
+
+        public Object[][] call() throws Exception {
+            RNNForecastingModel replica = m_replicas.take();
+            try {
+                if (replica.getDirectEngine() == null) {
+                    replica.setDirectEngine(m_directEngine);
+                }
+                RNNForecastingDirectEngine engine = replica.getDirectEngine();
+                int steps = m_plan.getHorizon();
+                boolean dated = m_plan.getDateIndex() >= 0 || engine.usesTimeStamps();
+
+                Object[][][] results = new Object[m_series.size()][][];
+                List<Integer> batched = new ArrayList<Integer>();
+                List<RNNForecastingLagBuffer> rows = new ArrayList<RNNForecastingLagBuffer>();
+                List<List<Object>> states = new ArrayList<List<Object>>();
+                for (int i = 0; i < m_series.size(); i++) {
+                    SeriesTask task = m_series.get(i);
+                    RNNForecastingLagBuffer lags = task.lags();
+                    if (engine.canPrime(lags)) {
+                        batched.add(i);
+                        rows.add(lags);
+                        states.add(task.m_clearState ? null : m_seriesStates.get(task.m_key));
+                    } else {
+                        results[i] = task.forecast(replica);
+                    }
+                }
+
+                if (!batched.isEmpty()) {
+                    long[][] dates = new long[batched.size()][];
+                    if (dated) {
+                        for (int b = 0; b < dates.length; b++) {
+                            dates[b] = replica.getForecastTimeStamps(steps, rows.get(b).lastTimeStamp());
+                        }
+                    }
+                    double[][][] forecast = new double[batched.size()][steps][m_plan.numTargets()];
+                    List<List<Object>> finalStates = engine.forecastBatch(rows, states, steps,
+                            engine.usesTimeStamps() ? dates : null, forecast);
+                    m_batches.incrementAndGet();
+                    m_batchedSeries.addAndGet(batched.size());
+                    for (int b = 0; b < dates.length; b++) {
+                        SeriesTask task = m_series.get(batched.get(b));
+                        Object[][] result = toOutputRows(task.m_inputRows, rows.get(b).size(),
+                                task.m_forecastOnly, forecast[b], m_plan.getDateIndex() >= 0 ? dates[b] : null);
+                        finishSeries(task.m_key, task.m_keyValue, result, finalStates.get(b));
+                        results[batched.get(b)] = result;
+                    }
+                }
+
+                List<Object[]> all = new ArrayList<Object[]>();
+                for (Object[][] result : results) {
+                    all.addAll(Arrays.asList(result));
+                }
+                return all.toArray(new Object[all.size()][]);
+            } finally {
+                m_replicas.put(replica);
+            }
+        }
+    }
+
+    /**
+     * Forecasts one series of rows within a batch, on a model replica borrowed
+     * from the pool. The series is primed from the raw values of its rows
+     * where possible, otherwise from instances.
+     */
+    private class SeriesTask implements Callable<Object[][]> {
+        private final String m_key;
+        private final Object m_keyValue;
+        private final Instances m_batch;
+        private final RNNForecastingLagBuffer m_lags;
+        private final RowMetaInterface m_inputMeta;
+        private final RNNForecastingHistoryStore m_store;
+        private final boolean m_primeDirect;
+        private final List<Object[]> m_inputRows;
+        private final boolean m_forecastOnly;
+        private final boolean m_clearState;
+        private RNNForecastingLagBuffer m_decoded;
+
+        SeriesTask(String key, Object keyValue, Instances batch, List<Object[]> inputRows,
+                   boolean forecastOnly, boolean clearState) {
+            m_key = key;
+            m_keyValue = keyValue;
+            m_batch = batch;
+            m_lags = null;
+            m_inputMeta = null;
+            m_store = null;
+            m_primeDirect = false;
+            m_inputRows = inputRows;
+            m_forecastOnly = forecastOnly;
+            m_clearState = clearState;
+        }
+
+        /**
+         * Forecast from the raw values of the rows, which are only converted
+         * to instances (under the lock, as conversion isn't thread-safe) if
+         * the replica can't be primed from them after all
+         */
+        SeriesTask(String key, Object keyValue, RNNForecastingLagBuffer lags,
+                   RowMetaInterface inputMeta, List<Object[]> inputRows, boolean forecastOnly,
+                   boolean clearState) {
+            m_key = key;
+            m_keyValue = keyValue;
+            m_batch = null;
+            m_lags = lags;
+            m_inputMeta = inputMeta;
+            m_store = null;
+            m_primeDirect = true;
+            m_inputRows = inputRows;
+            m_forecastOnly = forecastOnly;
+            m_clearState = clearState;
+        }
+
+        /**
+         * Forecast from a series history, decoding it when the task runs
+         */
+        SeriesTask(String key, Object keyValue, RNNForecastingHistoryStore store,
+                   List<Object[]> overlayRows, boolean primeDirect, boolean clearState) {
+            m_key = key;
+            m_keyValue = keyValue;
+            m_batch = null;
+            m_lags = null;
+            m_inputMeta = null;
+            m_store = store;
+            m_primeDirect = primeDirect;
+            m_inputRows = overlayRows;
+            m_forecastOnly = true;
+            m_clearState = clearState;
+        }
+
+        public Object[][] call() throws Exception {
+            RNNForecastingModel replica = m_replicas.take();
+            try {
+                return forecast(replica);
+            } finally {
+                m_replicas.put(replica);
+            }
+        }
+
+        /**
+         * Get the raw values of the rows, decoding a series history the
+         * first time
+         */
+        RNNForecastingLagBuffer lags() throws Exception {
+            if (m_lags != null) {
+                return m_lags;
+            }
+            if (m_decoded == null) {
+                m_decoded = m_directEngine.newBuffer(m_store.size());
+                m_store.decodeInto(m_decoded);
+            }
+            return m_decoded;
+        }
+
+        /**
+         * Forecast the series on a replica held by the calling thread
+         */
+        Object[][] forecast(RNNForecastingModel replica) throws Exception {
+            if (m_primeDirect) {
+                Object[][] result = forecastSeries(replica, m_key, m_keyValue, lags(), m_inputRows,
+                        m_forecastOnly, m_clearState);
+                if (result != null) {
+                    return result;
+                }
+            }
+            Instances batch;
+            if (m_batch != null) {
+                batch = m_batch;
+            } else if (m_store != null) {
+                batch = m_store.toInstances(replica.getHeader());
+            } else {
+                synchronized (RNNForecastingData.this) {
+                    batch = toInstances(m_inputMeta, m_inputRows, replica);
+                }
+            }
+            return forecastSeries(replica, m_key, m_keyValue, batch, m_inputRows, m_forecastOnly,
+                    m_clearState);
+        }
+    }
+
+    /**
+     * Convert rows into Instances with the model's header
+     */
+    private Instances toInstances(RowMetaInterface inputMeta, List<Object[]> inputRows,
+                                  RNNForecastingModel model) {
+        Instances batch = new Instances(model.getHeader(), inputRows.size());
+        // loop through rows and make each one an Instance object, part of Instances
+        for (Object[] r : inputRows) {
+            Instance inst = constructInstance(inputMeta, r, m_mappingIndexes, model, true);
+            batch.add(inst);
+        }
+        return batch;
+    }
+
+    /**
+     * Generates the forecast rows for the rows held in the priming buffer,
+     * followed by any overlay rows (rows without target values) that were kept.
+     * The buffered rows themselves have already been passed on.
+     *
+     * @param inputMeta the meta data for the incoming rows
+     * @param outputMeta the meta data for the output rows
+     * @param meta meta data for this step
+     * @return the forecast rows
+     * @exception Exception if an error occurs
+     */
+    public Object[][] generateBufferedForecast(RowMetaInterface inputMeta,
+                                               RowMetaInterface outputMeta,
+                                               RNNForecastingMeta meta) throws Exception {
+        RNNForecastingModel model = getModel();
+
+        Instances batch = m_primingBuffer.toInstances(model.getHeader());
+        for (Object[] r : m_overlayRows) {
+            batch.add(constructInstance(inputMeta, r, m_mappingIndexes, model, true));
+        }
+
+        return forecastSeries(model, null, null, batch, m_overlayRows, true,
+                meta.getClearPreviousState());
+    }
+
+    /**
+     * Prime the model with a (single) series and forecast it
+     *
+     * @param model the model to use
+     * @param key the series key, or null if the rows are not split into series
+     * @param keyValue the value of the series key field for the forecast rows
+     * @param batch the rows of the series, converted to instances
+     * @param inputRows the rows of the series
+     * @param forecastOnly true if only forecast rows are to be output
+     * @param clearState true if the RNN state is to be cleared before priming
+     * @return the output rows for the series
+     */
+    private Object[][] forecastSeries(RNNForecastingModel model, String key, Object keyValue,
+                                      Instances batch, List<Object[]> inputRows,
+                                      boolean forecastOnly, boolean clearState) throws Exception {
+        Instances primeData = new Instances(model.getHeader());
+        Instances overlayData = new Instances(model.getHeader());
+        for (Instance instance : batch) {
+            if (!instance.classIsMissing()) {
+                primeData.add(instance);
+            } else {
+                overlayData.add(instance);
+            }
+        }
+        int numPrimeRows = primeData.numInstances();
+
+        RNNForecastingCheckpoint.Series restored = m_restoredCheckpoint == null ? null
+                : m_restoredCheckpoint.remove(key);
+        if (restored != null) {
+            // carry on from the previous run: its last rows give the lagged
+            // variables, and rows it has already seen are not primed with again
+            primeData = restored.prepend(primeData, m_plan.getModelDateIndex());
+        }
+
+        useDirectEngine(model, primeData);
+
+        Object[][] result;
+        if (restored != null) {
+            if (restored.getState() == null) {
+                model.clearPreviousState();
+            } else {
+                model.setPreviousState(restored.getState());
+            }
+        } else {
+            startSeries(model, key, clearState);
+        }
+
+        // Prime forecaster with historical enough data to create lagged variables
+        model.primeForecaster(primeData);
+
+        if (m_checkpoint != null && primeData.numInstances() > 0) {
+            m_checkpoint.put(key, model.getPreviousState(), primeData, model.getMaxLag(),
+                    m_plan.getModelDateIndex());
+        }
+
+        // Generate output rows. Operations differ if we are using overlay data
+        if (overlayData.numInstances() == 0) {
+            result = generateOutputRows(model, inputRows, numPrimeRows, forecastOnly);
+        } else {
+            result = generateOverlayOutputRows(model, inputRows, numPrimeRows, overlayData,
+                    forecastOnly);
+        }
+
+        finishSeries(model, key, keyValue, result);
+        return result;
+    }
+
+    /**
+     * Prime the model with a (single) series straight from the raw values of
+     * its rows, and forecast it. The series must have no overlay rows, and no
+     * checkpoint of it may be restored or made (see {@link #canPrimeDirect}).
+     *
+     * @param model the model to use
+     * @param key the series key, or null if the rows are not split into series
+     * @param keyValue the value of the series key field for the forecast rows
+     * @param rows the raw values of the rows of the series
+     * @param inputRows the rows of the series
+     * @param forecastOnly true if only forecast rows are to be output
+     * @param clearState true if the RNN state is to be cleared before priming
+     * @return the output rows for the series, or null if the model can't be
+     *         primed from the raw values (the series must then be forecast
+     *         from instances)
+     */
+    private Object[][] forecastSeries(RNNForecastingModel model, String key, Object keyValue,
+                                      RNNForecastingLagBuffer rows, List<Object[]> inputRows,
+                                      boolean forecastOnly, boolean clearState) throws Exception {
+        if (model.getDirectEngine() == null) {
+            model.setDirectEngine(m_directEngine);
+        }
+        startSeries(model, key, clearState);
+        if (!model.primeForecaster(rows)) {
+            return null;
+        }
+        Object[][] result = generateOutputRows(model, inputRows, rows.size(), forecastOnly);
+        finishSeries(model, key, keyValue, result);
+        return result;
+    }
+
+    /**
+     * Set the RNN state a series is primed from: its own state if the rows
+     * are split into series, and a cleared state if asked
+     */
+    private void startSeries(RNNForecastingModel model, String key, boolean clearState)
+            throws Exception {
+        if (key != null) {
+            // each series carries its own RNN state
+            List<Object> state = m_seriesStates.get(key);
+            if (state == null || clearState) {
+                model.clearPreviousState();
+            } else {
+                model.setPreviousState(state);
+            }
+        } else if (clearState) {
+            model.clearPreviousState();
+        }
+    }
+
+    /**
+     * Keep the RNN state of a series after forecasting it, and give its
+     * forecast rows the series key
+     */
+    private void finishSeries(RNNForecastingModel model, String key, Object keyValue,
+                              Object[][] result) throws Exception {
+        finishSeries(key, keyValue, result, key != null ? model.getPreviousState() : null);
+    }
+
+    /**
+     * Keep the RNN state a series ended with, and give its forecast rows the
+     * series key
+     */
+    private void finishSeries(String key, Object keyValue, Object[][] result, List<Object> state)
+            throws Exception {
+        if (key != null) {
+            m_seriesStates.put(key, state);
+
+            // forecast rows are new rows, so give them the series key
+            for (Object[] row : result) {
+                if (row[m_seriesKeyIndex] == null) {
+                    row[m_seriesKeyIndex] = keyValue;
+                }
+            }
+        }
+        afterForecast();
+    }
+
+    /**
+     * Set whether to prime and forecast by running the network directly
+     *
+     * @param use true to run the network directly, if the model allows it
+     */
+    public void setUseDirectEngine(boolean use) {
+        m_useDirectEngine = use;
+    }
+
+    /**
+     * Get the engine that runs the network directly
      *
-     * @param model the model to use
+     * @return the engine, or null if it isn't used (yet)
      */
-    public void setModel(RNNForecastingModel model) {
-        m_model = model;
+    public RNNForecastingDirectEngine getDirectEngine() {
+        return m_directEngine;
     }
 
     /**
-     * Get the model that this copy of the step is using
+     * Get the reason the network can't be run directly
      *
-     * @return the model that this copy of the step is using
+     * @return the reason, or null if it can (or isn't to be used)
      */
-    public RNNForecastingModel getModel() {
-        return m_model;
+    public String getDirectEngineReason() {
+        if (m_useDirectEngine && !m_directEngineTried && m_model != null) {
+            return BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecastingDirectEngine.Unsupported.SampleTooSmall", //$NON-NLS-1$
+                    RNNForecastingDirectEngine.minSampleRows(m_model));
+        }
+        return m_directEngineReason;
     }
 
     /**
-     * Get the meta data for the output format
+     * Calibrate the direct engine on a series, if it is long enough (and has
+     * no missing values) and the engine hasn't been tried yet. Calibration
+     * copies the model, so it must be given a model that no other thread is
+     * using: the replica of the calling series task, or this copy's model
+     * while no series are being forecast.
      *
-     * @return a <code>RowMetaInterface</code> value
+     * @param model the model to calibrate on, held by the calling thread
+     * @param primeData the rows of the series
+     * @return true if the engine has now been tried (whether or not the model
+     *         can be run directly)
+     * @throws Exception if the model can't be run
      */
-    public RowMetaInterface getOutputRowMeta() {
-        return m_outputRowMeta;
+    private boolean calibrateDirectEngine(RNNForecastingModel model, Instances primeData)
+            throws Exception {
+        synchronized (this) {
+            if (!m_directEngineTried && RNNForecastingDirectEngine.isCalibrationSample(model, primeData)) {
+                m_directEngineTried = true;
+                try {
+                    m_directEngine = RNNForecastingDirectEngine.calibrate(model, primeData);
+                    m_directEngine.setReuseBuffers(m_reuseBuffers);
+                } catch (RNNForecastingDirectEngine.UnsupportedModelException ex) {
+                    m_directEngineReason = ex.getMessage();
+                }
+            }
+            return m_directEngineTried;
+        }
     }
 
     /**
-     * Set the meta data for the output format
+     * Calibrate the direct engine on the first series that is long enough
+     * (and has no missing values), and install it in a model copy that doesn't have it yet
      *
-     * @param rmi a <code>RowMetaInterface</code> value
+     * @param model the model copy about to prime
+     * @param primeData the rows it is about to prime with
+     * @throws Exception if the model can't be run
      */
-    public void setOutputRowMeta(RowMetaInterface rmi) {
-        m_outputRowMeta = rmi;
+    private void useDirectEngine(RNNForecastingModel model, Instances primeData) throws Exception {
+        if (!m_useDirectEngine) {
+            return;
+        }
+        calibrateDirectEngine(model, primeData);
+        RNNForecastingDirectEngine engine = m_directEngine;
+        if (engine != null && model.getDirectEngine() == null) {
+            model.setDirectEngine(engine);
+        }
     }
 
     /**
-     * Finds a mapping between the attributes that a Weka model has been trained
-     * with and the incoming Kettle row format. Returns an array of indices, where
-     * the element at index 0 of the array is the index of the Kettle field that
-     * corresponds to the first attribute in the Instances structure, the element
-     * at index 1 is the index of the Kettle fields that corresponds to the second
-     * attribute, ...
+     * Set whether to reuse the arrays fed to the network when it is run
+     * directly, rather than making new ones at each step
      *
-     * @param header the Instances header
-     * @param inputRowMeta the meta data for the incoming rows
-     * @param log the log to use
+     * @param reuse true to reuse the arrays
      */
-    public void mapIncomingRowMetaData(Instances header,
-                                       RowMetaInterface inputRowMeta, LogChannelInterface log) {
-        m_mappingIndexes = RNNForecastingData.findMappings(header, inputRowMeta);
+    public void setReuseBuffers(boolean reuse) {
+        m_reuseBuffers = reuse;
+        if (m_directEngine != null) {
+            m_directEngine.setReuseBuffers(reuse);
+        }
     }
 
-    public static boolean modelFileExists(String modelFile, VariableSpace space)
-            throws Exception {
-
-        modelFile = space.environmentSubstitute(modelFile);
-        FileObject modelF = KettleVFS.getFileObject(modelFile);
-
-        return modelF.exists();
+    /**
+     * Set the policy that keeps the off-heap memory used by ND4J within budget
+     *
+     * @param memory the policy, or null for none
+     */
+    public void setMemory(RNNForecastingMemory memory) {
+        m_memory = memory;
     }
 
     /**
-     * Loads a binary serialized Java object containing the forecaster
+     * Get the policy that keeps the off-heap memory used by ND4J within budget
      *
-     * @param modelFile a <code>File</code> value
-     * @return the model
-     * @throws Exception if there is a problem laoding the model.
+     * @return the policy, or null if there is none
      */
-    public static RNNForecastingModel loadSerializedModel(String modelFile,
-                                                       LogChannelInterface log, VariableSpace space) throws Exception {
-        Object model = null;
-        Instances header = null;
-        File sFile = null;
-
-        modelFile = space.environmentSubstitute(modelFile);
-        FileObject modelF = KettleVFS.getFileObject(modelFile);
+    public RNNForecastingMemory getMemory() {
+        return m_memory;
+    }
 
-        if (!modelF.exists()) {
-            throw new Exception(
-                    BaseMessages
-                            .getString(
-                                    RNNForecastingMeta.PKG,
-                                    "RNNForecasting.Error.NonExistentModelFile", space.environmentSubstitute(modelFile))); //$NON-NLS-1$
+    /**
+     * Let the memory policy (if any) collect garbage after a forecast
+     */
+    private void afterForecast() {
+        RNNForecastingMemory memory = m_memory;
+        if (memory != null) {
+            memory.afterForecast();
         }
-
-        sFile = new File(modelFile);
-        InputStream is = KettleVFS.getInputStream(modelF);
-        BufferedInputStream buff = new BufferedInputStream(is);
-        InputStream stream = buff;
-        ObjectInputStream oi = new ObjectInputStream(new FileInputStream(sFile));
-
-        model = oi.readObject();
-
-        // try and grab the header
-        header = (Instances) oi.readObject();
-
-        oi.close();
-
-        RNNForecastingModel wfm = RNNForecastingModel.createScorer(model);
-        wfm.setHeader(header);
-
-        wfm.loadBaseModel(modelFile);
-        wfm.loadSerializedState(modelFile);
-
-        return wfm;
     }
 
     /**
-     * Finds a mapping between the attributes that a Weka model has been trained
-     * with and the incoming Kettle row format. Returns an array of indices, where
-     * the element at index 0 of the array is the index of the Kettle field that
-     * corresponds to the first attribute in the Instances structure, the element
-     * at index 1 is the index of the Kettle fields that corresponds to the second
-     * attribute, ...
+     * Set the most series to run through the network at once
      *
-     * @param header the Instances header
-     * @param inputRowMeta the meta data for the incoming rows
-     * @return the mapping as an array of integer indices
+     * @param seriesBatchSize the number of series, 1 to run each on its own
      */
-    public static int[] findMappings(Instances header,
-                                     RowMetaInterface inputRowMeta) {
-        // Instances header = m_model.getHeader();
-        int[] mappingIndexes = new int[header.numAttributes()];
-
-        HashMap<String, Integer> inputFieldLookup = new HashMap<String, Integer>();
-        for (int i = 0; i < inputRowMeta.size(); i++) {
-            ValueMetaInterface inField = inputRowMeta.getValueMeta(i);
-            inputFieldLookup.put(inField.getName(), Integer.valueOf(i));
-        }
-
-        // check each attribute in the header against what is incoming
-        for (int i = 0; i < header.numAttributes(); i++) {
-            Attribute temp = header.attribute(i);
-            String attName = temp.name();
-
-            // look for a matching name
-            Integer matchIndex = inputFieldLookup.get(attName);
-            boolean ok = false;
-            int status = NO_MATCH;
-            if (matchIndex != null) {
-                // check for type compatibility
-                ValueMetaInterface tempField = inputRowMeta.getValueMeta(matchIndex
-                        .intValue());
-                if (tempField.isNumeric() || tempField.isBoolean()) {
-                    if (temp.isNumeric()) {
-                        ok = true;
-                        status = 0;
-                    } else {
-                        status = TYPE_MISMATCH;
-                    }
-                } else if (tempField.isString()) {
-                    if (temp.isNominal() || temp.isString()) {
-                        ok = true;
-                        status = 0;
-                        // All we can assume is that this input field is ok.
-                        // Since we wont know what the possible values are
-                        // until the data is pumping throug, we will defer
-                        // the matching of legal values until then
-                    } else {
-                        status = TYPE_MISMATCH;
-                    }
-                } else if (tempField.isDate()) {
-                    if(temp.isDate()) {
-                        ok = true;
-                        status = 0;
-                    } else {
-                        status = TYPE_MISMATCH;
-                    }
-                } else {
-                    // any other type is a mismatch (might be able to do
-                    // something with dates at some stage)
-                    status = TYPE_MISMATCH;
-                }
-            }
-            if (ok) {
-                mappingIndexes[i] = matchIndex.intValue();
-            } else {
-                // mark this attribute as missing or type mismatch
-                mappingIndexes[i] = status;
-            }
-        }
-        return mappingIndexes;
+    public void setSeriesBatchSize(int seriesBatchSize) {
+        m_seriesBatchSize = Math.max(seriesBatchSize, 1);
     }
 
     /**
-     * Generates a batch of predictions (more specifically, an array of output
-     * rows containing all input Kettle fields plus new fields that hold the
-     * prediction(s)) for each incoming Kettle row given a Weka model.
+     * Get the number of batches of series run through the network together
      *
-     * @param inputMeta the meta data for the incoming rows
-     * @param outputMeta the meta data for the output rows
-     * @param inputRows the values of the incoming row
-     * @param meta meta data for this step
-     * @return a Kettle row containing all incoming fields along with new ones
-     *         that hold the prediction(s)
-     * @exception Exception if an error occurs
+     * @return the number of batches
      */
-    public Object[][] generateForecast(RowMetaInterface inputMeta,
-                                       RowMetaInterface outputMeta, List<Object[]> inputRows,
-                                       RNNForecastingMeta meta) throws Exception {
-        RNNForecastingModel model = getModel(); // copy of the model for this copy of the step
-        model.getHeader().setClassIndex(getClassIndexes(model)[0]);
-
-        Instances batch = new Instances(model.getHeader(), inputRows.size());
-        // loop through rows and make each one an Instance object, part of Instances
-        for (Object[] r : inputRows) {
-            Instance inst = constructInstance(inputMeta, r, m_mappingIndexes, model, true);
-            batch.add(inst);
-        }
+    public long getBatches() {
+        return m_batches.get();
+    }
 
-        Instances primeData = new Instances(model.getHeader());
-        Instances overlayData = new Instances(model.getHeader());
-        for (Instance instance : batch) {
-            if (!instance.classIsMissing()) {
-                primeData.add(instance);
-            } else {
-                overlayData.add(instance);
-            }
-        }
+    /**
+     * Get the number of series forecast in batches
+     *
+     * @return the number of series
+     */
+    public long getBatchedSeries() {
+        return m_batchedSeries.get();
+    }
 
-        int[] targetIndexes = getTargetColumns(model, inputMeta);
-        int dateIndex = 0;
-        for (int i = 0; i < inputMeta.getFieldNames().length; i++) {
-            if (batch.attribute(i).isDate())
-                dateIndex = i;
-        }
+    /**
+     * Whether batching was asked for, but the network isn't run directly
+     * (batches are run by the direct engine)
+     *
+     * @return true if series are run one at a time instead
+     */
+    public boolean isBatchingUnavailable() {
+        return m_seriesBatchSize > 1 && m_model != null
+                && (!m_useDirectEngine || (m_directEngineTried && m_directEngine == null));
+    }
 
-        int modelDateIndex = 0;
-        for (int i = 0 ; i < model.getHeader().numAttributes(); i++) {
-            if (model.getHeader().attribute(i).isDate()) {
-                modelDateIndex = i;
-                break;
-            }
+    /**
+     * Create the pool used to forecast series in parallel, with one model
+     * replica per thread. Replicas are copies of this copy's model, so they
+     * share its network parameters. This copy's model is the first replica.
+     *
+     * @param parallelism the number of threads (and replicas) to use
+     * @throws Exception if the model can't be copied
+     */
+    private void startSeriesPool(int parallelism) throws Exception {
+        parallelism = Math.max(parallelism, 1);
+        if (m_seriesPool != null && m_seriesPool.getParallelism() >= parallelism) {
+            return;
         }
+        stopSeriesPool();
 
-        if (meta.getClearPreviousState()) {
-            model.clearPreviousState();
+        List<RNNForecastingModel> replicas = new ArrayList<RNNForecastingModel>(parallelism);
+        replicas.add(m_model);
+        while (replicas.size() < parallelism) {
+            replicas.add(m_model.copy());
         }
 
-        // Prime forecaster with historical enough data to create lagged variables
-        model.primeForecaster(primeData);
+        m_replicas = new LinkedBlockingQueue<RNNForecastingModel>(replicas);
+        m_seriesPool = new ForkJoinPool(parallelism);
+    }
 
-        // Generate output rows. Operations differ if we are using overlay data
-        Object[][] result = null;
-        if (overlayData.numInstances() == 0) {
-            result = generateOutputRows(model, inputRows, outputMeta, meta, primeData, dateIndex,
-                    modelDateIndex, targetIndexes);
-        } else {
-            result = generateOverlayOutputRows(model, inputRows, outputMeta, primeData, overlayData,
-                    targetIndexes);
+    /**
+     * Shut down the pool used to forecast series in parallel
+     */
+    public void stopSeriesPool() {
+        if (m_seriesPool != null) {
+            m_seriesPool.shutdown();
+            m_seriesPool = null;
+            m_replicas = null;
         }
-        return result;
     }
 
-
     private Object[][] generateOutputRows(RNNForecastingModel model, List<Object[]> inputRows,
-                                          RowMetaInterface outputMeta, RNNForecastingMeta meta, Instances primeData,
-                                          int dateIndex, int modelDateIndex, int[] targetIndexes) throws Exception {
+                                          int numPrimeRows, boolean forecastOnly) throws Exception {
 
-        int stepsToForecast = new Integer(meta.getStepsToForecast());
+        RNNForecastingPlan plan = m_plan;
+        int stepsToForecast = plan.getHorizon();
 
         // dates must be generated *before* forecasting
-        List<String> dates = model.getForecastDates(stepsToForecast, primeData.lastInstance(), modelDateIndex);
-        List<List<NumericPrediction>> forecast = model.forecast(stepsToForecast);
+        long[] dates = null;
+        if (plan.getDateIndex() >= 0) {
+            dates = model.getForecastTimeStamps(stepsToForecast);
+        }
+        double[][] forecast = new double[stepsToForecast][plan.numTargets()];
+        model.forecastInto(stepsToForecast, forecast);
+        return toOutputRows(inputRows, numPrimeRows, forecastOnly, forecast, dates);
+    }
+
+    /**
+     * Make the output rows of a series from its forecast
+     *
+     * @param inputRows the rows of the series
+     * @param numPrimeRows the number of rows primed with
+     * @param forecastOnly true if only forecast rows are to be output
+     * @param forecast the predictions (steps by targets)
+     * @param dates the time stamps of the steps, or null if there is no date
+     *          field to output
+     * @return the output rows
+     */
+    private Object[][] toOutputRows(List<Object[]> inputRows, int numPrimeRows, boolean forecastOnly,
+                                    double[][] forecast, long[] dates) throws Exception {
+        RNNForecastingPlan plan = m_plan;
+        int stepsToForecast = forecast.length;
 
         // Output rows
-        Object[][] result = new Object[stepsToForecast + primeData.numInstances()][model.getHeader().numAttributes()];
+        int offset = forecastOnly ? 0 : numPrimeRows;
+        Object[][] result = new Object[stepsToForecast + offset][];
 
         // First copy the priming data to the output rows
-        for (int i = 0; i < primeData.numInstances(); i++) {
-            result[i] = RowDataUtil.resizeArray(inputRows.get(i), outputMeta.size());
+        for (int i = 0; i < offset; i++) {
+            result[i] = plan.convertPassThrough(
+                    RowDataUtil.resizeArray(inputRows.get(i), plan.getOutputSize()));
         }
 
         // Now generate prediction rows
         for (int i = 0; i < stepsToForecast; i++) {
-            result[i + primeData.numInstances()] = RowDataUtil.allocateRowData(outputMeta.size());
-            ValueMetaInterface newVM = new ValueMeta("string", ValueMetaInterface.TYPE_STRING);
+            Object[] row = RowDataUtil.allocateRowData(plan.getOutputSize());
+            result[i + offset] = row;
 
-            List<NumericPrediction> prediction = forecast.get(i);
-
-            double[] predPerClass = classPredictions(prediction);
-            List<Double> predsDouble = new ArrayList<>(predPerClass.length);
-            List<String> preds = new ArrayList<>(predPerClass.length);
-
-            for (int j = 0; j < predPerClass.length; j++) {
-                predsDouble.add(predPerClass[j]);
-                preds.add(predsDouble.get(j).toString());
-                result[i + inputRows.size()][targetIndexes[j]] = newVM.convertToBinaryStringStorageType(preds.get(j));
+            for (int j = 0; j < forecast[i].length; j++) {
+                if (plan.getTargetIndex(j) >= 0) {
+                    row[plan.getTargetIndex(j)] = forecast[i][j];
+                }
             }
 
-            result[i + primeData.numInstances()][dateIndex] = newVM.convertToBinaryStringStorageType(dates.get(i));
+            if (dates != null) {
+                row[plan.getDateIndex()] = new Date(dates[i]);
+            }
         }
 
         return result;
     }
 
     private Object[][] generateOverlayOutputRows(RNNForecastingModel model, List<Object[]> inputRows,
-                                          RowMetaInterface outputMeta, Instances primeData,
-                                          Instances overlayData, int[] targetIndexes) throws Exception {
+                                          int numPrimeRows, Instances overlayData,
+                                          boolean forecastOnly) throws Exception {
 
+        RNNForecastingPlan plan = m_plan;
         overlayData.setClassIndex(-1);
 
         int stepsToForecast = overlayData.numInstances();
-        List<List<NumericPrediction>> forecast = model.forecast(stepsToForecast, overlayData);
-
-        // Output rows
-        Object[][] result = new Object[stepsToForecast + primeData.numInstances()][model.getHeader().numAttributes()];
-
-        // First copy all the input data to the output rows
-        for (int i = 0; i < inputRows.size(); i++) {
-            result[i] = RowDataUtil.resizeArray(inputRows.get(i), outputMeta.size());
+        double[][] forecast = new double[stepsToForecast][plan.numTargets()];
+        model.forecastInto(stepsToForecast, overlayData, forecast, null, null);
+
+        // Output rows. Only the overlay rows (with their predictions) if we
+        // are just after the forecast
+        int offset = forecastOnly ? 0 : numPrimeRows;
+        Object[][] result = new Object[stepsToForecast + offset][];
+
+        // First copy the input data to the output rows. The overlay rows are
+        // the last rows. Window rows are still needed for the next window, so
+        // they must not be written to
+        int first = inputRows.size() - result.length;
+        for (int i = 0; i < result.length; i++) {
+            Object[] row = inputRows.get(first + i);
+            result[i] = plan.convertPassThrough(forecastOnly
+                    ? RowDataUtil.createResizedCopy(row, plan.getOutputSize())
+                    : RowDataUtil.resizeArray(row, plan.getOutputSize()));
         }
 
         // Now populate the targets with predictions
         for (int i = 0; i < overlayData.numInstances(); i++) {
-            ValueMetaInterface newVM = new ValueMeta("string", ValueMetaInterface.TYPE_STRING);
-
-            List<NumericPrediction> prediction = forecast.get(i);
-
-            double[] predPerClass = classPredictions(prediction);
-            List<Double> predsDouble = new ArrayList<>(predPerClass.length);
-            List<String> preds = new ArrayList<>(predPerClass.length);
-            for (int j = 0; j < predPerClass.length; j++) {
-                predsDouble.add(predPerClass[j]);
-                preds.add(predsDouble.get(j).toString());
-                result[i + primeData.numInstances()][targetIndexes[j]] = newVM.convertToBinaryStringStorageType(preds.get(j));
-            }
-        }
-
-        return result;
-    }
-
-    private int[] getClassIndexes(RNNForecastingModel model) {
-        List<String> targetFieldNames = model.getTargetFieldNames();
-        int[] classIndexes = new int[targetFieldNames.size()];
-        for (int i = 0; i < targetFieldNames.size(); i++) {
-            for (int j = 0; j < targetFieldNames.size(); j++) {
-                if (model.getHeader().attribute(i).name().equalsIgnoreCase(targetFieldNames.get(j))) {
-                    classIndexes[i] = j;
-                }
-            }
-        }
-        return classIndexes;
-    }
-
-    private int[] getTargetColumns(RNNForecastingModel model, RowMetaInterface inputMeta) {
-        List<String> targetFieldNames = model.getTargetFieldNames();
-        int[] targetIndexes = new int[targetFieldNames.size()];
-        String[] fieldNames = inputMeta.getFieldNames();
-        for (int i = 0; i < targetFieldNames.size(); i++) {
-            for (int j = 0; j < fieldNames.length; j++) {
-                if (targetFieldNames.get(i).equalsIgnoreCase(fieldNames[j])) {
-                    targetIndexes[i] = j;
+            for (int j = 0; j < forecast[i].length; j++) {
+                if (plan.getTargetIndex(j) >= 0) {
+                    result[i + offset][plan.getTargetIndex(j)] = forecast[i][j];
                 }
             }
         }
-        return targetIndexes;
-    }
-
-    private double[] classPredictions(List<NumericPrediction> predAtStep) {
-        double[] predPerClass = new double[predAtStep.size()];
-
-        for (int i = 0; i < predAtStep.size(); i++) {
-            NumericPrediction predAtTarget = predAtStep.get(i);
-            predPerClass[i] = predAtTarget.predicted();
-        }
 
-        return predPerClass;
+        return result;
     }
 
     /**
@@ -451,80 +1941,70 @@ public class RNNForecastingData extends BaseStepData implements StepDataInterfac
             m_vals = new double[header.numAttributes()];
         }
 
-        for (int i = 0; i < header.numAttributes(); i++) {
-
-            if (mappingIndexes[i] >= 0) {
-                try {
-                    Object inputVal = inputRow[mappingIndexes[i]];
+        convertRow(inputMeta, inputRow, mappingIndexes, header, m_vals);
 
-                    Attribute temp = header.attribute(i);
-                    ValueMetaInterface tempField = inputMeta
-                            .getValueMeta(mappingIndexes[i]);
-                    int fieldType = tempField.getType();
+        Instance newInst = new DenseInstance(1.0, m_vals);
+        newInst.setDataset(header);
+        return newInst;
+    }
 
-                    // Check for missing value (null or empty string)
-                    if (tempField.isNull(inputVal)) {
-                        m_vals[i] = Utils.missingValue();
-                        continue;
-                    }
+    /**
+     * Convert incoming Kettle fields to attribute values using the
+     * pre-constructed attribute-to-field mapping data. The mapping is compiled
+     * into a converter from the model's header the first time, and again only
+     * when the model, the incoming row format or the mapping changes; the
+     * headers of the model's replicas share it, unless it sets values on the
+     * header itself.
+     *
+     * @param inputMeta the meta data for the incoming row
+     * @param inputRow the incoming row
+     * @param mappingIndexes the attribute-to-field mapping
+     * @param header the header of the model
+     * @param vals the array to fill in with the attribute values
+     */
+    private void convertRow(RowMetaInterface inputMeta, Object[] inputRow,
+                            int[] mappingIndexes, Instances header, double[] vals) {
+
+        Instances modelHeader = m_model.getHeader();
+        if (m_converter == null || m_converterHeader != modelHeader
+                || m_converterMeta != inputMeta || m_converterMapping != mappingIndexes) {
+            m_converter = compileConverter(modelHeader, inputMeta, mappingIndexes);
+            m_converterHeader = modelHeader;
+            m_converterMeta = inputMeta;
+            m_converterMapping = mappingIndexes;
+            m_replicaConverter = null;
+            m_replicaHeader = null;
+        }
+        RNNForecastingRowConverter converter = m_converter;
+        if (header != modelHeader && !converter.isShareable()) {
+            // string values are set on the replica's own header
+            if (m_replicaHeader != header) {
+                m_replicaConverter = compileConverter(header, inputMeta, mappingIndexes);
+                m_replicaHeader = header;
+            }
+            converter = m_replicaConverter;
+        }
+        converter.convert(inputRow, vals);
+    }
 
-                    switch (temp.type()) {
-                        case Attribute.DATE: {
-                            String s = tempField.getString(inputVal);
-                            m_vals[i] = temp.parseDate(s);
-                            break;
-                        }
-                        case Attribute.NUMERIC: {
-                            if (fieldType == ValueMetaInterface.TYPE_BOOLEAN) {
-                                Boolean b = tempField.getBoolean(inputVal);
-                                if (b.booleanValue()) {
-                                    m_vals[i] = 1.0;
-                                } else {
-                                    m_vals[i] = 0.0;
-                                }
-                            } else if (fieldType == ValueMetaInterface.TYPE_INTEGER) {
-                                Long t = tempField.getInteger(inputVal);
-                                m_vals[i] = t.longValue();
-                            } else {
-                                Double n = tempField.getNumber(inputVal);
-                                m_vals[i] = n.doubleValue();
-                            }
-                        }
-                        break;
-                        case Attribute.NOMINAL: {
-                            String s = tempField.getString(inputVal);
-                            // now need to look for this value in the attribute
-                            // in order to get the correct index
-                            int index = temp.indexOfValue(s);
-                            if (index < 0) {
-                                // set to missing value
-                                m_vals[i] = Utils.missingValue();
-                            } else {
-                                m_vals[i] = index;
-                            }
-                        }
-                        break;
-                        case Attribute.STRING: {
-                            String s = tempField.getString(inputVal);
-                            // Set the attribute in the header to contain just this string value
-                            temp.setStringValue(s);
-                            m_vals[i] = 0.0;
-                            break;
-                        }
-                        default:
-                            m_vals[i] = Utils.missingValue();
-                    }
-                } catch (Exception e) {
-                    m_vals[i] = Utils.missingValue();
+    /**
+     * Compile the attribute-to-field mapping for a header, with the step's
+     * label dictionaries
+     */
+    private RNNForecastingRowConverter compileConverter(Instances header,
+                                                        RowMetaInterface inputMeta,
+                                                        int[] mappingIndexes) {
+        if (m_dictionaries == null) {
+            m_dictionaries = new RNNForecastingDictionary[header.numAttributes()];
+            for (int i = 0; i < m_dictionaries.length; i++) {
+                Attribute att = header.attribute(i);
+                if (att.isNominal()) {
+                    m_dictionaries[i] = new RNNForecastingDictionary(att);
+                } else if (att.isString() && m_encodeStrings) {
+                    m_dictionaries[i] = new RNNForecastingDictionary(16);
                 }
-            } else {
-                // set to missing value
-                m_vals[i] = Utils.missingValue();
             }
         }
-
-        Instance newInst = new DenseInstance(1.0, m_vals);
-        newInst.setDataset(header);
-        return newInst;
+        return new RNNForecastingRowConverter(header, inputMeta, mappingIndexes, m_dictionaries);
     }
 }
@@ -1,6 +1,7 @@
 package org.pentaho.di.plugins.dl4j;
 
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.CCombo;
 import org.eclipse.swt.custom.CTabFolder;
 import org.eclipse.swt.custom.CTabItem;
 import org.eclipse.swt.events.ModifyEvent;
@@ -78,6 +79,51 @@ public class RNNForecastingDialog extends BaseStepDialog implements
     /** for the output probabilities check box */
     private FormData m_fdlClearPrevState, m_fdClearPrevState;
 
+    /** check box for preloading the model when the step starts */
+    private Button m_wPreloadModel;
+
+    /** TextVar for the number of warm-up forecasts to run after preloading */
+    private TextVar m_warmupForecastsText;
+
+    /** check box for reloading the model file when it changes */
+    private Button m_wWatchModelFile;
+
+    /** TextVar for the model file check interval */
+    private TextVar m_watchIntervalText;
+
+    /** check box for resetting the RNN state when the model is reloaded */
+    private Button m_wResetStateOnReload;
+
+    /** check box for keeping only the rows needed to prime the forecaster */
+    private Button m_wBoundedPriming;
+    private Button m_wEncodeStrings;
+    private Button m_wPassRowsThrough;
+    private TextVar m_spoolRowsText;
+    private TextVar m_spoolMegabytesText;
+    private TextVar m_stateFileText;
+
+    /** TextVar for the field that identifies the series each row belongs to */
+    private TextVar m_seriesKeyFieldText;
+    private TextVar m_seriesInMemoryText;
+    private TextVar m_seriesBatchSizeText;
+
+    /** check box for running the network directly rather than through Weka */
+    private Button m_wDirectEngine;
+
+    /** check box for reusing ND4J arrays, and TextVars for the off-heap budget */
+    private Button m_wReuseBuffers;
+    private TextVar m_maxOffHeapText;
+    private TextVar m_gcIntervalText;
+
+    /** check box for streaming (sliding window) mode */
+    private Button m_wStreamingMode;
+
+    /** TextVar for the number of rows between forecasts in streaming mode */
+    private TextVar m_forecastEveryText;
+
+    /** drop down for the time stamp boundary to forecast at in streaming mode */
+    private CCombo m_wForecastBoundary;
+
     /** the text area for the model */
     private Text m_wModelText;
     private FormData m_fdModelText;
@@ -248,6 +294,476 @@ public class RNNForecastingDialog extends BaseStepDialog implements
         m_fdClearPrevState.right = new FormAttachment(100, 0);
         m_wClearPrevState.setLayoutData(m_fdClearPrevState);
 
+        // preload line
+        Label preloadLab = new Label(wFileComp, SWT.RIGHT);
+        preloadLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.PreloadModel.Label")); //$NON-NLS-1$
+        props.setLook(preloadLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_wClearPrevState, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        preloadLab.setLayoutData(fdd);
+        m_wPreloadModel = new Button(wFileComp, SWT.CHECK);
+        props.setLook(m_wPreloadModel);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_wClearPrevState, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_wPreloadModel.setLayoutData(fdd);
+        m_wPreloadModel.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                m_currentMeta.setChanged();
+                m_warmupForecastsText.setEnabled(m_wPreloadModel.getSelection());
+            }
+        });
+
+        // number of warm-up forecasts line
+        Label warmupLab = new Label(wFileComp, SWT.RIGHT);
+        warmupLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.WarmupForecasts.Label")); //$NON-NLS-1$
+        props.setLook(warmupLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_wPreloadModel, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        warmupLab.setLayoutData(fdd);
+
+        m_warmupForecastsText = new TextVar(transMeta, wFileComp, SWT.SINGLE
+                | SWT.LEFT | SWT.BORDER);
+        props.setLook(m_warmupForecastsText);
+        m_warmupForecastsText.addModifyListener(lsMod);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_wPreloadModel, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_warmupForecastsText.setLayoutData(fdd);
+
+        // watch model file line
+        Label watchLab = new Label(wFileComp, SWT.RIGHT);
+        watchLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.WatchModelFile.Label")); //$NON-NLS-1$
+        props.setLook(watchLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_warmupForecastsText, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        watchLab.setLayoutData(fdd);
+        m_wWatchModelFile = new Button(wFileComp, SWT.CHECK);
+        props.setLook(m_wWatchModelFile);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_warmupForecastsText, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_wWatchModelFile.setLayoutData(fdd);
+        m_wWatchModelFile.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                m_currentMeta.setChanged();
+                m_watchIntervalText.setEnabled(m_wWatchModelFile.getSelection());
+                m_wResetStateOnReload.setEnabled(m_wWatchModelFile.getSelection());
+            }
+        });
+
+        // check interval line
+        Label intervalLab = new Label(wFileComp, SWT.RIGHT);
+        intervalLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.WatchInterval.Label")); //$NON-NLS-1$
+        props.setLook(intervalLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_wWatchModelFile, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        intervalLab.setLayoutData(fdd);
+
+        m_watchIntervalText = new TextVar(transMeta, wFileComp, SWT.SINGLE
+                | SWT.LEFT | SWT.BORDER);
+        props.setLook(m_watchIntervalText);
+        m_watchIntervalText.addModifyListener(lsMod);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_wWatchModelFile, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_watchIntervalText.setLayoutData(fdd);
+
+        // reset state on reload line
+        Label resetLab = new Label(wFileComp, SWT.RIGHT);
+        resetLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.ResetStateOnReload.Label")); //$NON-NLS-1$
+        props.setLook(resetLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_watchIntervalText, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        resetLab.setLayoutData(fdd);
+        m_wResetStateOnReload = new Button(wFileComp, SWT.CHECK);
+        props.setLook(m_wResetStateOnReload);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_watchIntervalText, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_wResetStateOnReload.setLayoutData(fdd);
+
+        // bounded priming line
+        Label boundedLab = new Label(wFileComp, SWT.RIGHT);
+        boundedLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.BoundedPriming.Label")); //$NON-NLS-1$
+        props.setLook(boundedLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_wResetStateOnReload, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        boundedLab.setLayoutData(fdd);
+        m_wBoundedPriming = new Button(wFileComp, SWT.CHECK);
+        props.setLook(m_wBoundedPriming);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_wResetStateOnReload, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_wBoundedPriming.setLayoutData(fdd);
+        m_wBoundedPriming.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                m_currentMeta.setChanged();
+            }
+        });
+
+        // encode strings line
+        Label encodeLab = new Label(wFileComp, SWT.RIGHT);
+        encodeLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.EncodeStrings.Label")); //$NON-NLS-1$
+        props.setLook(encodeLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_wBoundedPriming, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        encodeLab.setLayoutData(fdd);
+        m_wEncodeStrings = new Button(wFileComp, SWT.CHECK);
+        props.setLook(m_wEncodeStrings);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_wBoundedPriming, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_wEncodeStrings.setLayoutData(fdd);
+        m_wEncodeStrings.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                m_currentMeta.setChanged();
+            }
+        });
+
+        // pass rows through line
+        Label passLab = new Label(wFileComp, SWT.RIGHT);
+        passLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.PassRowsThrough.Label")); //$NON-NLS-1$
+        props.setLook(passLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_wEncodeStrings, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        passLab.setLayoutData(fdd);
+        m_wPassRowsThrough = new Button(wFileComp, SWT.CHECK);
+        props.setLook(m_wPassRowsThrough);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_wEncodeStrings, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_wPassRowsThrough.setLayoutData(fdd);
+        m_wPassRowsThrough.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                m_currentMeta.setChanged();
+            }
+        });
+
+        // spool rows line
+        Label spoolRowsLab = new Label(wFileComp, SWT.RIGHT);
+        spoolRowsLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.SpoolRows.Label")); //$NON-NLS-1$
+        props.setLook(spoolRowsLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_wPassRowsThrough, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        spoolRowsLab.setLayoutData(fdd);
+
+        m_spoolRowsText = new TextVar(transMeta, wFileComp, SWT.SINGLE
+                | SWT.LEFT | SWT.BORDER);
+        props.setLook(m_spoolRowsText);
+        m_spoolRowsText.addModifyListener(lsMod);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_wPassRowsThrough, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_spoolRowsText.setLayoutData(fdd);
+
+        // spool megabytes line
+        Label spoolMbLab = new Label(wFileComp, SWT.RIGHT);
+        spoolMbLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.SpoolMegabytes.Label")); //$NON-NLS-1$
+        props.setLook(spoolMbLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_spoolRowsText, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        spoolMbLab.setLayoutData(fdd);
+
+        m_spoolMegabytesText = new TextVar(transMeta, wFileComp, SWT.SINGLE
+                | SWT.LEFT | SWT.BORDER);
+        props.setLook(m_spoolMegabytesText);
+        m_spoolMegabytesText.addModifyListener(lsMod);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_spoolRowsText, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_spoolMegabytesText.setLayoutData(fdd);
+
+        // state file line
+        Label stateFileLab = new Label(wFileComp, SWT.RIGHT);
+        stateFileLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.StateFile.Label")); //$NON-NLS-1$
+        props.setLook(stateFileLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_spoolMegabytesText, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        stateFileLab.setLayoutData(fdd);
+
+        m_stateFileText = new TextVar(transMeta, wFileComp, SWT.SINGLE
+                | SWT.LEFT | SWT.BORDER);
+        props.setLook(m_stateFileText);
+        m_stateFileText.addModifyListener(lsMod);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_spoolMegabytesText, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_stateFileText.setLayoutData(fdd);
+
+        // series key field line
+        Label keyLab = new Label(wFileComp, SWT.RIGHT);
+        keyLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.SeriesKeyField.Label")); //$NON-NLS-1$
+        props.setLook(keyLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_stateFileText, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        keyLab.setLayoutData(fdd);
+
+        m_seriesKeyFieldText = new TextVar(transMeta, wFileComp, SWT.SINGLE
+                | SWT.LEFT | SWT.BORDER);
+        props.setLook(m_seriesKeyFieldText);
+        m_seriesKeyFieldText.addModifyListener(lsMod);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_stateFileText, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_seriesKeyFieldText.setLayoutData(fdd);
+
+        // series in memory line
+        Label inMemoryLab = new Label(wFileComp, SWT.RIGHT);
+        inMemoryLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.SeriesInMemory.Label")); //$NON-NLS-1$
+        props.setLook(inMemoryLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_seriesKeyFieldText, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        inMemoryLab.setLayoutData(fdd);
+
+        m_seriesInMemoryText = new TextVar(transMeta, wFileComp, SWT.SINGLE
+                | SWT.LEFT | SWT.BORDER);
+        props.setLook(m_seriesInMemoryText);
+        m_seriesInMemoryText.addModifyListener(lsMod);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_seriesKeyFieldText, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_seriesInMemoryText.setLayoutData(fdd);
+
+        // series batch size line
+        Label batchSizeLab = new Label(wFileComp, SWT.RIGHT);
+        batchSizeLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.SeriesBatchSize.Label")); //$NON-NLS-1$
+        props.setLook(batchSizeLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_seriesInMemoryText, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        batchSizeLab.setLayoutData(fdd);
+
+        m_seriesBatchSizeText = new TextVar(transMeta, wFileComp, SWT.SINGLE
+                | SWT.LEFT | SWT.BORDER);
+        props.setLook(m_seriesBatchSizeText);
+        m_seriesBatchSizeText.addModifyListener(lsMod);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_seriesInMemoryText, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_seriesBatchSizeText.setLayoutData(fdd);
+
+        // direct engine line
+        Label directLab = new Label(wFileComp, SWT.RIGHT);
+        directLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.DirectEngine.Label")); //$NON-NLS-1$
+        props.setLook(directLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_seriesBatchSizeText, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        directLab.setLayoutData(fdd);
+        m_wDirectEngine = new Button(wFileComp, SWT.CHECK);
+        props.setLook(m_wDirectEngine);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_seriesBatchSizeText, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_wDirectEngine.setLayoutData(fdd);
+        m_wDirectEngine.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                m_currentMeta.setChanged();
+            }
+        });
+
+        // reuse buffers line
+        Label reuseLab = new Label(wFileComp, SWT.RIGHT);
+        reuseLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.ReuseBuffers.Label")); //$NON-NLS-1$
+        props.setLook(reuseLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_wDirectEngine, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        reuseLab.setLayoutData(fdd);
+        m_wReuseBuffers = new Button(wFileComp, SWT.CHECK);
+        props.setLook(m_wReuseBuffers);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_wDirectEngine, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_wReuseBuffers.setLayoutData(fdd);
+        m_wReuseBuffers.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                m_currentMeta.setChanged();
+            }
+        });
+
+        // off-heap budget line
+        Label offHeapLab = new Label(wFileComp, SWT.RIGHT);
+        offHeapLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.MaxOffHeap.Label")); //$NON-NLS-1$
+        props.setLook(offHeapLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_wReuseBuffers, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        offHeapLab.setLayoutData(fdd);
+
+        m_maxOffHeapText = new TextVar(transMeta, wFileComp, SWT.SINGLE
+                | SWT.LEFT | SWT.BORDER);
+        props.setLook(m_maxOffHeapText);
+        m_maxOffHeapText.addModifyListener(lsMod);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_wReuseBuffers, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_maxOffHeapText.setLayoutData(fdd);
+
+        // gc interval line
+        Label gcLab = new Label(wFileComp, SWT.RIGHT);
+        gcLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.GcInterval.Label")); //$NON-NLS-1$
+        props.setLook(gcLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_maxOffHeapText, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        gcLab.setLayoutData(fdd);
+
+        m_gcIntervalText = new TextVar(transMeta, wFileComp, SWT.SINGLE
+                | SWT.LEFT | SWT.BORDER);
+        props.setLook(m_gcIntervalText);
+        m_gcIntervalText.addModifyListener(lsMod);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_maxOffHeapText, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_gcIntervalText.setLayoutData(fdd);
+
+        // streaming mode line
+        Label streamingLab = new Label(wFileComp, SWT.RIGHT);
+        streamingLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.StreamingMode.Label")); //$NON-NLS-1$
+        props.setLook(streamingLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_gcIntervalText, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        streamingLab.setLayoutData(fdd);
+        m_wStreamingMode = new Button(wFileComp, SWT.CHECK);
+        props.setLook(m_wStreamingMode);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_gcIntervalText, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_wStreamingMode.setLayoutData(fdd);
+        m_wStreamingMode.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                m_currentMeta.setChanged();
+                m_forecastEveryText.setEnabled(m_wStreamingMode.getSelection());
+                m_wForecastBoundary.setEnabled(m_wStreamingMode.getSelection());
+            }
+        });
+
+        // forecast every line
+        Label everyLab = new Label(wFileComp, SWT.RIGHT);
+        everyLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.ForecastEvery.Label")); //$NON-NLS-1$
+        props.setLook(everyLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_wStreamingMode, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        everyLab.setLayoutData(fdd);
+
+        m_forecastEveryText = new TextVar(transMeta, wFileComp, SWT.SINGLE
+                | SWT.LEFT | SWT.BORDER);
+        props.setLook(m_forecastEveryText);
+        m_forecastEveryText.addModifyListener(lsMod);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_wStreamingMode, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_forecastEveryText.setLayoutData(fdd);
+
+        // forecast boundary line
+        Label boundaryLab = new Label(wFileComp, SWT.RIGHT);
+        boundaryLab.setText(BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingDialog.ForecastBoundary.Label")); //$NON-NLS-1$
+        props.setLook(boundaryLab);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(0, 0);
+        fdd.top = new FormAttachment(m_forecastEveryText, margin);
+        fdd.right = new FormAttachment(middle, -margin);
+        boundaryLab.setLayoutData(fdd);
+
+        m_wForecastBoundary = new CCombo(wFileComp, SWT.BORDER | SWT.READ_ONLY);
+        props.setLook(m_wForecastBoundary);
+        for (String boundary : RNNForecastingMeta.FORECAST_BOUNDARIES) {
+            m_wForecastBoundary.add(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecastingDialog.ForecastBoundary." + boundary)); //$NON-NLS-1$
+        }
+        m_wForecastBoundary.addModifyListener(lsMod);
+        fdd = new FormData();
+        fdd.left = new FormAttachment(middle, 0);
+        fdd.top = new FormAttachment(m_forecastEveryText, margin);
+        fdd.right = new FormAttachment(100, 0);
+        m_wForecastBoundary.setLayoutData(fdd);
+
         m_fdFileComp = new FormData();
         m_fdFileComp.left = new FormAttachment(0, 0);
         m_fdFileComp.top = new FormAttachment(0, 0);
@@ -469,7 +985,8 @@ public class RNNForecastingDialog extends BaseStepDialog implements
     }
 
     /**
-     * Load the model.
+     * Load the model. Only the model's header sidecar is read if there is an up
+     * to date one, as that is all the dialog needs to display.
      */
     private boolean loadModel() {
         String filename = m_wFilename.getText();
@@ -484,15 +1001,27 @@ public class RNNForecastingDialog extends BaseStepDialog implements
             if (!Const.isEmpty(filename)
                     && RNNForecastingData.modelFileExists(filename, transMeta)) {
 
-                RNNForecastingModel tempM = RNNForecastingData.loadSerializedModel(filename,
+                RNNForecastingModelHeader header = RNNForecastingModelHeader.readSidecar(filename,
+                        transMeta);
+                if (header != null) {
+                    m_wModelText.setText(header.toString());
+                    mappingString(header.getHeader());
+                    return true;
+                }
+
+                RNNForecastingModel tempM = RNNForecastingModelCache.getInstance().get(filename,
                         log, transMeta);
                 m_wModelText.setText(tempM.toString());
 
+                // leave a header-only copy next to the model, so that it
+                // needn't be loaded in full next time
+                RNNForecastingModelHeader.writeSidecar(filename, transMeta, tempM, log);
+
                 m_currentMeta.setModel(tempM);
 
                 // see if we can find a previous step and set up the
                 // mappings
-                mappingString(tempM);
+                mappingString(tempM.getHeader());
                 success = true;
 
             }
@@ -509,15 +1038,14 @@ public class RNNForecastingDialog extends BaseStepDialog implements
      * Build a string that shows the mappings between Weka attributes and incoming
      * Kettle fields.
      *
-     * @param model a <code>RNNForecastingModel</code> value
+     * @param header the Instances header of the model
      */
-    private void mappingString(RNNForecastingModel model) {
+    private void mappingString(Instances header) {
 
         try {
             StepMeta stepMetaTemp = transMeta.findStep(stepname);
             if (stepMetaTemp != null) {
                 RowMetaInterface rowM = transMeta.getPrevStepFields(stepMetaTemp);
-                Instances header = model.getHeader();
                 int[] mappings = RNNForecastingData.findMappings(header, rowM);
 
                 StringBuffer result = new StringBuffer(header.numAttributes() * 10);
@@ -625,13 +1153,67 @@ public class RNNForecastingDialog extends BaseStepDialog implements
 
         m_wClearPrevState.setSelection(m_currentMeta.getClearPreviousState());
 
+        m_wPreloadModel.setSelection(m_currentMeta.getPreloadModel());
+        if (!Const.isEmpty(m_currentMeta.getWarmupForecasts())) {
+            m_warmupForecastsText.setText(m_currentMeta.getWarmupForecasts());
+        }
+        m_warmupForecastsText.setEnabled(m_currentMeta.getPreloadModel());
+
+        m_wWatchModelFile.setSelection(m_currentMeta.getWatchModelFile());
+        if (!Const.isEmpty(m_currentMeta.getWatchInterval())) {
+            m_watchIntervalText.setText(m_currentMeta.getWatchInterval());
+        }
+        m_wResetStateOnReload.setSelection(m_currentMeta.getResetStateOnReload());
+        m_watchIntervalText.setEnabled(m_currentMeta.getWatchModelFile());
+        m_wResetStateOnReload.setEnabled(m_currentMeta.getWatchModelFile());
+
+        m_wBoundedPriming.setSelection(m_currentMeta.getBoundedPriming());
+        m_wEncodeStrings.setSelection(m_currentMeta.getEncodeStrings());
+        m_wPassRowsThrough.setSelection(m_currentMeta.getPassRowsThrough());
+        if (!Const.isEmpty(m_currentMeta.getSpoolRows())) {
+            m_spoolRowsText.setText(m_currentMeta.getSpoolRows());
+        }
+        if (!Const.isEmpty(m_currentMeta.getSpoolMegabytes())) {
+            m_spoolMegabytesText.setText(m_currentMeta.getSpoolMegabytes());
+        }
+        if (!Const.isEmpty(m_currentMeta.getStateFile())) {
+            m_stateFileText.setText(m_currentMeta.getStateFile());
+        }
+
+        if (!Const.isEmpty(m_currentMeta.getSeriesKeyField())) {
+            m_seriesKeyFieldText.setText(m_currentMeta.getSeriesKeyField());
+        }
+        if (!Const.isEmpty(m_currentMeta.getSeriesInMemory())) {
+            m_seriesInMemoryText.setText(m_currentMeta.getSeriesInMemory());
+        }
+        if (!Const.isEmpty(m_currentMeta.getSeriesBatchSize())) {
+            m_seriesBatchSizeText.setText(m_currentMeta.getSeriesBatchSize());
+        }
+        m_wDirectEngine.setSelection(m_currentMeta.getDirectEngine());
+        m_wReuseBuffers.setSelection(m_currentMeta.getReuseBuffers());
+        if (!Const.isEmpty(m_currentMeta.getMaxOffHeap())) {
+            m_maxOffHeapText.setText(m_currentMeta.getMaxOffHeap());
+        }
+        if (!Const.isEmpty(m_currentMeta.getGcInterval())) {
+            m_gcIntervalText.setText(m_currentMeta.getGcInterval());
+        }
+
+        m_wStreamingMode.setSelection(m_currentMeta.getStreamingMode());
+        if (!Const.isEmpty(m_currentMeta.getForecastEvery())) {
+            m_forecastEveryText.setText(m_currentMeta.getForecastEvery());
+        }
+        m_wForecastBoundary.select(Math.max(Const.indexOfString(m_currentMeta.getForecastBoundary(),
+                RNNForecastingMeta.FORECAST_BOUNDARIES), 0));
+        m_forecastEveryText.setEnabled(m_currentMeta.getStreamingMode());
+        m_wForecastBoundary.setEnabled(m_currentMeta.getStreamingMode());
+
         // Grab model if it is available
         RNNForecastingModel tempM = m_currentMeta.getModel();
         if (tempM != null) {
             m_wModelText.setText(tempM.toString());
 
             // Grab mappings if available
-            mappingString(tempM);
+            mappingString(tempM.getHeader());
         } else {
             // try loading the model
             loadModel();
@@ -670,6 +1252,35 @@ public class RNNForecastingDialog extends BaseStepDialog implements
 
         m_currentMeta.setClearPreviousState(m_wClearPrevState.getSelection());
 
+        m_currentMeta.setPreloadModel(m_wPreloadModel.getSelection());
+        m_currentMeta.setWarmupForecasts(m_warmupForecastsText.getText());
+
+        m_currentMeta.setWatchModelFile(m_wWatchModelFile.getSelection());
+        m_currentMeta.setWatchInterval(m_watchIntervalText.getText());
+        m_currentMeta.setResetStateOnReload(m_wResetStateOnReload.getSelection());
+
+        m_currentMeta.setBoundedPriming(m_wBoundedPriming.getSelection());
+        m_currentMeta.setEncodeStrings(m_wEncodeStrings.getSelection());
+        m_currentMeta.setPassRowsThrough(m_wPassRowsThrough.getSelection());
+        m_currentMeta.setSpoolRows(m_spoolRowsText.getText());
+        m_currentMeta.setSpoolMegabytes(m_spoolMegabytesText.getText());
+        m_currentMeta.setStateFile(m_stateFileText.getText());
+
+        m_currentMeta.setSeriesKeyField(Const.isEmpty(m_seriesKeyFieldText.getText()) ? null
+                : m_seriesKeyFieldText.getText());
+        m_currentMeta.setSeriesInMemory(m_seriesInMemoryText.getText());
+        m_currentMeta.setSeriesBatchSize(m_seriesBatchSizeText.getText());
+        m_currentMeta.setDirectEngine(m_wDirectEngine.getSelection());
+        m_currentMeta.setReuseBuffers(m_wReuseBuffers.getSelection());
+        m_currentMeta.setMaxOffHeap(m_maxOffHeapText.getText());
+        m_currentMeta.setGcInterval(m_gcIntervalText.getText());
+
+        m_currentMeta.setStreamingMode(m_wStreamingMode.getSelection());
+        m_currentMeta.setForecastEvery(m_forecastEveryText.getText());
+        int boundary = m_wForecastBoundary.getSelectionIndex();
+        m_currentMeta.setForecastBoundary(boundary > 0
+                ? RNNForecastingMeta.FORECAST_BOUNDARIES[boundary] : null);
+
         if (!m_originalMeta.equals(m_currentMeta)) {
             m_currentMeta.setChanged();
             changed = m_currentMeta.hasChanged();
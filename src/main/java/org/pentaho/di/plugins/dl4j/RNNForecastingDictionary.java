@@ -0,0 +1,158 @@
+package org.pentaho.di.plugins.dl4j;
+
+import weka.core.Attribute;
+
+/**
+ * Maps the labels of a nominal or string attribute to their (integer) codes.
+ * Uses open addressing with linear probing over a power of two sized table,
+ * so looking up a label costs one hash and (usually) one comparison, with no
+ * boxing or entry objects. A dictionary built from a nominal attribute gives
+ * each label its index in the attribute; labels of a string attribute are
+ * given codes in the order in which they are first seen.
+ *
+ * Not thread-safe - each step copy has its own dictionaries.
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingDictionary {
+
+    /** The table is grown when it is more than this full */
+    private static final float MAX_LOAD = 0.5f;
+
+    /** The labels, or null for empty slots */
+    private String[] m_keys;
+
+    /** The code of the label in the same slot */
+    private int[] m_codes;
+
+    /** Number of labels held */
+    private int m_size;
+
+    /** Number of lookups of labels that weren't in the dictionary */
+    private long m_unseen;
+
+    /**
+     * Creates a new, empty <code>RNNForecastingDictionary</code>
+     *
+     * @param expectedSize the number of labels expected
+     */
+    public RNNForecastingDictionary(int expectedSize) {
+        int capacity = 16;
+        while (capacity * MAX_LOAD < expectedSize) {
+            capacity <<= 1;
+        }
+        m_keys = new String[capacity];
+        m_codes = new int[capacity];
+    }
+
+    /**
+     * Creates a new <code>RNNForecastingDictionary</code> holding the labels of
+     * a nominal attribute
+     *
+     * @param att the attribute
+     */
+    public RNNForecastingDictionary(Attribute att) {
+        this(att.numValues());
+        for (int i = 0; i < att.numValues(); i++) {
+            // keep the first if the attribute has duplicates, as indexOfValue does
+            if (indexOf(att.value(i)) < 0) {
+                put(att.value(i), i);
+            }
+        }
+        m_unseen = 0;
+    }
+
+    private static int hash(String label) {
+        int h = label.hashCode();
+        // spread the high bits, as the table index only uses the low ones
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Get the slot that holds a label, or the empty slot where it would go
+     */
+    private int slot(String label) {
+        int mask = m_keys.length - 1;
+        int i = hash(label) & mask;
+        while (m_keys[i] != null && !m_keys[i].equals(label)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void put(String label, int code) {
+        if (m_size + 1 > m_keys.length * MAX_LOAD) {
+            grow();
+        }
+        int i = slot(label);
+        m_keys[i] = label;
+        m_codes[i] = code;
+        m_size++;
+    }
+
+    private void grow() {
+        String[] keys = m_keys;
+        int[] codes = m_codes;
+        m_keys = new String[keys.length << 1];
+        m_codes = new int[keys.length << 1];
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                int j = slot(keys[i]);
+                m_keys[j] = keys[i];
+                m_codes[j] = codes[i];
+            }
+        }
+    }
+
+    /**
+     * Get the code of a label. Labels that aren't in the dictionary are
+     * counted.
+     *
+     * @param label the label
+     * @return the code, or -1 if the label isn't in the dictionary
+     */
+    public int indexOf(String label) {
+        int i = slot(label);
+        if (m_keys[i] == null) {
+            m_unseen++;
+            return -1;
+        }
+        return m_codes[i];
+    }
+
+    /**
+     * Get the code of a label, adding the label to the dictionary (with the
+     * next free code) if it isn't there yet
+     *
+     * @param label the label
+     * @return the code
+     */
+    public int encode(String label) {
+        int i = slot(label);
+        if (m_keys[i] != null) {
+            return m_codes[i];
+        }
+        int code = m_size;
+        put(label, code);
+        return code;
+    }
+
+    /**
+     * Get the number of labels in the dictionary
+     *
+     * @return the number of labels
+     */
+    public int size() {
+        return m_size;
+    }
+
+    /**
+     * Get the number of lookups of labels that weren't in the dictionary
+     *
+     * @return the number of unseen labels
+     */
+    public long getUnseen() {
+        return m_unseen;
+    }
+}
@@ -0,0 +1,1174 @@
+package org.pentaho.di.plugins.dl4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.pentaho.di.i18n.BaseMessages;
+
+import weka.classifiers.timeseries.WekaForecaster;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.filters.Filter;
+import weka.filters.supervised.attribute.TSLagMaker;
+
+/**
+ * Primes and forecasts with the forecaster's DL4J network directly, without
+ * building Weka instances for every row and time step. The network inputs are
+ * laid out once, by calibration, from the model's own settings: the lag
+ * maker's lags (and averages of long lags) of each target and its time stamp
+ * or artificial time index name the inputs, and the filters that pre-process
+ * the base forecaster's data give the scaling of each input and of each
+ * prediction, and the value used for a missing lag. How the forecaster drives
+ * the network (the rows its lags skip, the layout of the RNN state) is read
+ * from one recorded run on a sample of real rows. Finally the engine and the
+ * Weka forecaster are run side by side on the sample and a shifted copy of
+ * it, and the engine is only used if the predictions, RNN states and time
+ * stamps all agree within {@link #TOLERANCE}.
+ *
+ * Models whose inputs can't be laid out this way (overlay fields, periodic
+ * date fields, powers of time, variance adjustment, pre-processing that isn't
+ * a linear scaling, ...) or that produce confidence intervals are declined
+ * with an {@link UnsupportedModelException} and keep using Weka.
+ *
+ * Engines made by {@link #bind} share the calibration but run their own
+ * network, and keep their own lagged values. The raw values of a series are
+ * kept in a {@link RNNForecastingLagBuffer}, so every input of a row is
+ * computed in constant time, and a series that is kept in a buffer as its rows
+ * arrive can be primed from it without building instances at all. Many series
+ * can also be primed and forecast together, as the rows of one minibatch
+ * (see {@link #forecastBatch}).
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingDirectEngine {
+
+    /** Largest difference allowed from the Weka forecaster (relative, or absolute below 1) */
+    public static final double TOLERANCE = 1e-4;
+
+    /** Number of steps forecast while calibrating */
+    private static final int CAL_STEPS = 8;
+
+    /** Number of rows dropped from the sample for the second verification run */
+    private static final int SHIFT = 3;
+
+    /** How a network input is computed */
+    private static final int CONSTANT = 0;
+    private static final int LAG = 1;
+    private static final int TIME_STAMP = 2;
+    private static final int ROW_INDEX = 3;
+    private static final int AVERAGE = 4;
+
+    /** Name the lag maker gives the artificial time index */
+    private static final String ARTIFICIAL_TIME_INDEX = "ArtificialTimeIndex"; //$NON-NLS-1$
+
+    /** How the forecaster lays out the RNN state */
+    private static final int STATE_RECURRENT = 0;
+    private static final int STATE_PER_LAYER = 1;
+
+    /** What was learned by calibration, shared by bound engines */
+    private final Calibration m_cal;
+
+    /** The network run by this engine */
+    private final MultiLayerNetwork m_network;
+
+    /** The last rows primed with, that the lagged values of the forecast come from */
+    private RNNForecastingLagBuffer m_history;
+
+    /** Number of rows primed with */
+    private int m_rowsPrimed;
+
+    /** Whether to keep the array fed to the network at each forecast step */
+    private boolean m_reuseBuffers;
+
+    /** The array fed to the network at each forecast step, if kept */
+    private INDArray m_stepInput;
+
+    /**
+     * The input layout and output mapping worked out by calibration
+     */
+    private static final class Calibration {
+        int m_numInputs;
+        int[] m_kind;
+        int[] m_target;
+        int[] m_lag;
+        int[] m_rows;
+        double[] m_scale;
+        double[] m_shift;
+        double[] m_missing;
+
+        int[] m_outColumn;
+        double[] m_outScale;
+        double[] m_outShift;
+
+        int[] m_targetIndexes;
+        int m_dateIndex;
+        int m_maxLag;
+        int m_skip;
+        boolean m_stepRank3;
+        boolean[] m_recurrent;
+        int m_stateFormat;
+        boolean m_emptyLayerState;
+        boolean m_restoresState;
+        boolean m_usesTimeStamps;
+    }
+
+    /**
+     * Thrown when a model can't be run directly
+     */
+    public static class UnsupportedModelException extends Exception {
+
+        /** For serialization */
+        private static final long serialVersionUID = 3406223316718529140L;
+
+        UnsupportedModelException(String key, Object... args) {
+            super(BaseMessages.getString(RNNForecastingMeta.PKG, key, args));
+        }
+    }
+
+    private RNNForecastingDirectEngine(Calibration cal, MultiLayerNetwork network) {
+        m_cal = cal;
+        m_network = network;
+        m_history = newBuffer(0);
+    }
+
+    /**
+     * Create an engine with the same calibration that runs another network
+     * (e.g. the network inside a copy or replica of the model)
+     *
+     * @param network the network, with the same parameters as the calibrated one
+     * @return the engine
+     */
+    public RNNForecastingDirectEngine bind(MultiLayerNetwork network) {
+        RNNForecastingDirectEngine bound = new RNNForecastingDirectEngine(m_cal, network);
+        bound.m_reuseBuffers = m_reuseBuffers;
+        return bound;
+    }
+
+    /**
+     * Set whether to fill the same array with the network input at each
+     * forecast step, instead of making a new one (which ND4J keeps off the
+     * heap until it is garbage collected). Engines bound from this one take
+     * the setting too.
+     *
+     * @param reuse true to reuse the array
+     */
+    public void setReuseBuffers(boolean reuse) {
+        m_reuseBuffers = reuse;
+        if (!reuse) {
+            m_stepInput = null;
+        }
+    }
+
+    /**
+     * Get whether the array fed to the network at each forecast step is reused
+     *
+     * @return true if it is reused
+     */
+    public boolean getReuseBuffers() {
+        return m_reuseBuffers;
+    }
+
+    /**
+     * Create an empty buffer for the raw values of a series, to prime from
+     *
+     * @param capacity the number of rows to keep
+     * @return the buffer
+     */
+    public RNNForecastingLagBuffer newBuffer(int capacity) {
+        return new RNNForecastingLagBuffer(m_cal.m_targetIndexes, m_cal.m_dateIndex,
+                Math.max(capacity, m_cal.m_maxLag + 1));
+    }
+
+    /**
+     * Get the network run by this engine
+     *
+     * @return the network
+     */
+    public MultiLayerNetwork getNetwork() {
+        return m_network;
+    }
+
+    /**
+     * Find the (single) network inside a Weka forecaster
+     *
+     * @param forecaster the forecaster
+     * @return the network, or null if there isn't exactly one
+     * @throws Exception if the forecaster can't be searched
+     */
+    public static MultiLayerNetwork findNetwork(Object forecaster) throws Exception {
+        List<RNNForecastingNetworks.Slot> found = RNNForecastingNetworks.find(forecaster);
+        return found.size() == 1 ? found.get(0).get() : null;
+    }
+
+    /**
+     * Get the number of rows a sample needs for calibration
+     *
+     * @param model the model
+     * @return the number of rows
+     */
+    public static int minSampleRows(RNNForecastingModel model) {
+        return Math.max(model.getMaxLag(), 1) + SHIFT + CAL_STEPS;
+    }
+
+    /**
+     * Check whether a series can be used to calibrate: it must be long enough
+     * and have no missing targets or time stamps
+     *
+     * @param model the model
+     * @param sample the rows of the series
+     * @return true if the series can be used
+     */
+    public static boolean isCalibrationSample(RNNForecastingModel model, Instances sample) {
+        if (sample.numInstances() < minSampleRows(model)) {
+            return false;
+        }
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (String target : model.getTargetFieldNames()) {
+            Attribute att = sample.attribute(target.trim());
+            if (att == null) {
+                return false;
+            }
+            indexes.add(att.index());
+        }
+        String timeStampField = model.getTimeStampField();
+        if (timeStampField != null && sample.attribute(timeStampField) != null) {
+            indexes.add(sample.attribute(timeStampField).index());
+        }
+        for (int t = 0; t < sample.numInstances(); t++) {
+            for (int index : indexes) {
+                if (sample.instance(t).isMissing(index)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the inputs depend on the time stamps of the steps forecast, so
+     * they must be passed to {@link #forecastInto}
+     *
+     * @return true if time stamps are needed
+     */
+    public boolean usesTimeStamps() {
+        return m_cal.m_usesTimeStamps;
+    }
+
+    /**
+     * Get the time stamp of the last primed row
+     *
+     * @return the time stamp, or NaN if the model has no time stamp field
+     */
+    public double getLastTimeStamp() {
+        return m_history.lastTimeStamp();
+    }
+
+    /**
+     * Clear the RNN state
+     */
+    public void clearState() {
+        m_network.rnnClearPreviousState();
+    }
+
+    /**
+     * Set the RNN state, in the forecaster's layout
+     *
+     * @param state the state, or null to clear it
+     */
+    public void setState(List<Object> state) {
+        m_network.rnnClearPreviousState();
+        List<Map<String, INDArray>> layers = toLayers(state);
+        for (int layer = 0; layer < layers.size(); layer++) {
+            if (layers.get(layer) != null) {
+                m_network.rnnSetPreviousState(layer, layers.get(layer));
+            }
+        }
+    }
+
+    /**
+     * Get the RNN state, in the forecaster's layout
+     *
+     * @return the state, or null if it is clear
+     */
+    public List<Object> getState() {
+        List<Map<String, INDArray>> layers = new ArrayList<Map<String, INDArray>>();
+        for (int layer = 0; layer < m_cal.m_recurrent.length; layer++) {
+            layers.add(m_cal.m_recurrent[layer] ? m_network.rnnGetPreviousState(layer) : null);
+        }
+        return fromLayers(layers);
+    }
+
+    /**
+     * Split a state in the forecaster's layout into the state of each layer
+     *
+     * @return the state of each layer, null for layers without a state
+     */
+    @SuppressWarnings("unchecked")
+    private List<Map<String, INDArray>> toLayers(List<Object> state) {
+        List<Map<String, INDArray>> layers = new ArrayList<Map<String, INDArray>>();
+        int next = 0;
+        for (int layer = 0; layer < m_cal.m_recurrent.length; layer++) {
+            if (m_cal.m_stateFormat == STATE_PER_LAYER) {
+                next = layer;
+            }
+            Map<String, INDArray> layerState = null;
+            if (m_cal.m_recurrent[layer]) {
+                if (state != null && next < state.size() && state.get(next) != null) {
+                    layerState = new HashMap<String, INDArray>((Map<String, INDArray>) state.get(next));
+                }
+                next++;
+            }
+            layers.add(layerState);
+        }
+        return layers;
+    }
+
+    /**
+     * Put the states of the layers into the forecaster's layout
+     *
+     * @param layers the state of each layer, null or empty for none
+     * @return the state, or null if every layer's state is clear
+     */
+    private List<Object> fromLayers(List<Map<String, INDArray>> layers) {
+        List<Object> state = new ArrayList<Object>();
+        boolean empty = true;
+        for (int layer = 0; layer < m_cal.m_recurrent.length; layer++) {
+            if (m_cal.m_recurrent[layer]) {
+                Map<String, INDArray> layerState = layers.get(layer);
+                if (layerState != null && !layerState.isEmpty()) {
+                    empty = false;
+                    state.add(new HashMap<String, INDArray>(layerState));
+                } else {
+                    state.add(null);
+                }
+            } else if (m_cal.m_stateFormat == STATE_PER_LAYER) {
+                state.add(m_cal.m_emptyLayerState ? new HashMap<String, INDArray>() : null);
+            }
+        }
+        return empty ? null : state;
+    }
+
+    /**
+     * Prime the network with a series, carrying on from the current state
+     *
+     * @param data the rows of the series
+     * @return false if the rows can't be primed directly (e.g. they have
+     *         missing values, or too few rows), in which case nothing has been
+     *         changed
+     */
+    public boolean prime(Instances data) {
+        int n = data.numInstances();
+        if (n <= m_cal.m_skip) {
+            return false;
+        }
+        RNNForecastingLagBuffer rows = newBuffer(n);
+        for (int t = 0; t < n; t++) {
+            rows.push(data.instance(t));
+        }
+        return prime(rows);
+    }
+
+    /**
+     * Check whether the rows held in a buffer can be primed directly: there
+     * must be more of them than the lags skip, and none may have missing
+     * values
+     *
+     * @param rows the rows of the series
+     * @return true if {@link #prime(RNNForecastingLagBuffer)} will take them
+     */
+    public boolean canPrime(RNNForecastingLagBuffer rows) {
+        return rows.size() > m_cal.m_skip && !rows.hasMissing();
+    }
+
+    /**
+     * Prime the network with the rows held in a buffer, carrying on from the
+     * current state. The buffer is not changed.
+     *
+     * @param rows the rows of the series
+     * @return false if the rows can't be primed directly (e.g. they have
+     *         missing values, or too few rows), in which case nothing has been
+     *         changed
+     */
+    public boolean prime(RNNForecastingLagBuffer rows) {
+        if (!canPrime(rows)) {
+            return false;
+        }
+        Calibration cal = m_cal;
+        int n = rows.size();
+        int steps = n - cal.m_skip;
+
+        // one call for the whole sequence: [1, inputs, time steps]
+        double[] input = new double[cal.m_numInputs * steps];
+        long first = rows.first();
+        for (int r = 0; r < steps; r++) {
+            long position = first + cal.m_skip + r;
+            for (int c = 0; c < cal.m_numInputs; c++) {
+                input[c * steps + r] = input(cal, c, rows, position, rows.timeStamp(position),
+                        position - first);
+            }
+        }
+        m_network.rnnTimeStep(Nd4j.create(input, new int[] { 1, cal.m_numInputs, steps }));
+
+        m_history = rows.tail(cal.m_maxLag + 1);
+        m_rowsPrimed = n;
+        return true;
+    }
+
+    /**
+     * Prime the network with only the last rows held in a buffer, carrying on
+     * from the current state, which must be the state after the rows before
+     * them (e.g. primed by an earlier call). The earlier rows only give the
+     * lagged values. The buffer is not changed.
+     *
+     * @param rows the rows of the series, ending with the new ones
+     * @param fresh the number of new rows at the end of the buffer
+     * @return false if the rows can't be primed directly (e.g. they have
+     *         missing values, or too few earlier rows for the lags), in which
+     *         case nothing has been changed
+     */
+    public boolean prime(RNNForecastingLagBuffer rows, int fresh) {
+        Calibration cal = m_cal;
+        if (fresh <= 0 || rows.size() - fresh < cal.m_skip || rows.hasMissing()) {
+            return false;
+        }
+        double[] input = new double[cal.m_numInputs * fresh];
+        long start = rows.end() - fresh;
+        for (int r = 0; r < fresh; r++) {
+            long position = start + r;
+            for (int c = 0; c < cal.m_numInputs; c++) {
+                input[c * fresh + r] = input(cal, c, rows, position, rows.timeStamp(position),
+                        m_rowsPrimed + r);
+            }
+        }
+        m_network.rnnTimeStep(Nd4j.create(input, new int[] { 1, cal.m_numInputs, fresh }));
+
+        m_history = rows.tail(cal.m_maxLag + 1);
+        m_rowsPrimed += fresh;
+        return true;
+    }
+
+    /**
+     * Forecast from the primed state, feeding each prediction back as the
+     * lagged value of the following steps
+     *
+     * @param steps the number of steps to forecast
+     * @param timeStamps the time stamps of the steps, if {@link #usesTimeStamps}
+     * @param out the array (steps by targets) to put the predictions in
+     */
+    public void forecastInto(int steps, long[] timeStamps, double[][] out) {
+        Calibration cal = m_cal;
+        List<Object> primed = cal.m_restoresState ? getState() : null;
+        RNNForecastingLagBuffer history = m_history.tail(cal.m_maxLag + 1);
+
+        int[] shape = cal.m_stepRank3 ? new int[] { 1, cal.m_numInputs, 1 }
+                : new int[] { 1, cal.m_numInputs };
+        double[] input = new double[cal.m_numInputs];
+        for (int k = 0; k < steps; k++) {
+            double timeStamp = timeStamps == null ? Double.NaN : timeStamps[k];
+            for (int c = 0; c < cal.m_numInputs; c++) {
+                input[c] = input(cal, c, history, history.end(), timeStamp, m_rowsPrimed + k);
+            }
+            INDArray output = m_network.rnnTimeStep(stepInput(input, shape));
+
+            for (int j = 0; j < out[k].length; j++) {
+                double o = output.rank() == 3 ? output.getDouble(0, cal.m_outColumn[j], output.size(2) - 1)
+                        : output.getDouble(0, cal.m_outColumn[j]);
+                out[k][j] = cal.m_outScale[j] * o + cal.m_outShift[j];
+            }
+            // the predictions are the lagged values of the following steps
+            history.push(out[k], timeStamp);
+        }
+
+        if (cal.m_restoresState) {
+            setState(primed);
+        }
+    }
+
+    /**
+     * Prime and forecast many series at once, each in its own row of the
+     * minibatch. The windows of series primed with the same number of time
+     * steps are stacked into one [series, inputs, time steps] array, with the
+     * RNN state of each series in its row, and run in one call; the forecast
+     * steps of all the series are then run together, one call per step. The
+     * network's own state is cleared afterwards.
+     *
+     * @param series the raw values of each series, which
+     *          {@link #canPrime(RNNForecastingLagBuffer)} must accept (the
+     *          buffers are not changed)
+     * @param states the RNN state each series carries on from, in the
+     *          forecaster's layout (null to start from a cleared state)
+     * @param steps the number of steps to forecast
+     * @param timeStamps the time stamps of the steps of each series, if
+     *          {@link #usesTimeStamps}
+     * @param out the arrays (steps by targets) to put the predictions of each
+     *          series in
+     * @return the RNN state of each series after forecasting, in the
+     *         forecaster's layout
+     */
+    public List<List<Object>> forecastBatch(List<RNNForecastingLagBuffer> series, List<List<Object>> states,
+                                            int steps, long[][] timeStamps, double[][][] out) {
+        Calibration cal = m_cal;
+        int size = series.size();
+        List<List<Map<String, INDArray>>> rowStates = new ArrayList<List<Map<String, INDArray>>>(size);
+        for (List<Object> state : states) {
+            rowStates.add(toLayers(state));
+        }
+
+        // prime: one call per length of window
+        Map<Integer, List<Integer>> byLength = new HashMap<Integer, List<Integer>>();
+        for (int i = 0; i < size; i++) {
+            int length = series.get(i).size() - cal.m_skip;
+            List<Integer> rows = byLength.get(length);
+            if (rows == null) {
+                rows = new ArrayList<Integer>();
+                byLength.put(length, rows);
+            }
+            rows.add(i);
+        }
+        for (Map.Entry<Integer, List<Integer>> group : byLength.entrySet()) {
+            int length = group.getKey();
+            List<Integer> rows = group.getValue();
+            double[] input = new double[rows.size() * cal.m_numInputs * length];
+            for (int b = 0; b < rows.size(); b++) {
+                RNNForecastingLagBuffer buffer = series.get(rows.get(b));
+                long first = buffer.first();
+                for (int r = 0; r < length; r++) {
+                    long position = first + cal.m_skip + r;
+                    for (int c = 0; c < cal.m_numInputs; c++) {
+                        input[(b * cal.m_numInputs + c) * length + r] = input(cal, c, buffer, position,
+                                buffer.timeStamp(position), position - first);
+                    }
+                }
+            }
+            runBatch(Nd4j.create(input, new int[] { rows.size(), cal.m_numInputs, length }), rows,
+                    rowStates);
+        }
+        List<List<Object>> primed = new ArrayList<List<Object>>(size);
+        for (int i = 0; i < size; i++) {
+            primed.add(cal.m_restoresState ? fromLayers(rowStates.get(i)) : null);
+        }
+
+        // forecast all the series together, a step at a time
+        List<RNNForecastingLagBuffer> histories = new ArrayList<RNNForecastingLagBuffer>(size);
+        List<Integer> all = new ArrayList<Integer>(size);
+        for (int i = 0; i < size; i++) {
+            histories.add(series.get(i).tail(cal.m_maxLag + 1));
+            all.add(i);
+        }
+        int[] shape = cal.m_stepRank3 ? new int[] { size, cal.m_numInputs, 1 }
+                : new int[] { size, cal.m_numInputs };
+        double[] input = new double[size * cal.m_numInputs];
+        for (int k = 0; k < steps; k++) {
+            for (int i = 0; i < size; i++) {
+                RNNForecastingLagBuffer history = histories.get(i);
+                double timeStamp = timeStamps == null ? Double.NaN : timeStamps[i][k];
+                for (int c = 0; c < cal.m_numInputs; c++) {
+                    input[i * cal.m_numInputs + c] = input(cal, c, history, history.end(), timeStamp,
+                            series.get(i).size() + k);
+                }
+            }
+            INDArray output = runBatch(Nd4j.create(input, shape), all, rowStates);
+            for (int i = 0; i < size; i++) {
+                double[] predictions = out[i][k];
+                for (int j = 0; j < predictions.length; j++) {
+                    double o = output.rank() == 3
+                            ? output.getDouble(i, cal.m_outColumn[j], output.size(2) - 1)
+                            : output.getDouble(i, cal.m_outColumn[j]);
+                    predictions[j] = cal.m_outScale[j] * o + cal.m_outShift[j];
+                }
+                histories.get(i).push(predictions, timeStamps == null ? Double.NaN : timeStamps[i][k]);
+            }
+        }
+        m_network.rnnClearPreviousState();
+
+        List<List<Object>> result = new ArrayList<List<Object>>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(cal.m_restoresState ? primed.get(i) : fromLayers(rowStates.get(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Run one call of the network for some of the series of a batch: stack
+     * their layer states (zeros for a series without one), run the input, and
+     * split the new states back into the series
+     *
+     * @param input the input, one minibatch row per series
+     * @param rows the series, in the order of the minibatch rows
+     * @param rowStates the layer states of every series of the batch
+     * @return the output
+     */
+    private INDArray runBatch(INDArray input, List<Integer> rows,
+                              List<List<Map<String, INDArray>>> rowStates) {
+        m_network.rnnClearPreviousState();
+        for (int layer = 0; layer < m_cal.m_recurrent.length; layer++) {
+            if (!m_cal.m_recurrent[layer]) {
+                continue;
+            }
+            Map<String, INDArray> example = null;
+            for (int i : rows) {
+                Map<String, INDArray> state = rowStates.get(i).get(layer);
+                if (state != null && !state.isEmpty()) {
+                    example = state;
+                    break;
+                }
+            }
+            if (example == null) {
+                continue;
+            }
+            Map<String, INDArray> stacked = new HashMap<String, INDArray>();
+            for (Map.Entry<String, INDArray> entry : example.entrySet()) {
+                INDArray[] parts = new INDArray[rows.size()];
+                for (int b = 0; b < parts.length; b++) {
+                    Map<String, INDArray> state = rowStates.get(rows.get(b)).get(layer);
+                    INDArray value = state == null ? null : state.get(entry.getKey());
+                    parts[b] = value != null ? value : Nd4j.zeros(entry.getValue().shape());
+                }
+                stacked.put(entry.getKey(), Nd4j.concat(0, parts));
+            }
+            m_network.rnnSetPreviousState(layer, stacked);
+        }
+
+        INDArray output = m_network.rnnTimeStep(input);
+
+        for (int layer = 0; layer < m_cal.m_recurrent.length; layer++) {
+            if (!m_cal.m_recurrent[layer]) {
+                continue;
+            }
+            Map<String, INDArray> state = m_network.rnnGetPreviousState(layer);
+            for (int b = 0; b < rows.size(); b++) {
+                Map<String, INDArray> rowState = new HashMap<String, INDArray>();
+                for (Map.Entry<String, INDArray> entry : state.entrySet()) {
+                    rowState.put(entry.getKey(), row(entry.getValue(), b));
+                }
+                rowStates.get(rows.get(b)).set(layer, rowState);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Get a row of an array stacked along the minibatch dimension, keeping
+     * the rank
+     */
+    private static INDArray row(INDArray stacked, int i) {
+        if (stacked.rank() == 3) {
+            return stacked.get(NDArrayIndex.interval(i, i + 1), NDArrayIndex.all(),
+                    NDArrayIndex.all()).dup();
+        }
+        return stacked.getRow(i).dup();
+    }
+
+    /**
+     * Get the array to feed the network at a forecast step: a new one, or the
+     * kept one filled in place
+     */
+    private INDArray stepInput(double[] input, int[] shape) {
+        if (!m_reuseBuffers) {
+            return Nd4j.create(input, shape);
+        }
+        if (m_stepInput == null) {
+            m_stepInput = Nd4j.create(input, shape);
+            return m_stepInput;
+        }
+        int[] index = new int[shape.length];
+        for (int c = 0; c < input.length; c++) {
+            index[1] = c;
+            m_stepInput.putScalar(index, input[c]);
+        }
+        return m_stepInput;
+    }
+
+    /**
+     * Compute a network input for the row at a position, from the rows before
+     * it in a buffer
+     */
+    private static double input(Calibration cal, int c, RNNForecastingLagBuffer rows, long position,
+                                double timeStamp, long rowIndex) {
+        double x;
+        switch (cal.m_kind[c]) {
+        case CONSTANT:
+            return cal.m_shift[c];
+        case LAG:
+            x = rows.value(cal.m_target[c], position - cal.m_lag[c]);
+            break;
+        case AVERAGE:
+            x = rows.average(cal.m_target[c], position - cal.m_lag[c], cal.m_rows[c]);
+            break;
+        case TIME_STAMP:
+            x = timeStamp;
+            break;
+        default:
+            x = rowIndex;
+        }
+        return Double.isNaN(x) ? cal.m_missing[c] : cal.m_scale[c] * x + cal.m_shift[c];
+    }
+
+    /**
+     * Work out how to run a model's network directly, and check that doing so
+     * gives the same results as the Weka forecaster
+     *
+     * @param model the model, which is copied, so no other thread may use it
+     *          while it is calibrated on
+     * @param sample rows of a series to calibrate with, at least
+     *          {@link #minSampleRows} of them, without missing values
+     * @return the engine, bound to the model's own network
+     * @throws UnsupportedModelException if the model can't be run directly
+     * @throws Exception if the model can't be copied or run
+     */
+    public static RNNForecastingDirectEngine calibrate(RNNForecastingModel model, Instances sample)
+            throws Exception {
+        if (!(model.getModel() instanceof WekaForecaster)) {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.NotForecaster"); //$NON-NLS-1$
+        }
+        if (sample.numInstances() < minSampleRows(model)) {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.SampleTooSmall", //$NON-NLS-1$
+                    minSampleRows(model));
+        }
+
+        RNNForecastingModel replica = model.copy();
+        WekaForecaster forecaster = (WekaForecaster) replica.getModel();
+        TSLagMaker lagMaker = forecaster.getTSLagMaker();
+        if (forecaster.isProducingConfidenceIntervals()) {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Intervals"); //$NON-NLS-1$
+        }
+        if (lagMaker.getOverlayFields() != null && !lagMaker.getOverlayFields().isEmpty()) {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Overlay"); //$NON-NLS-1$
+        }
+        List<RNNForecastingNetworks.Slot> slots = RNNForecastingNetworks.find(forecaster);
+        if (slots.size() != 1) {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Networks", //$NON-NLS-1$
+                    slots.size());
+        }
+        Capture capture = new Capture(slots.get(0).get());
+        slots.get(0).set(capture);
+
+        Calibration cal = new Calibration();
+        cal.m_maxLag = Math.max(model.getMaxLag(), 0);
+        cal.m_recurrent = RNNForecastingNetworks.recurrentLayers(capture);
+        List<String> targets = new ArrayList<String>();
+        for (String target : model.getTargetFieldNames()) {
+            targets.add(target.trim());
+        }
+        Instances header = model.getHeader();
+        cal.m_targetIndexes = new int[targets.size()];
+        for (int j = 0; j < targets.size(); j++) {
+            Attribute att = header.attribute(targets.get(j));
+            if (att == null) {
+                throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Target", //$NON-NLS-1$
+                        targets.get(j));
+            }
+            cal.m_targetIndexes[j] = att.index();
+        }
+        String timeStampField = model.getTimeStampField();
+        Attribute dateAtt = timeStampField == null ? null : header.attribute(timeStampField);
+        cal.m_dateIndex = dateAtt == null ? -1 : dateAtt.index();
+        layoutInputs(cal, lagMaker, targets, forecaster);
+
+        // record how the forecaster drives the network: the rows its lags
+        // skip, the shape of the step inputs and the layout of the RNN state
+        Run original = Run.record(replica, capture, sample, cal, true);
+        if (original.m_primeInputs.isEmpty() || original.m_stepInputs.size() != CAL_STEPS
+                || original.m_stepCalls != CAL_STEPS || capture.m_unsupported
+                || original.m_primeInputs.get(0).length != cal.m_numInputs) {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Calls"); //$NON-NLS-1$
+        }
+        cal.m_skip = sample.numInstances() - original.m_primeInputs.size();
+        cal.m_stepRank3 = original.m_stepRank3;
+        if (cal.m_skip < 0) {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Calls"); //$NON-NLS-1$
+        }
+        fitState(cal, original);
+
+        // run the engine next to the forecaster, from a cleared state and then
+        // carrying on from there with a shifted, perturbed series
+        RNNForecastingDirectEngine engine = new RNNForecastingDirectEngine(cal,
+                RNNForecastingNetworks.share(capture));
+        engine.clearState();
+        verify(engine, lagMaker, original, sample);
+        Instances shifted = new Instances(perturb(sample, cal), SHIFT,
+                sample.numInstances() - SHIFT);
+        verify(engine, lagMaker, Run.record(replica, capture, shifted, cal, false), shifted);
+
+        // the engine is only a template for bind(), so don't keep the replica's
+        // network (and with it the replica) alive
+        MultiLayerNetwork own = findNetwork(model.getModel());
+        return own == null ? engine : engine.bind(own);
+    }
+
+    /**
+     * A network that records the inputs of each time step, one array per
+     * minibatch row and time step
+     */
+    private static final class Capture extends MultiLayerNetwork {
+
+        /** For serialization */
+        private static final long serialVersionUID = 1953398425571322846L;
+
+        final List<double[]> m_inputs = new ArrayList<double[]>();
+        int m_calls;
+        boolean m_rank3;
+        boolean m_unsupported;
+
+        Capture(MultiLayerNetwork network) {
+            super(network.getLayerWiseConfigurations().clone(), network.params());
+            init();
+        }
+
+        void reset() {
+            m_inputs.clear();
+            m_calls = 0;
+        }
+
+        @Override
+        public INDArray rnnTimeStep(INDArray input) {
+            INDArray output = super.rnnTimeStep(input);
+            if (input.size(0) != 1) {
+                m_unsupported = true;
+            }
+            m_calls++;
+            m_rank3 = input.rank() == 3;
+            split(input, m_inputs);
+            return output;
+        }
+
+        private static void split(INDArray array, List<double[]> rows) {
+            int width = array.size(1);
+            int steps = array.rank() == 3 ? array.size(2) : 1;
+            for (int t = 0; t < steps; t++) {
+                double[] row = new double[width];
+                for (int c = 0; c < width; c++) {
+                    row[c] = array.rank() == 3 ? array.getDouble(0, c, t) : array.getDouble(0, c);
+                }
+                rows.add(row);
+            }
+        }
+    }
+
+    /**
+     * What the forecaster did when priming and forecasting a series
+     */
+    private static final class Run {
+        List<double[]> m_primeInputs;
+        List<double[]> m_stepInputs;
+        int m_stepCalls;
+        boolean m_stepRank3;
+        long[] m_timeStamps;
+        double[][] m_predictions;
+        List<Object> m_primedState;
+        List<Object> m_finalState;
+        List<Map<String, INDArray>> m_networkState;
+
+        static Run record(RNNForecastingModel replica, Capture capture, Instances data, Calibration cal,
+                          boolean clearState) throws Exception {
+            Run run = new Run();
+            if (clearState) {
+                replica.clearPreviousState();
+            }
+            capture.reset();
+            replica.primeForecaster(data);
+            run.m_primeInputs = new ArrayList<double[]>(capture.m_inputs);
+            run.m_primedState = replica.getPreviousState();
+            run.m_networkState = new ArrayList<Map<String, INDArray>>();
+            for (int layer = 0; layer < cal.m_recurrent.length; layer++) {
+                if (cal.m_recurrent[layer]) {
+                    run.m_networkState.add(new HashMap<String, INDArray>(capture.rnnGetPreviousState(layer)));
+                }
+            }
+            if (cal.m_dateIndex >= 0) {
+                run.m_timeStamps = replica.getForecastTimeStamps(CAL_STEPS);
+            }
+
+            capture.reset();
+            run.m_predictions = new double[CAL_STEPS][cal.m_targetIndexes.length];
+            replica.forecastInto(CAL_STEPS, run.m_predictions);
+            run.m_stepInputs = new ArrayList<double[]>(capture.m_inputs);
+            run.m_stepCalls = capture.m_calls;
+            run.m_stepRank3 = capture.m_rank3;
+            run.m_finalState = replica.getPreviousState();
+            return run;
+        }
+    }
+
+    /**
+     * Copy a sample with a small, deterministic wiggle added to its targets,
+     * so that the second verification run doesn't just repeat the first
+     */
+    private static Instances perturb(Instances sample, Calibration cal) {
+        Instances copy = new Instances(sample);
+        for (int j = 0; j < cal.m_targetIndexes.length; j++) {
+            int index = cal.m_targetIndexes[j];
+            double mean = 0;
+            double sq = 0;
+            int n = copy.numInstances();
+            for (int t = 0; t < n; t++) {
+                mean += copy.instance(t).value(index) / n;
+            }
+            for (int t = 0; t < n; t++) {
+                double d = copy.instance(t).value(index) - mean;
+                sq += d * d / n;
+            }
+            double amplitude = sq > 0 ? 0.25 * Math.sqrt(sq) : 1;
+            for (int t = 0; t < n; t++) {
+                copy.instance(t).setValue(index,
+                        copy.instance(t).value(index) + amplitude * Math.sin(1.3 * t + 0.7 * j + 0.1));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Lay out the network inputs from the lag maker's settings, and read how
+     * each input and prediction is scaled from the base forecaster's
+     * pre-processing. The network takes the attributes of the pre-processed
+     * data other than the targets, in order, and gives the targets back in
+     * the order they are forecast.
+     */
+    private static void layoutInputs(Calibration cal, TSLagMaker lagMaker, List<String> targets,
+                                     WekaForecaster forecaster) throws Exception {
+        if (lagMaker.getAdjustForVariance()) {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Variance"); //$NON-NLS-1$
+        }
+        if (lagMaker.getIncludePowersOfTime()) {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.PowersOfTime"); //$NON-NLS-1$
+        }
+        if (lagMaker.getIncludeTimeLagProducts()) {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.TimeLagProducts"); //$NON-NLS-1$
+        }
+        String periodic = lagMaker.getPrimaryPeriodicFieldName();
+        if (periodic != null && periodic.length() > 0) {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Periodic", //$NON-NLS-1$
+                    periodic);
+        }
+
+        // what each attribute made by the lag maker holds: {kind, target,
+        // smallest lag, number of lags averaged}
+        Map<String, int[]> made = new HashMap<String, int[]>();
+        int minLag = Math.max(lagMaker.getMinLag(), 1);
+        int maxLag = lagMaker.getMaxLag();
+        int averageAfter = lagMaker.getAverageConsecutiveLongLags() ? lagMaker.getAverageLagsAfter()
+                : Integer.MAX_VALUE;
+        int averaged = Math.max(lagMaker.getNumConsecutiveLongLagsToAverage(), 1);
+        List<String> lagged = lagMaker.getFieldsToLag();
+        if (lagged != null) {
+            for (String field : lagged) {
+                int j = targets.indexOf(field.trim());
+                if (j < 0) {
+                    throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.LagField", //$NON-NLS-1$
+                            field);
+                }
+                int lag = minLag;
+                while (lag <= maxLag) {
+                    if (lag > averageAfter && averaged > 1) {
+                        int last = Math.min(lag + averaged - 1, maxLag);
+                        made.put(averageName(field, lag, last), new int[] { AVERAGE, j, lag, last - lag + 1 });
+                        lag = last + 1;
+                    } else {
+                        made.put(lagName(field, lag), new int[] { LAG, j, lag, 1 });
+                        lag++;
+                    }
+                }
+            }
+        }
+        if (lagMaker.isUsingAnArtificialTimeIndex()) {
+            made.put(ARTIFICIAL_TIME_INDEX, new int[] { ROW_INDEX, 0, 0, 0 });
+        } else if (cal.m_dateIndex >= 0) {
+            made.put(lagMaker.getTimeStampField(), new int[] { TIME_STAMP, 0, 0, 0 });
+        }
+
+        // pass all-0, all-1, all-2 and all-missing rows through the filters,
+        // to read the scale and shift of each attribute (and check that they
+        // are linear) and what a missing value becomes
+        if (lagMaker.getTransformedDataFormat() == null) {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Format"); //$NON-NLS-1$
+        }
+        Instances format = new Instances(lagMaker.getTransformedDataFormat(), 0);
+        Instance[] probes = new Instance[] { probe(format, 0), probe(format, 1), probe(format, 2),
+            probe(format, Double.NaN) };
+        for (Filter filter : RNNForecastingNetworks.findFilters(forecaster.getBaseForecaster())) {
+            for (int p = 0; p < probes.length; p++) {
+                if (!filter.input(probes[p]) || (probes[p] = filter.output()) == null) {
+                    throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Preprocessing", //$NON-NLS-1$
+                            filter.getClass().getSimpleName());
+                }
+            }
+            format = filter.getOutputFormat();
+        }
+
+        int width = format.numAttributes();
+        cal.m_kind = new int[width];
+        cal.m_target = new int[width];
+        cal.m_lag = new int[width];
+        cal.m_rows = new int[width];
+        cal.m_scale = new double[width];
+        cal.m_shift = new double[width];
+        cal.m_missing = new double[width];
+        cal.m_outColumn = new int[targets.size()];
+        cal.m_outScale = new double[targets.size()];
+        cal.m_outShift = new double[targets.size()];
+        boolean[] predicted = new boolean[targets.size()];
+        int c = 0;
+        for (int k = 0; k < width; k++) {
+            String name = format.attribute(k).name();
+            double shift = probes[0].value(k);
+            double scale = probes[1].value(k) - shift;
+            boolean linear = RNNForecastingNetworks.close(probes[2].value(k), shift + 2 * scale, TOLERANCE);
+            int j = targets.indexOf(name);
+            if (j >= 0) {
+                if (!linear || scale == 0) {
+                    throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Output", //$NON-NLS-1$
+                            name);
+                }
+                cal.m_outColumn[j] = j;
+                cal.m_outScale[j] = 1 / scale;
+                cal.m_outShift[j] = -shift / scale;
+                predicted[j] = true;
+                continue;
+            }
+            int[] input = made.get(name);
+            if (input == null) {
+                throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Input", name); //$NON-NLS-1$
+            }
+            if (!linear) {
+                throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Preprocessing", //$NON-NLS-1$
+                        name);
+            }
+            cal.m_kind[c] = input[0];
+            cal.m_target[c] = input[1];
+            cal.m_lag[c] = input[2];
+            cal.m_rows[c] = input[3];
+            cal.m_scale[c] = scale;
+            cal.m_shift[c] = shift;
+            cal.m_missing[c] = probes[3].value(k);
+            if (input[0] == ROW_INDEX) {
+                // the index counts on from the lag maker's start value
+                cal.m_shift[c] += scale * lagMaker.getArtificialTimeStartValue();
+            }
+            cal.m_usesTimeStamps |= input[0] == TIME_STAMP;
+            c++;
+        }
+        for (int j = 0; j < predicted.length; j++) {
+            if (!predicted[j]) {
+                throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Output", //$NON-NLS-1$
+                        targets.get(j));
+            }
+        }
+        cal.m_numInputs = c;
+    }
+
+    /**
+     * The name the lag maker gives a lagged field
+     */
+    private static String lagName(String field, int lag) {
+        return "Lag_" + field + "-" + lag; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * The name the lag maker gives the average of consecutive lags of a field
+     */
+    private static String averageName(String field, int first, int last) {
+        return "Avg(" + lagName(field, first) + "," + lagName(field, last) + ")"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
+    /**
+     * Make a row of a format with the same value in every attribute
+     */
+    private static Instance probe(Instances format, double value) {
+        double[] vals = new double[format.numAttributes()];
+        Arrays.fill(vals, value);
+        Instance row = new DenseInstance(1, vals);
+        row.setDataset(format);
+        return row;
+    }
+
+    /**
+     * Work out how the forecaster lays out the RNN state, and whether it
+     * goes back to the primed state after forecasting
+     */
+    private static void fitState(Calibration cal, Run run) throws UnsupportedModelException {
+        List<Object> primed = run.m_primedState;
+        int recurrent = run.m_networkState.size();
+        if (primed != null && primed.size() == recurrent && recurrent != cal.m_recurrent.length
+                && RNNForecastingNetworks.sameState(primed, run.m_networkState, TOLERANCE)) {
+            cal.m_stateFormat = STATE_RECURRENT;
+        } else if (primed != null && primed.size() == cal.m_recurrent.length) {
+            cal.m_stateFormat = STATE_PER_LAYER;
+            int next = 0;
+            for (int layer = 0; layer < cal.m_recurrent.length; layer++) {
+                Object layerState = primed.get(layer);
+                boolean same;
+                if (cal.m_recurrent[layer]) {
+                    same = RNNForecastingNetworks.sameState(layerState, run.m_networkState.get(next++),
+                            TOLERANCE);
+                } else {
+                    // layers without a state hold null or an empty map
+                    cal.m_emptyLayerState |= layerState instanceof Map;
+                    same = layerState == null || (layerState instanceof Map && ((Map<?, ?>) layerState).isEmpty());
+                }
+                if (!same) {
+                    throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.State"); //$NON-NLS-1$
+                }
+            }
+        } else {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.State"); //$NON-NLS-1$
+        }
+        cal.m_restoresState = RNNForecastingNetworks.sameState(run.m_finalState, primed, TOLERANCE);
+    }
+
+    /**
+     * Run the engine on the same series as a recorded run of the forecaster
+     * (from the state the forecaster started from) and compare the results
+     */
+    private static void verify(RNNForecastingDirectEngine engine, TSLagMaker lagMaker, Run run,
+                               Instances data) throws Exception {
+        if (!engine.prime(data)) {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Mismatch", //$NON-NLS-1$
+                    "rows"); //$NON-NLS-1$
+        }
+        if (!RNNForecastingNetworks.sameState(engine.getState(), run.m_primedState, TOLERANCE)) {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Mismatch", //$NON-NLS-1$
+                    "state"); //$NON-NLS-1$
+        }
+
+        long[] timeStamps = null;
+        if (run.m_timeStamps != null) {
+            timeStamps = new long[CAL_STEPS];
+            double last = engine.getLastTimeStamp();
+            for (int k = 0; k < CAL_STEPS; k++) {
+                last = lagMaker.advanceSuppliedTimeValue(last);
+                timeStamps[k] = (long) last;
+            }
+            for (int k = 0; k < CAL_STEPS; k++) {
+                if (timeStamps[k] != run.m_timeStamps[k]) {
+                    throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Mismatch", //$NON-NLS-1$
+                            "time stamps"); //$NON-NLS-1$
+                }
+            }
+        }
+
+        double[][] predictions = new double[CAL_STEPS][engine.m_cal.m_targetIndexes.length];
+        engine.forecastInto(CAL_STEPS, timeStamps, predictions);
+        for (int k = 0; k < CAL_STEPS; k++) {
+            for (int j = 0; j < predictions[k].length; j++) {
+                if (!RNNForecastingNetworks.close(predictions[k][j], run.m_predictions[k][j], TOLERANCE)) {
+                    throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Mismatch", //$NON-NLS-1$
+                            "predictions"); //$NON-NLS-1$
+                }
+            }
+        }
+        if (!RNNForecastingNetworks.sameState(engine.getState(), run.m_finalState, TOLERANCE)) {
+            throw new UnsupportedModelException("RNNForecastingDirectEngine.Unsupported.Mismatch", //$NON-NLS-1$
+                    "state"); //$NON-NLS-1$
+        }
+    }
+}
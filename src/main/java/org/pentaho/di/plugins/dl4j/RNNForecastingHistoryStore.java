@@ -0,0 +1,311 @@
+package org.pentaho.di.plugins.dl4j;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Compressed, column oriented store for the history of a series (the
+ * attribute values of the rows seen so far). Each attribute is encoded as a
+ * stream of bytes, using the encoding that suits its type:
+ * <ul>
+ * <li>dates: delta-of-delta, so that regularly spaced time stamps take one
+ * byte each</li>
+ * <li>numbers: XOR with the previous value (with the trailing zero bits
+ * dropped), so that repeated and slowly changing values take a few bytes</li>
+ * <li>nominal values (and dictionary encoded strings): the label index</li>
+ * </ul>
+ * Integers are written as (zigzag) variable length quantities. Missing values
+ * are kept in a bit set per attribute and take no space in the stream.
+ *
+ * The rows are decoded straight into the Instances used to prime the
+ * forecaster, or into the buffer of raw values the network is primed from
+ * when it is run directly. Not thread-safe.
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingHistoryStore {
+
+    /** One encoder per attribute */
+    private final Column[] m_columns;
+
+    /** Number of rows held */
+    private int m_size;
+
+    /**
+     * Creates a new <code>RNNForecastingHistoryStore</code>
+     *
+     * @param header the header of the model
+     */
+    public RNNForecastingHistoryStore(Instances header) {
+        m_columns = new Column[header.numAttributes()];
+        for (int i = 0; i < m_columns.length; i++) {
+            Attribute att = header.attribute(i);
+            if (att.isDate()) {
+                m_columns[i] = new DateColumn();
+            } else if (att.isNumeric()) {
+                m_columns[i] = new NumberColumn();
+            } else if (att.isNominal() || att.isString()) {
+                m_columns[i] = new LabelColumn();
+            } else {
+                m_columns[i] = new RawColumn();
+            }
+        }
+    }
+
+    /**
+     * Add a row
+     *
+     * @param vals the attribute values of the row
+     */
+    public void add(double[] vals) {
+        for (int i = 0; i < m_columns.length; i++) {
+            Column column = m_columns[i];
+            if (Utils.isMissingValue(vals[i])) {
+                column.m_missing.set(m_size);
+            } else {
+                column.encode(vals[i]);
+            }
+        }
+        m_size++;
+    }
+
+    /**
+     * Get the number of rows held
+     *
+     * @return the number of rows
+     */
+    public int size() {
+        return m_size;
+    }
+
+    /**
+     * Get the number of bytes the encoded rows take up
+     *
+     * @return the number of bytes
+     */
+    public long encodedBytes() {
+        long bytes = 0;
+        for (Column column : m_columns) {
+            bytes += column.m_length + column.m_missing.size() / 8;
+        }
+        return bytes;
+    }
+
+    /**
+     * Decode the rows (oldest first) into a new set of instances
+     *
+     * @param header the header for the instances
+     * @return the instances
+     */
+    public Instances toInstances(Instances header) {
+        Instances result = new Instances(header, m_size);
+        startDecoding();
+        for (int row = 0; row < m_size; row++) {
+            double[] vals = new double[m_columns.length];
+            decode(row, vals);
+            Instance inst = new DenseInstance(1.0, vals);
+            inst.setDataset(result);
+            result.add(inst);
+        }
+        return result;
+    }
+
+    /**
+     * Decode the rows (oldest first) into a buffer of raw values
+     *
+     * @param lags the buffer to add the rows to
+     */
+    public void decodeInto(RNNForecastingLagBuffer lags) {
+        startDecoding();
+        double[] vals = new double[m_columns.length];
+        for (int row = 0; row < m_size; row++) {
+            decode(row, vals);
+            lags.pushValues(vals);
+        }
+    }
+
+    private void startDecoding() {
+        for (Column column : m_columns) {
+            column.startDecoding();
+        }
+    }
+
+    /**
+     * Decode the next row (every column must be decoded, in row order)
+     */
+    private void decode(int row, double[] vals) {
+        for (int i = 0; i < m_columns.length; i++) {
+            Column column = m_columns[i];
+            vals[i] = column.m_missing.get(row) ? Utils.missingValue() : column.decode();
+        }
+    }
+
+    /**
+     * The encoded values of one attribute
+     */
+    private abstract static class Column {
+        /** Rows with a missing value */
+        final BitSet m_missing = new BitSet();
+
+        /** The encoded values */
+        byte[] m_bytes = new byte[64];
+        int m_length;
+
+        /** Read position while decoding */
+        int m_position;
+
+        abstract void encode(double value);
+
+        abstract double decode();
+
+        void startDecoding() {
+            m_position = 0;
+        }
+
+        void writeByte(int b) {
+            if (m_length == m_bytes.length) {
+                m_bytes = Arrays.copyOf(m_bytes, m_bytes.length << 1);
+            }
+            m_bytes[m_length++] = (byte) b;
+        }
+
+        int readByte() {
+            return m_bytes[m_position++] & 0xff;
+        }
+
+        void writeUnsigned(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        long readUnsigned() {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        void writeSigned(long value) {
+            writeUnsigned((value << 1) ^ (value >> 63));
+        }
+
+        long readSigned() {
+            long value = readUnsigned();
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+
+    /**
+     * Time stamps (milliseconds since the epoch) as the difference between
+     * successive deltas
+     */
+    private static final class DateColumn extends Column {
+        private long m_previous;
+        private long m_previousDelta;
+        private long m_decoded;
+        private long m_decodedDelta;
+
+        void encode(double value) {
+            long timeStamp = (long) value;
+            long delta = timeStamp - m_previous;
+            writeSigned(delta - m_previousDelta);
+            m_previous = timeStamp;
+            m_previousDelta = delta;
+        }
+
+        void startDecoding() {
+            super.startDecoding();
+            m_decoded = 0;
+            m_decodedDelta = 0;
+        }
+
+        double decode() {
+            m_decodedDelta += readSigned();
+            m_decoded += m_decodedDelta;
+            return m_decoded;
+        }
+    }
+
+    /**
+     * Numbers as the XOR of their bits with those of the previous value. The
+     * trailing zero bits of the XOR are dropped and their count written first.
+     */
+    private static final class NumberColumn extends Column {
+        private long m_previous;
+        private long m_decoded;
+
+        void encode(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            long xor = bits ^ m_previous;
+            if (xor == 0) {
+                writeByte(64);
+            } else {
+                int trailing = Long.numberOfTrailingZeros(xor);
+                writeByte(trailing);
+                writeUnsigned(xor >>> trailing);
+            }
+            m_previous = bits;
+        }
+
+        void startDecoding() {
+            super.startDecoding();
+            m_decoded = 0;
+        }
+
+        double decode() {
+            int trailing = readByte();
+            if (trailing < 64) {
+                m_decoded ^= readUnsigned() << trailing;
+            }
+            return Double.longBitsToDouble(m_decoded);
+        }
+    }
+
+    /**
+     * Label indexes of nominal (or dictionary encoded string) values
+     */
+    private static final class LabelColumn extends Column {
+        void encode(double value) {
+            writeUnsigned((long) value);
+        }
+
+        double decode() {
+            return readUnsigned();
+        }
+    }
+
+    /**
+     * Any other values, as the raw bits of the double
+     */
+    private static final class RawColumn extends Column {
+        void encode(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            for (int i = 0; i < 8; i++) {
+                writeByte((int) (bits >>> (i * 8)));
+            }
+        }
+
+        double decode() {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits |= (long) readByte() << (i * 8);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package org.pentaho.di.plugins.dl4j;
+
+import java.io.Serializable;
+
+import weka.core.Instance;
+
+/**
+ * Ring buffers of the raw values of a series (the targets and the time stamp)
+ * that the lagged variables are made from. Rows are addressed by their
+ * position in the series (0 for the first row ever added), so a row keeps its
+ * position when older rows drop out. Adding a row, and reading a lagged
+ * value, the difference of two consecutive values or the average of a run of
+ * consecutive values, all take constant time: averages are read off running
+ * sums, which are rebased once per lap of the ring so that they don't lose
+ * precision on long series.
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingLagBuffer implements Serializable {
+
+    /** For serialization */
+    private static final long serialVersionUID = -2317470212470329841L;
+
+    /** The attribute indexes of the values kept, and of the time stamp (or -1) */
+    private final int[] m_columns;
+    private final int m_dateIndex;
+
+    /** The values of each column, the running sums, and the time stamps */
+    private final double[][] m_values;
+    private final double[][] m_sums;
+    private final double[] m_timeStamps;
+
+    /** Number of rows the buffer holds at most */
+    private final int m_capacity;
+
+    /** Position of the first row added, and of the next row to be added */
+    private long m_start;
+    private long m_end;
+
+    /** Number of values (and time stamps) held that are missing */
+    private int m_missing;
+
+    /**
+     * Creates a new, empty <code>RNNForecastingLagBuffer</code>
+     *
+     * @param columns the attribute indexes of the values to keep
+     * @param dateIndex the attribute index of the time stamp, or -1
+     * @param capacity the number of rows to keep
+     */
+    public RNNForecastingLagBuffer(int[] columns, int dateIndex, int capacity) {
+        m_columns = columns.clone();
+        m_dateIndex = dateIndex;
+        m_capacity = Math.max(capacity, 1);
+        m_values = new double[columns.length][m_capacity];
+        m_sums = new double[columns.length][m_capacity];
+        m_timeStamps = new double[m_capacity];
+    }
+
+    /**
+     * Create an empty buffer for the same columns
+     *
+     * @param capacity the number of rows to keep
+     * @return the buffer
+     */
+    public RNNForecastingLagBuffer newBuffer(int capacity) {
+        return new RNNForecastingLagBuffer(m_columns, m_dateIndex, capacity);
+    }
+
+    /**
+     * Create a buffer for the same columns holding the last rows of this one
+     *
+     * @param capacity the number of rows to keep
+     * @return the buffer, with the rows at the same positions
+     */
+    public RNNForecastingLagBuffer tail(int capacity) {
+        RNNForecastingLagBuffer tail = newBuffer(capacity);
+        long first = Math.max(first(), m_end - tail.m_capacity);
+        tail.m_start = first;
+        tail.m_end = first;
+        double[] row = new double[m_columns.length];
+        for (long i = first; i < m_end; i++) {
+            for (int j = 0; j < row.length; j++) {
+                row[j] = value(j, i);
+            }
+            tail.push(row, timeStamp(i));
+        }
+        return tail;
+    }
+
+    /**
+     * Add the values of a row
+     *
+     * @param inst the row
+     */
+    public void push(Instance inst) {
+        double[] row = new double[m_columns.length];
+        for (int j = 0; j < row.length; j++) {
+            row[j] = inst.value(m_columns[j]);
+        }
+        push(row, m_dateIndex < 0 ? Double.NaN : inst.value(m_dateIndex));
+    }
+
+    /**
+     * Add the values of a row, given as the values of all its attributes
+     *
+     * @param vals the attribute values of the row
+     */
+    public void pushValues(double[] vals) {
+        double[] row = new double[m_columns.length];
+        for (int j = 0; j < row.length; j++) {
+            row[j] = vals[m_columns[j]];
+        }
+        push(row, m_dateIndex < 0 ? Double.NaN : vals[m_dateIndex]);
+    }
+
+    /**
+     * Add a row, dropping the oldest if the buffer is full
+     *
+     * @param values the value of each column
+     * @param timeStamp the time stamp (NaN if there is none)
+     */
+    public void push(double[] values, double timeStamp) {
+        int slot = (int) (m_end % m_capacity);
+        if (size() == m_capacity) {
+            m_missing -= count(slot);
+        }
+        if (slot == 0 && size() > 0) {
+            rebase();
+        }
+
+        for (int j = 0; j < m_columns.length; j++) {
+            double previous = size() > 0 ? m_sums[j][(int) ((m_end - 1) % m_capacity)] : 0;
+            m_values[j][slot] = values[j];
+            m_sums[j][slot] = previous + (Double.isNaN(values[j]) ? 0 : values[j]);
+        }
+        m_timeStamps[slot] = timeStamp;
+        m_end++;
+        m_missing += count(slot);
+    }
+
+    /**
+     * Remove all rows, starting again at position 0
+     */
+    public void clear() {
+        m_start = 0;
+        m_end = 0;
+        m_missing = 0;
+    }
+
+    /**
+     * Get the number of rows held
+     *
+     * @return the number of rows
+     */
+    public int size() {
+        return (int) Math.min(m_end - m_start, m_capacity);
+    }
+
+    /**
+     * Get the position of the oldest row held
+     *
+     * @return the position
+     */
+    public long first() {
+        return m_end - size();
+    }
+
+    /**
+     * Get the position the next row will be added at
+     *
+     * @return the position
+     */
+    public long end() {
+        return m_end;
+    }
+
+    /**
+     * Whether any value of a column (or a time stamp, if the series has them)
+     * of the rows held is missing
+     *
+     * @return true if a value is missing
+     */
+    public boolean hasMissing() {
+        return m_missing > 0;
+    }
+
+    /**
+     * Whether a row is held
+     *
+     * @param position the position of the row
+     * @return true if it is held
+     */
+    public boolean holds(long position) {
+        return position >= first() && position < m_end;
+    }
+
+    /**
+     * Get a value
+     *
+     * @param column the column (index into the columns the buffer was made with)
+     * @param position the position of the row
+     * @return the value, or NaN if the row isn't held
+     */
+    public double value(int column, long position) {
+        return holds(position) ? m_values[column][(int) (position % m_capacity)] : Double.NaN;
+    }
+
+    /**
+     * Get the average of a value over consecutive rows
+     *
+     * @param column the column
+     * @param position the position of the last of the rows
+     * @param rows the number of rows
+     * @return the average, or NaN if any of the rows isn't held
+     */
+    public double average(int column, long position, int rows) {
+        long start = position - rows + 1;
+        if (rows <= 0 || !holds(start) || !holds(position)) {
+            return Double.NaN;
+        }
+        double sum = m_sums[column][(int) (position % m_capacity)];
+        if (start > first()) {
+            sum -= m_sums[column][(int) ((start - 1) % m_capacity)];
+        } else {
+            int slot = (int) (first() % m_capacity);
+            sum -= m_sums[column][slot] - (Double.isNaN(m_values[column][slot]) ? 0 : m_values[column][slot]);
+        }
+        return sum / rows;
+    }
+
+    /**
+     * Get a time stamp
+     *
+     * @param position the position of the row
+     * @return the time stamp, or NaN if the row isn't held or has none
+     */
+    public double timeStamp(long position) {
+        return holds(position) ? m_timeStamps[(int) (position % m_capacity)] : Double.NaN;
+    }
+
+    /**
+     * Get the time stamp of the last row
+     *
+     * @return the time stamp, or NaN if there are no rows
+     */
+    public double lastTimeStamp() {
+        return timeStamp(m_end - 1);
+    }
+
+    /**
+     * Number of missing values in a slot
+     */
+    private int count(int slot) {
+        int missing = m_dateIndex >= 0 && Double.isNaN(m_timeStamps[slot]) ? 1 : 0;
+        for (int j = 0; j < m_columns.length; j++) {
+            if (Double.isNaN(m_values[j][slot])) {
+                missing++;
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Restart the running sums from the oldest row held, once per lap of the
+     * ring, so that they stay of the order of the values
+     */
+    private void rebase() {
+        long first = first();
+        for (int j = 0; j < m_columns.length; j++) {
+            double sum = 0;
+            for (long i = first; i < m_end; i++) {
+                int slot = (int) (i % m_capacity);
+                sum += Double.isNaN(m_values[j][slot]) ? 0 : m_values[j][slot];
+                m_sums[j][slot] = sum;
+            }
+        }
+    }
+}
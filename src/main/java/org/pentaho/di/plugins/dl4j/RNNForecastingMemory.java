@@ -0,0 +1,209 @@
+package org.pentaho.di.plugins.dl4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the off-heap memory used by ND4J within a budget. ND4J arrays live
+ * off the Java heap and are only freed when their Java objects are garbage
+ * collected, which a run that allocates little on the heap may rarely cause.
+ * After each forecast this runs a garbage collection when the off-heap bytes
+ * in use (as counted by JavaCPP, which allocates them) go over the budget,
+ * and, if asked to, periodically as well.
+ *
+ * The budget is only enforced through these collections: JavaCPP's own limit
+ * (the org.bytedeco.javacpp.maxbytes system property) is JVM-wide, so it is
+ * not set from a step, where it would cap every other transformation running
+ * in the same JVM. To have JavaCPP refuse allocations beyond a hard limit,
+ * set it as a JVM option (-Dorg.bytedeco.javacpp.maxbytes=...) when starting
+ * Spoon, Carte or Kitchen.
+ *
+ * Series are forecast in parallel, so the collections aren't run by the
+ * thread that asks for one: they are run on one background thread shared by
+ * every step in the JVM, at most one at a time, and no more often than the
+ * interval that asked for them, counted from the last collection run for any
+ * step (System.gc() collects the whole JVM anyway).
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingMemory {
+
+    /** The JavaCPP class that counts the off-heap bytes */
+    private static final String POINTER_CLASS = "org.bytedeco.javacpp.Pointer"; //$NON-NLS-1$
+
+    /** Least time between garbage collections run to get under the budget (milliseconds) */
+    private static final long MIN_BUDGET_GC_INTERVAL = 100;
+
+    /** JavaCPP's count of the off-heap bytes in use, if it can be read */
+    private static final Method TOTAL_BYTES = totalBytesMethod();
+
+    /** The budget (bytes, 0 for none) and the periodic collection interval (ms, 0 for none) */
+    private final long m_maxBytes;
+    private final long m_gcInterval;
+
+    /** Guards the collector thread and the collection requests */
+    private static final Object GC_LOCK = new Object();
+
+    /** The thread that runs the collections, started when first needed */
+    private static Thread s_collector;
+
+    /** Whether a collection has been asked for and not yet run */
+    private static boolean s_gcRequested;
+
+    /** When the last collection (for any step) was run, or asked for */
+    private static long s_lastGc = System.currentTimeMillis();
+
+    /** Statistics */
+    private final AtomicLong m_peakBytes = new AtomicLong();
+    private final AtomicLong m_budgetCollections = new AtomicLong();
+    private final AtomicLong m_periodicCollections = new AtomicLong();
+
+    /**
+     * Creates a new <code>RNNForecastingMemory</code>
+     *
+     * @param maxBytes the off-heap budget in bytes, 0 for none
+     * @param gcInterval the time between periodic garbage collections in
+     *          milliseconds, 0 for none
+     */
+    public RNNForecastingMemory(long maxBytes, long gcInterval) {
+        m_maxBytes = Math.max(maxBytes, 0);
+        m_gcInterval = Math.max(gcInterval, 0);
+    }
+
+    /**
+     * Get the off-heap bytes in use by ND4J
+     *
+     * @return the number of bytes, or -1 if they can't be counted
+     */
+    public static long getOffHeapBytes() {
+        if (TOTAL_BYTES == null) {
+            return -1;
+        }
+        try {
+            return ((Number) TOTAL_BYTES.invoke(null)).longValue();
+        } catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Note that a forecast has been made, asking for a garbage collection if
+     * the budget has been exceeded or the periodic collection is due. Doesn't
+     * wait for the collection.
+     */
+    public void afterForecast() {
+        long bytes = getOffHeapBytes();
+        long peak = m_peakBytes.get();
+        while (bytes > peak && !m_peakBytes.compareAndSet(peak, bytes)) {
+            peak = m_peakBytes.get();
+        }
+
+        if (m_maxBytes > 0 && bytes > m_maxBytes) {
+            if (requestCollection(MIN_BUDGET_GC_INTERVAL)) {
+                m_budgetCollections.incrementAndGet();
+            }
+        } else if (m_gcInterval > 0 && requestCollection(m_gcInterval)) {
+            m_periodicCollections.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the budget
+     *
+     * @return the budget in bytes, 0 for none
+     */
+    public long getMaxBytes() {
+        return m_maxBytes;
+    }
+
+    /**
+     * Get the most off-heap bytes seen in use after a forecast
+     *
+     * @return the number of bytes (-1 if they can't be counted)
+     */
+    public long getPeakBytes() {
+        return TOTAL_BYTES == null ? -1 : m_peakBytes.get();
+    }
+
+    /**
+     * Get the number of garbage collections this policy had run to get under
+     * the budget
+     *
+     * @return the number of collections
+     */
+    public long getBudgetCollections() {
+        return m_budgetCollections.get();
+    }
+
+    /**
+     * Get the number of periodic garbage collections this policy had run
+     *
+     * @return the number of collections
+     */
+    public long getPeriodicCollections() {
+        return m_periodicCollections.get();
+    }
+
+    /**
+     * Ask the collector thread for a garbage collection, unless one is
+     * already pending or one was run less than the given interval ago
+     *
+     * @param interval the least time since the last collection (milliseconds)
+     * @return true if a collection has been asked for
+     */
+    private static boolean requestCollection(long interval) {
+        synchronized (GC_LOCK) {
+            long now = System.currentTimeMillis();
+            if (s_gcRequested || now - s_lastGc < interval) {
+                return false;
+            }
+            s_gcRequested = true;
+            s_lastGc = now;
+            if (s_collector == null) {
+                s_collector = new Thread(new Runnable() {
+                    public void run() {
+                        collectForever();
+                    }
+                }, "RNNForecasting memory collector"); //$NON-NLS-1$
+                s_collector.setDaemon(true);
+                s_collector.start();
+            }
+            GC_LOCK.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Run the collections asked for, one at a time, outside the lock
+     */
+    private static void collectForever() {
+        while (true) {
+            synchronized (GC_LOCK) {
+                while (!s_gcRequested) {
+                    try {
+                        GC_LOCK.wait();
+                    } catch (InterruptedException ex) {
+                        // a daemon thread, so it just carries on waiting
+                    }
+                }
+            }
+            System.gc();
+            // give the deallocators a chance to free the collected arrays
+            System.runFinalization();
+            synchronized (GC_LOCK) {
+                s_gcRequested = false;
+                s_lastGc = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private static Method totalBytesMethod() {
+        try {
+            return Class.forName(POINTER_CLASS).getMethod("totalBytes"); //$NON-NLS-1$
+        } catch (Throwable ex) {
+            // an ND4J backend whose JavaCPP doesn't count
+            return null;
+        }
+    }
+}
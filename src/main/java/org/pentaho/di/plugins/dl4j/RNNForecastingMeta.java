@@ -3,7 +3,6 @@ package org.pentaho.di.plugins.dl4j;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.List;
@@ -19,6 +18,8 @@ import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.exception.KettleXMLException;
 import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.variables.VariableSpace;
 import org.pentaho.di.core.variables.Variables;
 import org.pentaho.di.core.xml.XMLHandler;
@@ -35,7 +36,7 @@ import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
 import org.w3c.dom.Node;
 
-import weka.core.SerializedObject;
+import weka.core.Instances;
 
 /**
  * Contains the meta data for the RNNForecasting step.
@@ -66,9 +67,121 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
      */
     private boolean m_clearPrevState;
 
+    /** Whether to start loading the model in the background when the step is initialized */
+    private boolean m_preloadModel;
+
+    /** Number of dummy forecasts to run after preloading, to warm up the JIT and ND4J */
+    private String m_warmupForecasts;
+
+    /** Whether to watch the model file and switch to new versions of it while running */
+    private boolean m_watchModelFile;
+
+    /** How often (in seconds) to check the model file for changes */
+    private String m_watchInterval;
+    public static final int DEFAULT_watch_interval = 60;
+
+    /** Whether to reset the RNN state when switching to a new version of the model */
+    private boolean m_resetStateOnReload;
+
+    /**
+     * Whether to forecast from a sliding window of recent rows while the rows
+     * stream through, rather than once from all rows at the end of the stream
+     */
+    private boolean m_streamingMode;
+
+    /**
+     * Whether to keep only the most recent rows needed to prime the forecaster
+     * (its largest lag) and pass the other rows straight on
+     */
+    private boolean m_boundedPriming;
+
+    /**
+     * Whether to encode the values of string attributes with a dictionary held
+     * by the step, rather than setting them on the model's header
+     */
+    private boolean m_encodeStrings;
+
+    /**
+     * Whether to pass incoming rows on as they arrive and output only the
+     * forecast rows at the end, rather than holding all rows until the end
+     */
+    private boolean m_passRowsThrough;
+
+    /**
+     * In batch mode, spool the rows to disk when there are more than this many
+     * rows, or they take up more than this many megabytes
+     */
+    private String m_spoolRows;
+    private String m_spoolMegabytes;
+
+    /**
+     * File to keep the RNN state, last rows and time stamp watermark of each
+     * series in from one run to the next
+     */
+    private String m_stateFile;
+
+    /** Name of the incoming field that identifies the series each row belongs to */
+    private String m_seriesKeyField;
+
+    /**
+     * Number of series whose RNN state is kept in memory; the state of the
+     * least recently forecast series beyond this goes to a temporary file
+     */
+    private String m_seriesInMemory;
+    public static final int DEFAULT_series_in_memory = 10000;
+
+    /**
+     * Most series to run through the network at once (stacked along the
+     * minibatch dimension); 1 or empty to run each series on its own. Only
+     * used when the network is run directly.
+     */
+    private String m_seriesBatchSize;
+
+    /**
+     * Whether to prime and forecast by running the network directly (when the
+     * model allows it) rather than through the Weka forecaster
+     */
+    private boolean m_directEngine;
+
+    /**
+     * Whether to reuse the ND4J arrays fed to the network when it is run
+     * directly, rather than allocating new (off-heap) ones at each step
+     */
+    private boolean m_reuseBuffers;
+
+    /**
+     * Off-heap memory budget for ND4J in megabytes, beyond which garbage is
+     * collected after a forecast; empty for none. This is not a hard limit
+     * (see RNNForecastingMemory)
+     */
+    private String m_maxOffHeap;
+
+    /** Time between periodic garbage collections in milliseconds; empty for none */
+    private String m_gcInterval;
+
+    /** In streaming mode, forecast after this many rows */
+    private String m_forecastEvery;
+
+    /** In streaming mode, forecast when the time stamp crosses one of these boundaries */
+    private String m_forecastBoundary;
+    public static final String[] FORECAST_BOUNDARIES = {
+            "none", "minute", "hour", "day", "week", "month", "year" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$
+
     /** Holds the actual Weka model (forecaster) */
     private RNNForecastingModel m_model;
 
+    /** Content digest of the model, used for equals() and hashCode() */
+    private String m_modelFingerprint;
+
+    /**
+     * Design time description of the model (header, targets, lags). Read from
+     * the model's sidecar file if the model itself has not been loaded
+     */
+    private RNNForecastingModelHeader m_modelHeader;
+
+    /** The resolved model file name that m_modelHeader was read for */
+    private String m_modelHeaderFile;
+
     /**
      * Set the number of time steps to forecast
      *
@@ -94,6 +207,7 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
      */
     public void setSerializedModelFileName(String mfile) {
         m_modelFileName = mfile;
+        m_modelHeader = null;
     }
 
     /**
@@ -119,6 +233,401 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
         return m_clearPrevState;
     }
 
+    /**
+     * Set whether to start loading the model in the background when the step
+     * is initialized, rather than when the first row arrives
+     *
+     * @param preload true if the model should be preloaded
+     */
+    public void setPreloadModel(boolean preload) {
+        m_preloadModel = preload;
+    }
+
+    /**
+     * Get whether to start loading the model in the background when the step
+     * is initialized
+     *
+     * @return true if the model should be preloaded
+     */
+    public boolean getPreloadModel() {
+        return m_preloadModel;
+    }
+
+    /**
+     * Set the number of dummy forecasts to run after preloading the model, in
+     * order to warm up the JIT and the ND4J native backend
+     *
+     * @param warmupForecasts the number of warm-up forecasts
+     */
+    public void setWarmupForecasts(String warmupForecasts) {
+        m_warmupForecasts = warmupForecasts;
+    }
+
+    /**
+     * Get the number of dummy forecasts to run after preloading the model
+     *
+     * @return the number of warm-up forecasts
+     */
+    public String getWarmupForecasts() {
+        return m_warmupForecasts;
+    }
+
+    /**
+     * Set whether to watch the model file for changes and switch to new versions
+     * of the model while the transformation is running
+     *
+     * @param watch true if the model file should be watched
+     */
+    public void setWatchModelFile(boolean watch) {
+        m_watchModelFile = watch;
+    }
+
+    /**
+     * Get whether to watch the model file for changes
+     *
+     * @return true if the model file should be watched
+     */
+    public boolean getWatchModelFile() {
+        return m_watchModelFile;
+    }
+
+    /**
+     * Set how often to check the model file for changes
+     *
+     * @param interval the interval in seconds
+     */
+    public void setWatchInterval(String interval) {
+        m_watchInterval = interval;
+    }
+
+    /**
+     * Get how often to check the model file for changes
+     *
+     * @return the interval in seconds
+     */
+    public String getWatchInterval() {
+        return m_watchInterval;
+    }
+
+    /**
+     * Set whether to reset the RNN state when switching to a new version of the
+     * model. Otherwise the state is carried over to the new model.
+     *
+     * @param reset true if the state should be reset
+     */
+    public void setResetStateOnReload(boolean reset) {
+        m_resetStateOnReload = reset;
+    }
+
+    /**
+     * Get whether to reset the RNN state when switching to a new version of the
+     * model
+     *
+     * @return true if the state should be reset
+     */
+    public boolean getResetStateOnReload() {
+        return m_resetStateOnReload;
+    }
+
+    /**
+     * Set whether to forecast from a sliding window of recent rows as the rows
+     * stream through the step
+     *
+     * @param streaming true to use streaming mode
+     */
+    public void setStreamingMode(boolean streaming) {
+        m_streamingMode = streaming;
+    }
+
+    /**
+     * Get whether to forecast from a sliding window of recent rows as the rows
+     * stream through the step
+     *
+     * @return true if streaming mode is used
+     */
+    public boolean getStreamingMode() {
+        return m_streamingMode;
+    }
+
+    /**
+     * Set whether to keep only the most recent rows needed to prime the
+     * forecaster, passing all other rows straight on
+     *
+     * @param bounded true to use a bounded priming buffer
+     */
+    public void setBoundedPriming(boolean bounded) {
+        m_boundedPriming = bounded;
+    }
+
+    /**
+     * Get whether to keep only the most recent rows needed to prime the
+     * forecaster
+     *
+     * @return true if a bounded priming buffer is used
+     */
+    public boolean getBoundedPriming() {
+        return m_boundedPriming;
+    }
+
+    /**
+     * Set whether to dictionary encode the values of string attributes as the
+     * rows come in
+     *
+     * @param encode true to dictionary encode string values
+     */
+    public void setEncodeStrings(boolean encode) {
+        m_encodeStrings = encode;
+    }
+
+    /**
+     * Get whether to dictionary encode the values of string attributes as the
+     * rows come in
+     *
+     * @return true if string values are dictionary encoded
+     */
+    public boolean getEncodeStrings() {
+        return m_encodeStrings;
+    }
+
+    /**
+     * Set whether to pass incoming rows on as they arrive, rather than holding
+     * them until the forecast is made
+     *
+     * @param passThrough true to pass rows on as they arrive
+     */
+    public void setPassRowsThrough(boolean passThrough) {
+        m_passRowsThrough = passThrough;
+    }
+
+    /**
+     * Get whether to pass incoming rows on as they arrive
+     *
+     * @return true if rows are passed on as they arrive
+     */
+    public boolean getPassRowsThrough() {
+        return m_passRowsThrough;
+    }
+
+    /**
+     * Set the number of rows above which the rows are spooled to disk
+     *
+     * @param rows the number of rows (may contain variables)
+     */
+    public void setSpoolRows(String rows) {
+        m_spoolRows = rows;
+    }
+
+    /**
+     * Get the number of rows above which the rows are spooled to disk
+     *
+     * @return the number of rows (may contain variables)
+     */
+    public String getSpoolRows() {
+        return m_spoolRows;
+    }
+
+    /**
+     * Set the size (in megabytes) above which the rows are spooled to disk
+     *
+     * @param megabytes the size (may contain variables)
+     */
+    public void setSpoolMegabytes(String megabytes) {
+        m_spoolMegabytes = megabytes;
+    }
+
+    /**
+     * Get the size (in megabytes) above which the rows are spooled to disk
+     *
+     * @return the size (may contain variables)
+     */
+    public String getSpoolMegabytes() {
+        return m_spoolMegabytes;
+    }
+
+    /**
+     * Set the file to keep the forecast state in between runs
+     *
+     * @param stateFile the file name (may contain variables), or null for none
+     */
+    public void setStateFile(String stateFile) {
+        m_stateFile = stateFile;
+    }
+
+    /**
+     * Get the file to keep the forecast state in between runs
+     *
+     * @return the file name (may contain variables), or null for none
+     */
+    public String getStateFile() {
+        return m_stateFile;
+    }
+
+    /**
+     * Set the name of the incoming field that identifies the series each row
+     * belongs to. Each series is primed and forecast separately, with its own
+     * RNN state.
+     *
+     * @param keyField the name of the key field, or null if the rows are a
+     *          single series
+     */
+    public void setSeriesKeyField(String keyField) {
+        m_seriesKeyField = keyField;
+    }
+
+    /**
+     * Get the name of the incoming field that identifies the series each row
+     * belongs to
+     *
+     * @return the name of the key field, or null if the rows are a single series
+     */
+    public String getSeriesKeyField() {
+        return m_seriesKeyField;
+    }
+
+    /**
+     * Set the number of series whose RNN state is kept in memory
+     *
+     * @param series the number of series (may contain variables)
+     */
+    public void setSeriesInMemory(String series) {
+        m_seriesInMemory = series;
+    }
+
+    /**
+     * Get the number of series whose RNN state is kept in memory
+     *
+     * @return the number of series (may contain variables)
+     */
+    public String getSeriesInMemory() {
+        return m_seriesInMemory;
+    }
+
+    /**
+     * Set the most series to run through the network at once
+     *
+     * @param size the number of series (may contain variables)
+     */
+    public void setSeriesBatchSize(String size) {
+        m_seriesBatchSize = size;
+    }
+
+    /**
+     * Get the most series to run through the network at once
+     *
+     * @return the number of series (may contain variables)
+     */
+    public String getSeriesBatchSize() {
+        return m_seriesBatchSize;
+    }
+
+    /**
+     * Set whether to prime and forecast by running the network directly
+     *
+     * @param direct true to run the network directly
+     */
+    public void setDirectEngine(boolean direct) {
+        m_directEngine = direct;
+    }
+
+    /**
+     * Get whether to prime and forecast by running the network directly
+     *
+     * @return true if the network is run directly
+     */
+    public boolean getDirectEngine() {
+        return m_directEngine;
+    }
+
+    /**
+     * Set whether to reuse the ND4J arrays fed to the network
+     *
+     * @param reuse true to reuse the arrays
+     */
+    public void setReuseBuffers(boolean reuse) {
+        m_reuseBuffers = reuse;
+    }
+
+    /**
+     * Get whether to reuse the ND4J arrays fed to the network
+     *
+     * @return true if the arrays are reused
+     */
+    public boolean getReuseBuffers() {
+        return m_reuseBuffers;
+    }
+
+    /**
+     * Set the off-heap memory budget for ND4J
+     *
+     * @param maxOffHeap the budget in megabytes (may contain variables)
+     */
+    public void setMaxOffHeap(String maxOffHeap) {
+        m_maxOffHeap = maxOffHeap;
+    }
+
+    /**
+     * Get the off-heap memory budget for ND4J
+     *
+     * @return the budget in megabytes (may contain variables)
+     */
+    public String getMaxOffHeap() {
+        return m_maxOffHeap;
+    }
+
+    /**
+     * Set the time between periodic garbage collections
+     *
+     * @param interval the time in milliseconds (may contain variables)
+     */
+    public void setGcInterval(String interval) {
+        m_gcInterval = interval;
+    }
+
+    /**
+     * Get the time between periodic garbage collections
+     *
+     * @return the time in milliseconds (may contain variables)
+     */
+    public String getGcInterval() {
+        return m_gcInterval;
+    }
+
+    /**
+     * Set the number of rows after which to forecast in streaming mode
+     *
+     * @param forecastEvery the number of rows
+     */
+    public void setForecastEvery(String forecastEvery) {
+        m_forecastEvery = forecastEvery;
+    }
+
+    /**
+     * Get the number of rows after which to forecast in streaming mode
+     *
+     * @return the number of rows
+     */
+    public String getForecastEvery() {
+        return m_forecastEvery;
+    }
+
+    /**
+     * Set the time stamp boundary at which to forecast in streaming mode
+     *
+     * @param boundary one of {@link #FORECAST_BOUNDARIES}
+     */
+    public void setForecastBoundary(String boundary) {
+        m_forecastBoundary = boundary;
+    }
+
+    /**
+     * Get the time stamp boundary at which to forecast in streaming mode
+     *
+     * @return one of {@link #FORECAST_BOUNDARIES}, or null
+     */
+    public String getForecastBoundary() {
+        return m_forecastBoundary;
+    }
+
     /**
      * Creates a new <code>RNNForecastingMeta</code> instance.
      */
@@ -134,6 +643,73 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
      */
     public void setModel(RNNForecastingModel model) {
         m_model = model;
+        m_modelFingerprint = null;
+        m_modelHeader = null;
+
+        if (model != null) {
+            if (model.getFingerprint() == null) {
+                // not loaded through the model loader - compute it once here
+                try {
+                    model.setFingerprint(RNNForecastingModel.computeFingerprint(model));
+                } catch (Exception ex) {
+                    logError(BaseMessages.getString(PKG,
+                            "RNNForecastingMeta.Log.FingerprintError"), ex); //$NON-NLS-1$
+                }
+            }
+            m_modelFingerprint = model.getFingerprint();
+        }
+    }
+
+    /**
+     * Get the design time description of the model: the Instances header, target
+     * fields, date attribute and lag settings. If the model itself has not been
+     * loaded, this is read from the sidecar file next to the model file, which
+     * avoids loading the weights.
+     *
+     * @param space the variable space to resolve the model file name against
+     * @param loadIfNeeded true if the model should be loaded in full when there is
+     *          no usable sidecar file
+     * @return the model header, or null if it is not available
+     * @throws Exception if the model has to be loaded and that fails
+     */
+    public RNNForecastingModelHeader getModelHeader(VariableSpace space, boolean loadIfNeeded)
+            throws Exception {
+        if (m_model != null) {
+            if (m_modelHeader == null) {
+                m_modelHeader = new RNNForecastingModelHeader(m_model);
+                m_modelHeaderFile = null;
+            }
+            return m_modelHeader;
+        }
+
+        if (Const.isEmpty(m_modelFileName)) {
+            return null;
+        }
+
+        String resolved = space.environmentSubstitute(m_modelFileName);
+        if (m_modelHeader != null && resolved.equals(m_modelHeaderFile)) {
+            return m_modelHeader;
+        }
+
+        RNNForecastingModelHeader header = RNNForecastingModelHeader.readSidecar(resolved, space);
+        if (header == null && loadIfNeeded) {
+            // no sidecar (the dialog writes one) - load the model itself
+            setModel(RNNForecastingModelCache.getInstance().get(m_modelFileName, getLog(), space));
+            return getModelHeader(space, false);
+        }
+
+        m_modelHeader = header;
+        m_modelHeaderFile = resolved;
+        return header;
+    }
+
+    /**
+     * Get the content digest of the model (if any)
+     *
+     * @return the fingerprint of the model, or null if there is no model
+     */
+    public String getModelFingerprint() {
+        return m_modelFingerprint;
     }
 
     /**
@@ -148,6 +724,17 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
 
 
     protected String getXML(boolean logging) {
+        return getXML(logging, true);
+    }
+
+    /**
+     * Return the XML describing this (configured) step
+     *
+     * @param logging true if log messages should be output
+     * @param includeModel true if an embedded model should be serialized into the XML
+     * @return a <code>String</code> containing the XML
+     */
+    protected String getXML(boolean logging, boolean includeModel) {
         StringBuffer retval = new StringBuffer(100);
 
         retval.append("<" + XML_TAG + ">"); //$NON-NLS-1$ //$NON-NLS-2$
@@ -157,11 +744,64 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
                     m_stepsToForecast));
         }
 
+        retval.append(XMLHandler.addTagValue("clear_previous_state", m_clearPrevState)); //$NON-NLS-1$
+        retval.append(XMLHandler.addTagValue("preload_model", m_preloadModel)); //$NON-NLS-1$
+        if (!Const.isEmpty(m_warmupForecasts)) {
+            retval.append(XMLHandler.addTagValue("warmup_forecasts", m_warmupForecasts)); //$NON-NLS-1$
+        }
+        retval.append(XMLHandler.addTagValue("watch_model_file", m_watchModelFile)); //$NON-NLS-1$
+        if (!Const.isEmpty(m_watchInterval)) {
+            retval.append(XMLHandler.addTagValue("watch_interval", m_watchInterval)); //$NON-NLS-1$
+        }
+        retval.append(XMLHandler.addTagValue("reset_state_on_reload", m_resetStateOnReload)); //$NON-NLS-1$
+        retval.append(XMLHandler.addTagValue("bounded_priming", m_boundedPriming)); //$NON-NLS-1$
+        retval.append(XMLHandler.addTagValue("encode_strings", m_encodeStrings)); //$NON-NLS-1$
+        retval.append(XMLHandler.addTagValue("pass_rows_through", m_passRowsThrough)); //$NON-NLS-1$
+        if (!Const.isEmpty(m_spoolRows)) {
+            retval.append(XMLHandler.addTagValue("spool_rows", m_spoolRows)); //$NON-NLS-1$
+        }
+        if (!Const.isEmpty(m_spoolMegabytes)) {
+            retval.append(XMLHandler.addTagValue("spool_megabytes", m_spoolMegabytes)); //$NON-NLS-1$
+        }
+        if (!Const.isEmpty(m_stateFile)) {
+            retval.append(XMLHandler.addTagValue("state_file", m_stateFile)); //$NON-NLS-1$
+        }
+        if (!Const.isEmpty(m_seriesKeyField)) {
+            retval.append(XMLHandler.addTagValue("series_key_field", m_seriesKeyField)); //$NON-NLS-1$
+        }
+        if (!Const.isEmpty(m_seriesInMemory)) {
+            retval.append(XMLHandler.addTagValue("series_in_memory", m_seriesInMemory)); //$NON-NLS-1$
+        }
+        if (!Const.isEmpty(m_seriesBatchSize)) {
+            retval.append(XMLHandler.addTagValue("series_batch_size", m_seriesBatchSize)); //$NON-NLS-1$
+        }
+        retval.append(XMLHandler.addTagValue("direct_engine", m_directEngine)); //$NON-NLS-1$
+        retval.append(XMLHandler.addTagValue("reuse_buffers", m_reuseBuffers)); //$NON-NLS-1$
+        if (!Const.isEmpty(m_maxOffHeap)) {
+            retval.append(XMLHandler.addTagValue("max_off_heap", m_maxOffHeap)); //$NON-NLS-1$
+        }
+        if (!Const.isEmpty(m_gcInterval)) {
+            retval.append(XMLHandler.addTagValue("gc_interval", m_gcInterval)); //$NON-NLS-1$
+        }
+        retval.append(XMLHandler.addTagValue("streaming_mode", m_streamingMode)); //$NON-NLS-1$
+        if (!Const.isEmpty(m_forecastEvery)) {
+            retval.append(XMLHandler.addTagValue("forecast_every", m_forecastEvery)); //$NON-NLS-1$
+        }
+        if (!Const.isEmpty(m_forecastBoundary)) {
+            retval.append(XMLHandler.addTagValue("forecast_boundary", m_forecastBoundary)); //$NON-NLS-1$
+        }
+
         RNNForecastingModel temp = m_model;
 
         // can we save the model as XML?
         if (temp != null && Const.isEmpty(m_modelFileName)) {
 
+            if (!includeModel) {
+                // the fingerprint stands in for the model
+                retval.append("</" + XML_TAG + ">"); //$NON-NLS-1$ //$NON-NLS-2$
+                return retval.toString();
+            }
+
             try {
                 // Convert model to base64 encoding
                 ByteArrayOutputStream bao = new ByteArrayOutputStream();
@@ -211,7 +851,9 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
     }
 
     /**
-     * Check for equality
+     * Check for equality. Compares the step settings and, for an embedded
+     * model, the model fingerprint rather than re-serializing the model. A
+     * model loaded from the model file is not part of the settings.
      *
      * @param obj an <code>Object</code> to compare with
      * @return true if equal to the supplied object
@@ -220,7 +862,12 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
     public boolean equals(Object obj) {
         if (obj != null && (obj.getClass().equals(this.getClass()))) {
             RNNForecastingMeta m = (RNNForecastingMeta) obj;
-            return (getXML(false) == m.getXML(false));
+            String fingerprint = getEmbeddedFingerprint();
+            String other = m.getEmbeddedFingerprint();
+            if (fingerprint == null ? other != null : !fingerprint.equals(other)) {
+                return false;
+            }
+            return getXML(false, false).equals(m.getXML(false, false));
         }
 
         return false;
@@ -233,7 +880,22 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
      */
     @Override
     public int hashCode() {
-        return getXML(false).hashCode();
+        int hash = getXML(false, false).hashCode();
+        String fingerprint = getEmbeddedFingerprint();
+        if (fingerprint != null) {
+            hash = 31 * hash + fingerprint.hashCode();
+        }
+        return hash;
+    }
+
+    /**
+     * Get the fingerprint of the model embedded in the step, if there is one
+     * (the model is only embedded when no model file is set, as in getXML)
+     *
+     * @return the fingerprint, or null if no model is embedded
+     */
+    private String getEmbeddedFingerprint() {
+        return m_model != null && Const.isEmpty(m_modelFileName) ? m_modelFingerprint : null;
     }
 
     /**
@@ -244,12 +906,11 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
     @Override
     public Object clone() {
         RNNForecastingMeta retval = (RNNForecastingMeta) super.clone();
-        // deep copy the model (if any)
+        // copy the model (if any). The network parameters are shared, the
+        // rest of the forecaster is copied
         if (m_model != null) {
             try {
-                SerializedObject so = new SerializedObject(m_model);
-                RNNForecastingModel copy = (RNNForecastingModel) so.getObject();
-                retval.setModel(copy);
+                retval.setModel(m_model.copy());
             } catch (Exception ex) {
                 logError(BaseMessages.getString(PKG,
                         "RNNForecastingMeta.Log.DeepCopyingError")); //$NON-NLS-1$
@@ -261,6 +922,28 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
 
     public void setDefault() {
         m_modelFileName = null;
+        m_clearPrevState = false;
+        m_preloadModel = false;
+        m_warmupForecasts = null;
+        m_watchModelFile = false;
+        m_watchInterval = null;
+        m_resetStateOnReload = false;
+        m_boundedPriming = false;
+        m_encodeStrings = false;
+        m_passRowsThrough = false;
+        m_spoolRows = null;
+        m_spoolMegabytes = null;
+        m_stateFile = null;
+        m_seriesKeyField = null;
+        m_seriesInMemory = null;
+        m_seriesBatchSize = null;
+        m_directEngine = false;
+        m_reuseBuffers = false;
+        m_maxOffHeap = null;
+        m_gcInterval = null;
+        m_streamingMode = false;
+        m_forecastEvery = null;
+        m_forecastBoundary = null;
     }
 
     /**
@@ -281,6 +964,39 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
             m_stepsToForecast = XMLHandler.getTagValue(wekanode,
                     "steps_to_forecast"); //$NON-NLS-1$
 
+            m_clearPrevState = "Y".equalsIgnoreCase(XMLHandler.getTagValue(wekanode, //$NON-NLS-1$
+                    "clear_previous_state")); //$NON-NLS-1$
+            m_preloadModel = "Y".equalsIgnoreCase(XMLHandler.getTagValue(wekanode, //$NON-NLS-1$
+                    "preload_model")); //$NON-NLS-1$
+            m_warmupForecasts = XMLHandler.getTagValue(wekanode, "warmup_forecasts"); //$NON-NLS-1$
+            m_watchModelFile = "Y".equalsIgnoreCase(XMLHandler.getTagValue(wekanode, //$NON-NLS-1$
+                    "watch_model_file")); //$NON-NLS-1$
+            m_watchInterval = XMLHandler.getTagValue(wekanode, "watch_interval"); //$NON-NLS-1$
+            m_resetStateOnReload = "Y".equalsIgnoreCase(XMLHandler.getTagValue(wekanode, //$NON-NLS-1$
+                    "reset_state_on_reload")); //$NON-NLS-1$
+            m_boundedPriming = "Y".equalsIgnoreCase(XMLHandler.getTagValue(wekanode, //$NON-NLS-1$
+                    "bounded_priming")); //$NON-NLS-1$
+            m_encodeStrings = "Y".equalsIgnoreCase(XMLHandler.getTagValue(wekanode, //$NON-NLS-1$
+                    "encode_strings")); //$NON-NLS-1$
+            m_passRowsThrough = "Y".equalsIgnoreCase(XMLHandler.getTagValue(wekanode, //$NON-NLS-1$
+                    "pass_rows_through")); //$NON-NLS-1$
+            m_spoolRows = XMLHandler.getTagValue(wekanode, "spool_rows"); //$NON-NLS-1$
+            m_spoolMegabytes = XMLHandler.getTagValue(wekanode, "spool_megabytes"); //$NON-NLS-1$
+            m_stateFile = XMLHandler.getTagValue(wekanode, "state_file"); //$NON-NLS-1$
+            m_seriesKeyField = XMLHandler.getTagValue(wekanode, "series_key_field"); //$NON-NLS-1$
+            m_seriesInMemory = XMLHandler.getTagValue(wekanode, "series_in_memory"); //$NON-NLS-1$
+            m_seriesBatchSize = XMLHandler.getTagValue(wekanode, "series_batch_size"); //$NON-NLS-1$
+            m_directEngine = "Y".equalsIgnoreCase(XMLHandler.getTagValue(wekanode, //$NON-NLS-1$
+                    "direct_engine")); //$NON-NLS-1$
+            m_reuseBuffers = "Y".equalsIgnoreCase(XMLHandler.getTagValue(wekanode, //$NON-NLS-1$
+                    "reuse_buffers")); //$NON-NLS-1$
+            m_maxOffHeap = XMLHandler.getTagValue(wekanode, "max_off_heap"); //$NON-NLS-1$
+            m_gcInterval = XMLHandler.getTagValue(wekanode, "gc_interval"); //$NON-NLS-1$
+            m_streamingMode = "Y".equalsIgnoreCase(XMLHandler.getTagValue(wekanode, //$NON-NLS-1$
+                    "streaming_mode")); //$NON-NLS-1$
+            m_forecastEvery = XMLHandler.getTagValue(wekanode, "forecast_every"); //$NON-NLS-1$
+            m_forecastBoundary = XMLHandler.getTagValue(wekanode, "forecast_boundary"); //$NON-NLS-1$
+
             // try and get the XML-based model
             boolean success = false;
             try {
@@ -313,8 +1029,8 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
         if (RNNForecastingData.modelFileExists(m_modelFileName, new Variables())) {
             logDetailed(BaseMessages.getString(PKG,
                     "RNNForecastingMeta.Message.LoadingModelFromFile")); //$NON-NLS-1$
-            m_model = RNNForecastingData.loadSerializedModel(m_modelFileName,
-                    getLog(), new Variables());
+            setModel(RNNForecastingModelCache.getInstance().get(m_modelFileName,
+                    getLog(), new Variables()));
         }
     }
 
@@ -325,8 +1041,12 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
         ByteArrayInputStream bis = new ByteArrayInputStream(model);
         ObjectInputStream ois = new ObjectInputStream(bis);
 
-        m_model = (RNNForecastingModel) ois.readObject();
+        RNNForecastingModel deserialized = (RNNForecastingModel) ois.readObject();
         ois.close();
+
+        // the embedded form isn't what a model file holds, so setModel
+        // fingerprints the model the same way the loader does
+        setModel(deserialized);
     }
 
     /**
@@ -340,6 +1060,30 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
                         List<DatabaseMeta> databases, Map<String, Counter> counters)
             throws KettleException {
 
+        m_stepsToForecast = rep.getStepAttributeString(id_step, 0, "steps_to_forecast"); //$NON-NLS-1$
+        m_clearPrevState = rep.getStepAttributeBoolean(id_step, 0, "clear_previous_state"); //$NON-NLS-1$
+        m_preloadModel = rep.getStepAttributeBoolean(id_step, 0, "preload_model"); //$NON-NLS-1$
+        m_warmupForecasts = rep.getStepAttributeString(id_step, 0, "warmup_forecasts"); //$NON-NLS-1$
+        m_watchModelFile = rep.getStepAttributeBoolean(id_step, 0, "watch_model_file"); //$NON-NLS-1$
+        m_watchInterval = rep.getStepAttributeString(id_step, 0, "watch_interval"); //$NON-NLS-1$
+        m_resetStateOnReload = rep.getStepAttributeBoolean(id_step, 0, "reset_state_on_reload"); //$NON-NLS-1$
+        m_boundedPriming = rep.getStepAttributeBoolean(id_step, 0, "bounded_priming"); //$NON-NLS-1$
+        m_encodeStrings = rep.getStepAttributeBoolean(id_step, 0, "encode_strings"); //$NON-NLS-1$
+        m_passRowsThrough = rep.getStepAttributeBoolean(id_step, 0, "pass_rows_through"); //$NON-NLS-1$
+        m_spoolRows = rep.getStepAttributeString(id_step, 0, "spool_rows"); //$NON-NLS-1$
+        m_spoolMegabytes = rep.getStepAttributeString(id_step, 0, "spool_megabytes"); //$NON-NLS-1$
+        m_stateFile = rep.getStepAttributeString(id_step, 0, "state_file"); //$NON-NLS-1$
+        m_seriesKeyField = rep.getStepAttributeString(id_step, 0, "series_key_field"); //$NON-NLS-1$
+        m_seriesInMemory = rep.getStepAttributeString(id_step, 0, "series_in_memory"); //$NON-NLS-1$
+        m_seriesBatchSize = rep.getStepAttributeString(id_step, 0, "series_batch_size"); //$NON-NLS-1$
+        m_directEngine = rep.getStepAttributeBoolean(id_step, 0, "direct_engine"); //$NON-NLS-1$
+        m_reuseBuffers = rep.getStepAttributeBoolean(id_step, 0, "reuse_buffers"); //$NON-NLS-1$
+        m_maxOffHeap = rep.getStepAttributeString(id_step, 0, "max_off_heap"); //$NON-NLS-1$
+        m_gcInterval = rep.getStepAttributeString(id_step, 0, "gc_interval"); //$NON-NLS-1$
+        m_streamingMode = rep.getStepAttributeBoolean(id_step, 0, "streaming_mode"); //$NON-NLS-1$
+        m_forecastEvery = rep.getStepAttributeString(id_step, 0, "forecast_every"); //$NON-NLS-1$
+        m_forecastBoundary = rep.getStepAttributeString(id_step, 0, "forecast_boundary"); //$NON-NLS-1$
+
         // try and get a filename first as this overrides any model stored
         // in the repository
         boolean success = false;
@@ -392,6 +1136,75 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
                     "steps_to_forecast", m_stepsToForecast); //$NON-NLS-1$
         }
 
+        rep.saveStepAttribute(id_transformation, id_step, 0,
+                "clear_previous_state", m_clearPrevState); //$NON-NLS-1$
+        rep.saveStepAttribute(id_transformation, id_step, 0,
+                "preload_model", m_preloadModel); //$NON-NLS-1$
+        if (!Const.isEmpty(m_warmupForecasts)) {
+            rep.saveStepAttribute(id_transformation, id_step, 0,
+                    "warmup_forecasts", m_warmupForecasts); //$NON-NLS-1$
+        }
+        rep.saveStepAttribute(id_transformation, id_step, 0,
+                "watch_model_file", m_watchModelFile); //$NON-NLS-1$
+        if (!Const.isEmpty(m_watchInterval)) {
+            rep.saveStepAttribute(id_transformation, id_step, 0,
+                    "watch_interval", m_watchInterval); //$NON-NLS-1$
+        }
+        rep.saveStepAttribute(id_transformation, id_step, 0,
+                "reset_state_on_reload", m_resetStateOnReload); //$NON-NLS-1$
+        rep.saveStepAttribute(id_transformation, id_step, 0,
+                "bounded_priming", m_boundedPriming); //$NON-NLS-1$
+        rep.saveStepAttribute(id_transformation, id_step, 0,
+                "encode_strings", m_encodeStrings); //$NON-NLS-1$
+        rep.saveStepAttribute(id_transformation, id_step, 0,
+                "pass_rows_through", m_passRowsThrough); //$NON-NLS-1$
+        if (!Const.isEmpty(m_spoolRows)) {
+            rep.saveStepAttribute(id_transformation, id_step, 0,
+                    "spool_rows", m_spoolRows); //$NON-NLS-1$
+        }
+        if (!Const.isEmpty(m_spoolMegabytes)) {
+            rep.saveStepAttribute(id_transformation, id_step, 0,
+                    "spool_megabytes", m_spoolMegabytes); //$NON-NLS-1$
+        }
+        if (!Const.isEmpty(m_stateFile)) {
+            rep.saveStepAttribute(id_transformation, id_step, 0,
+                    "state_file", m_stateFile); //$NON-NLS-1$
+        }
+        if (!Const.isEmpty(m_seriesKeyField)) {
+            rep.saveStepAttribute(id_transformation, id_step, 0,
+                    "series_key_field", m_seriesKeyField); //$NON-NLS-1$
+        }
+        if (!Const.isEmpty(m_seriesInMemory)) {
+            rep.saveStepAttribute(id_transformation, id_step, 0,
+                    "series_in_memory", m_seriesInMemory); //$NON-NLS-1$
+        }
+        if (!Const.isEmpty(m_seriesBatchSize)) {
+            rep.saveStepAttribute(id_transformation, id_step, 0,
+                    "series_batch_size", m_seriesBatchSize); //$NON-NLS-1$
+        }
+        rep.saveStepAttribute(id_transformation, id_step, 0,
+                "direct_engine", m_directEngine); //$NON-NLS-1$
+        rep.saveStepAttribute(id_transformation, id_step, 0,
+                "reuse_buffers", m_reuseBuffers); //$NON-NLS-1$
+        if (!Const.isEmpty(m_maxOffHeap)) {
+            rep.saveStepAttribute(id_transformation, id_step, 0,
+                    "max_off_heap", m_maxOffHeap); //$NON-NLS-1$
+        }
+        if (!Const.isEmpty(m_gcInterval)) {
+            rep.saveStepAttribute(id_transformation, id_step, 0,
+                    "gc_interval", m_gcInterval); //$NON-NLS-1$
+        }
+        rep.saveStepAttribute(id_transformation, id_step, 0,
+                "streaming_mode", m_streamingMode); //$NON-NLS-1$
+        if (!Const.isEmpty(m_forecastEvery)) {
+            rep.saveStepAttribute(id_transformation, id_step, 0,
+                    "forecast_every", m_forecastEvery); //$NON-NLS-1$
+        }
+        if (!Const.isEmpty(m_forecastBoundary)) {
+            rep.saveStepAttribute(id_transformation, id_step, 0,
+                    "forecast_boundary", m_forecastBoundary); //$NON-NLS-1$
+        }
+
         RNNForecastingModel temp = m_model;
 
         if (temp != null && Const.isEmpty(m_modelFileName)) {
@@ -450,26 +1263,72 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
             throws KettleStepException{
 
         if (m_model == null && !Const.isEmpty(getSerializedModelFileName())) {
-            // see if we can load from a file.
+            // see if we can get the model details from a file.
 
             String modName = getSerializedModelFileName();
 
-            // if (!modelFile.exists()) {
             try {
                 if (!RNNForecastingData.modelFileExists(modName, space)) {
                     throw new KettleStepException(BaseMessages.getString(PKG,
                             "RNNForecasting.Error.NonExistentModelFile")); //$NON-NLS-1$
                 }
 
-                RNNForecastingModel model = RNNForecastingData.loadSerializedModel(
-                        m_modelFileName, getLog(), space);
-                setModel(model);
+                // only the header is needed here, which avoids loading the
+                // weights if the model has a sidecar file
+                getModelHeader(space, true);
             } catch (Exception ex) {
                 throw new KettleStepException(BaseMessages.getString(PKG,
                         "RNNForecasting.Error.ProblemDeserializingModel"), ex); //$NON-NLS-1$
             }
         }
 
+        RNNForecastingModelHeader modelHeader;
+        try {
+            modelHeader = getModelHeader(space, false);
+        } catch (Exception ex) {
+            throw new KettleStepException(BaseMessages.getString(PKG,
+                    "RNNForecasting.Error.ProblemDeserializingModel"), ex); //$NON-NLS-1$
+        }
+        if (modelHeader == null) {
+            return;
+        }
+
+        // Predictions are written to the target fields as numbers, and forecast
+        // time stamps to the time stamp field as dates
+        for (String target : modelHeader.getTargetFieldNames()) {
+            setFieldType(row, target, ValueMetaInterface.TYPE_NUMBER, origin);
+        }
+        Instances header = modelHeader.getHeader();
+        for (int i = 0; i < header.numAttributes(); i++) {
+            if (header.attribute(i).isDate()) {
+                setFieldType(row, header.attribute(i).name(), ValueMetaInterface.TYPE_DATE, origin);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Change the type of a field (if it is present) to the given type in normal
+     * storage
+     *
+     * @param row the row meta data
+     * @param name the name of the field (matched ignoring case)
+     * @param type the type the field is to have
+     * @param origin the name of the step that changes the field
+     */
+    private static void setFieldType(RowMetaInterface row, String name, int type, String origin) {
+        for (int i = 0; i < row.size(); i++) {
+            ValueMetaInterface field = row.getValueMeta(i);
+            if (name.equalsIgnoreCase(field.getName())) {
+                if (field.getType() != type
+                        || field.getStorageType() != ValueMetaInterface.STORAGE_TYPE_NORMAL) {
+                    ValueMetaInterface retyped = new ValueMeta(field.getName(), type);
+                    retyped.setOrigin(origin);
+                    row.setValueMeta(i, retyped);
+                }
+                return;
+            }
+        }
     }
 
     /**
@@ -514,14 +1373,49 @@ public class RNNForecastingMeta extends BaseStepMeta implements StepMetaInterfac
 
         if (m_model == null) {
             if (!Const.isEmpty(m_modelFileName)) {
-                File f = new File(m_modelFileName);
-                if (!f.exists()) {
+                boolean exists = false;
+                try {
+                    exists = RNNForecastingData.modelFileExists(m_modelFileName, transmeta);
+                } catch (Exception ex) {
+                    exists = false;
+                }
+                if (!exists) {
                     cr = new CheckResult(CheckResult.TYPE_RESULT_ERROR,
-                            "Step does not have access to a " + "usable model!", stepMeta); //$NON-NLS-1$ //$NON-NLS-2$
+                            BaseMessages.getString(PKG, "RNNForecastingMeta.Check.NoUsableModel"), stepMeta); //$NON-NLS-1$
                     remarks.add(cr);
+                    return;
                 }
             }
         }
+
+        // check the incoming fields against the model's header (without
+        // loading the model if we can help it)
+        RNNForecastingModelHeader modelHeader = null;
+        try {
+            modelHeader = getModelHeader(transmeta, false);
+        } catch (Exception ex) {
+            modelHeader = null;
+        }
+
+        if (modelHeader != null && prev != null && prev.size() > 0) {
+            Instances header = modelHeader.getHeader();
+            int[] mappings = RNNForecastingData.findMappings(header, prev);
+            int matched = 0;
+            for (int i = 0; i < mappings.length; i++) {
+                if (mappings[i] >= 0) {
+                    matched++;
+                } else {
+                    cr = new CheckResult(CheckResult.TYPE_RESULT_WARNING,
+                            BaseMessages.getString(PKG, "RNNForecastingMeta.Check.UnmatchedAttribute", //$NON-NLS-1$
+                                    header.attribute(i).name()), stepMeta);
+                    remarks.add(cr);
+                }
+            }
+            cr = new CheckResult(CheckResult.TYPE_RESULT_OK,
+                    BaseMessages.getString(PKG, "RNNForecastingMeta.Check.ModelHeaderAvailable", //$NON-NLS-1$
+                            matched, mappings.length), stepMeta);
+            remarks.add(cr);
+        }
     }
 
     /*
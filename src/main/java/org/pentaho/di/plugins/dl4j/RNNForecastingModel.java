@@ -1,6 +1,12 @@
 package org.pentaho.di.plugins.dl4j;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 
 import weka.classifiers.evaluation.NumericPrediction;
@@ -12,14 +18,27 @@ import weka.core.Instances;
  * Abstract wrapper class for a forecaster model. Provides a unified interface to
  * obtaining predictions. Subclasses (RNNForecastingClassifer) encapsulate the actual weka forecaster models.
  *
+ * Copies made with {@link #copy()} share the (read-only) network parameters,
+ * but have their own forecaster (lag maker, network layers and RNN state) and
+ * header, so each copy can prime and forecast in parallel with the others. A
+ * single copy is not thread-safe.
+ *
  * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
  * @version 1.0
  */
 public abstract class RNNForecastingModel implements Serializable {
 
+    /** For serialization (value of the original implicit UID, so embedded models still load) */
+    private static final long serialVersionUID = 8224459944059942448L;
+
     // The header of the Instances used to build the model
     private Instances m_header;
 
+    // Digest of the serialized model (see computeFingerprint), computed once
+    // when the model is loaded. Not serialized, so that it is never carried
+    // over from a form it wasn't computed from
+    private transient String m_fingerprint;
+
     /**
      * Creates a new <code>RNNForecastingModel</code> instance.
      *
@@ -47,6 +66,124 @@ public abstract class RNNForecastingModel implements Serializable {
         return m_header;
     }
 
+    /**
+     * Set the fingerprint (content digest) of this model
+     *
+     * @param fingerprint the fingerprint as a hex string
+     */
+    public void setFingerprint(String fingerprint) {
+        m_fingerprint = fingerprint;
+    }
+
+    /**
+     * Get the fingerprint (content digest) of this model. Two models with the
+     * same fingerprint have identical serialized forms (see
+     * {@link #computeFingerprint}), wherever they were loaded from.
+     *
+     * @return the fingerprint as a hex string, or null if it has not been computed
+     */
+    public String getFingerprint() {
+        return m_fingerprint;
+    }
+
+    /**
+     * Create the message digest used to fingerprint models
+     *
+     * @return a new <code>MessageDigest</code>
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+        } catch (NoSuchAlgorithmException ex) {
+            // every JRE is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Compute the fingerprint of a model: the digest of its serialized form,
+     * which is the forecaster followed by its header in one object stream, as
+     * a model file holds them. The model loader digests the same bytes as it
+     * reads a model file, so this is only needed for models that come from
+     * elsewhere (e.g. embedded in a transformation).
+     *
+     * @param model the model
+     * @return the fingerprint as a hex string
+     * @throws IOException if the model can't be serialized
+     */
+    public static String computeFingerprint(RNNForecastingModel model) throws IOException {
+        MessageDigest digest = newDigest();
+        ObjectOutputStream oo = new ObjectOutputStream(
+                new DigestOutputStream(new NullOutputStream(), digest));
+        oo.writeObject(model.getModel());
+        oo.writeObject(model.getHeader());
+        oo.close();
+        return toFingerprint(digest);
+    }
+
+    /**
+     * OutputStream that discards everything written to it
+     */
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    /**
+     * Turn a digest into a fingerprint string
+     *
+     * @param digest the digest to finish
+     * @return the fingerprint as a hex string
+     */
+    public static String toFingerprint(MessageDigest digest) {
+        byte[] hash = digest.digest();
+        StringBuilder result = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            result.append(Character.forDigit((b >> 4) & 0xF, 16));
+            result.append(Character.forDigit(b & 0xF, 16));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Create a copy of this model that shares the network parameters with this
+     * one, but has its own forecaster, RNN state (starting from this model's)
+     * and copy of the header (so that the class index can be set independently).
+     *
+     * @return the copy
+     * @throws Exception if the model can't be copied
+     */
+    public abstract RNNForecastingModel copy() throws Exception;
+
+    /**
+     * Prime and forecast with a direct engine (see
+     * {@link RNNForecastingDirectEngine}) rather than through the Weka
+     * forecaster.
+     *
+     * @param engine the calibrated engine (it is bound to this model's own
+     *          network), or null to go back to the Weka forecaster
+     * @return true if the engine was installed
+     * @throws Exception if the model's network can't be found
+     */
+    public boolean setDirectEngine(RNNForecastingDirectEngine engine) throws Exception {
+        // subclasses override if they can run their network directly
+        return false;
+    }
+
+    /**
+     * Get the direct engine that primes and forecasts for this model
+     *
+     * @return the engine, or null if the Weka forecaster is used
+     */
+    public RNNForecastingDirectEngine getDirectEngine() {
+        return null;
+    }
+
     /**
      * Tell the model that this forecasting run is finished.
      */
@@ -84,6 +221,27 @@ public abstract class RNNForecastingModel implements Serializable {
      */
     public abstract List<String> getTargetFieldNames();
 
+    /**
+     * Get the name of the date (time stamp) attribute
+     *
+     * @return the name of the date attribute, or null if the model doesn't use one
+     */
+    public abstract String getTimeStampField();
+
+    /**
+     * Get the minimum lag used to create lagged variables
+     *
+     * @return the minimum lag
+     */
+    public abstract int getMinLag();
+
+    /**
+     * Get the maximum lag used to create lagged variables
+     *
+     * @return the maximum lag
+     */
+    public abstract int getMaxLag();
+
     /**
      * Prime the forecaster with the input data
      *
@@ -92,6 +250,45 @@ public abstract class RNNForecastingModel implements Serializable {
      */
     public abstract void primeForecaster(Instances batch) throws Exception;
 
+    /**
+     * Prime the forecaster from the raw values of a series kept in a buffer,
+     * without building instances. Only possible with a direct engine.
+     *
+     * @param rows the raw values of the rows to prime with
+     * @return false if the model can't prime from raw values (nothing has
+     *         been changed then, and the rows must be primed as instances)
+     * @throws Exception if a problem occurs
+     */
+    public boolean primeForecaster(RNNForecastingLagBuffer rows) throws Exception {
+        // subclasses override if they can run their network directly
+        return false;
+    }
+
+    /**
+     * Prime the forecaster with only the last rows held in a buffer, carrying
+     * on from the current state, which must be the state after the rows
+     * before them. Only possible with a direct engine.
+     *
+     * @param rows the raw values of the series, ending with the new rows
+     * @param fresh the number of new rows at the end of the buffer
+     * @return false if the model can't prime from raw values (nothing has
+     *         been changed then, and the rows must be primed as instances)
+     * @throws Exception if a problem occurs
+     */
+    public boolean primeForecaster(RNNForecastingLagBuffer rows, int fresh) throws Exception {
+        // subclasses override if they can run their network directly
+        return false;
+    }
+
+    /**
+     * Prime the forecaster with one more row, carrying on from the current
+     * state and the lag history of the rows primed before it
+     *
+     * @param row the next row of the series
+     * @throws Exception if a problem occurs
+     */
+    public abstract void primeForecasterIncremental(Instance row) throws Exception;
+
     /**
      * Get the dates for the time steps to forecast
      *
@@ -102,6 +299,28 @@ public abstract class RNNForecastingModel implements Serializable {
     public abstract List<String> getForecastDates(int stepsToForecast,
                                                          Instance lastInst, int dateIndex) throws Exception;
 
+    /**
+     * Get the time stamps (in milliseconds since the epoch) for the time steps
+     * to forecast, without formatting them
+     *
+     * @param stepsToForecast the number of predictions to be made
+     * @return the time stamp of each future time step
+     * @throws Exception if a problem occurs
+     */
+    public abstract long[] getForecastTimeStamps(int stepsToForecast) throws Exception;
+
+    /**
+     * Get the time stamps for the time steps that follow a given time stamp
+     * (the last one of a series primed elsewhere, e.g. in a batch)
+     *
+     * @param stepsToForecast the number of predictions to be made
+     * @param lastTimeStamp the time stamp of the last row of the series
+     * @return the time stamp of each future time step
+     * @throws Exception if a problem occurs
+     */
+    public abstract long[] getForecastTimeStamps(int stepsToForecast, double lastTimeStamp)
+            throws Exception;
+
     public abstract void clearPreviousState();
 
     public abstract void setPreviousState(List<Object> state);
@@ -130,6 +349,36 @@ public abstract class RNNForecastingModel implements Serializable {
      */
     public abstract List<List<NumericPrediction>> forecast(int numStepsToForecast) throws Exception;
 
+    /**
+     * Forecast into caller supplied arrays rather than lists of prediction
+     * objects. The arrays are indexed by step, then by target (in the order of
+     * {@link #getTargetFieldNames}).
+     *
+     * @param numSteps the number of steps to forecast
+     * @param overlay overlay data for the steps to forecast, or null if the
+     *          model was not trained with overlay attributes
+     * @param out the array to put the predictions in
+     * @param lower the array to put the lower bounds of the prediction
+     *          intervals in, or null if they are not wanted. Bounds are NaN if
+     *          the model doesn't produce intervals
+     * @param upper the array to put the upper bounds of the prediction
+     *          intervals in, or null if they are not wanted
+     * @throws Exception if a problem occurs
+     */
+    public abstract void forecastInto(int numSteps, Instances overlay, double[][] out,
+                                      double[][] lower, double[][] upper) throws Exception;
+
+    /**
+     * Forecast into a caller supplied array, without prediction intervals
+     *
+     * @param numSteps the number of steps to forecast
+     * @param out the array (steps by targets) to put the predictions in
+     * @throws Exception if a problem occurs
+     */
+    public void forecastInto(int numSteps, double[][] out) throws Exception {
+        forecastInto(numSteps, null, out, null, null);
+    }
+
     /**
      * Static factory method to create an instance of an appropriate subclass of
      * RNNForecastingModel given a Weka model.
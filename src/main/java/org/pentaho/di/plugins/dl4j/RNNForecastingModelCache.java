@@ -0,0 +1,363 @@
+package org.pentaho.di.plugins.dl4j;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.vfs2.FileObject;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.vfs.KettleVFS;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * Process-wide cache of loaded forecasting models. Models are keyed by the
+ * resolved VFS URI of the model file together with its last modified time and
+ * size, so that identical model files are only deserialized once per JVM no
+ * matter how many step copies, transformations or dialogs ask for them.
+ *
+ * Step copies pin the models they are using with {@link #acquire} and
+ * {@link #release}. Unpinned models are evicted in least recently used order
+ * once the total (estimated) size of the cached models exceeds the memory
+ * budget. The budget can be set with the
+ * <code>RNN_FORECASTING_MODEL_CACHE_MB</code> system property (or kettle.properties
+ * variable) and defaults to {@link #DEFAULT_BUDGET_MB} megabytes.
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingModelCache {
+
+    /** Name of the property holding the memory budget (in megabytes) */
+    public static final String BUDGET_PROPERTY = "RNN_FORECASTING_MODEL_CACHE_MB"; //$NON-NLS-1$
+
+    /** Default memory budget (in megabytes) */
+    public static final long DEFAULT_BUDGET_MB = 1024;
+
+    /** The singleton cache */
+    private static final RNNForecastingModelCache INSTANCE = new RNNForecastingModelCache();
+
+    /** Cached entries in access order (least recently used first) */
+    private final LinkedHashMap<String, Entry> m_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /** Maps handed out models back to their entries */
+    private final Map<RNNForecastingModel, Entry> m_byModel = new IdentityHashMap<RNNForecastingModel, Entry>();
+
+    /** Memory budget in bytes */
+    private long m_budget;
+
+    /** Estimated number of bytes held by the cached models */
+    private long m_usedBytes;
+
+    /** Statistics */
+    private long m_hits;
+    private long m_misses;
+    private long m_evictions;
+    private long m_loadTimeNanos;
+
+    /**
+     * A single cached model
+     */
+    private static class Entry {
+        final String m_key;
+        final String m_uri;
+        final long m_size;
+        final CountDownLatch m_loaded = new CountDownLatch(1);
+        RNNForecastingModel m_model;
+        Exception m_failure;
+        int m_refCount;
+
+        Entry(String key, String uri, long size) {
+            m_key = key;
+            m_uri = uri;
+            m_size = size;
+        }
+    }
+
+    RNNForecastingModelCache() {
+        long budgetMB = Const.toLong(System.getProperty(BUDGET_PROPERTY), DEFAULT_BUDGET_MB);
+        m_budget = budgetMB * 1024L * 1024L;
+    }
+
+    /**
+     * Get the JVM-wide model cache
+     *
+     * @return the cache
+     */
+    public static RNNForecastingModelCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Set the memory budget for cached models. Models that are not in use are
+     * evicted if the budget is exceeded.
+     *
+     * @param budget the budget in bytes
+     */
+    public synchronized void setMemoryBudget(long budget) {
+        m_budget = budget;
+        evict();
+    }
+
+    /**
+     * Get the memory budget for cached models
+     *
+     * @return the budget in bytes
+     */
+    public synchronized long getMemoryBudget() {
+        return m_budget;
+    }
+
+    /**
+     * Get a model from the cache (loading it if necessary) and pin it so that it
+     * won't be evicted until {@link #release} is called.
+     *
+     * @param modelFile the (possibly unresolved) name of the model file
+     * @param log the log to use
+     * @param space the variable space to resolve the file name against
+     * @return the shared model. Callers must not modify it.
+     * @throws Exception if the model can't be loaded
+     */
+    public RNNForecastingModel acquire(String modelFile, LogChannelInterface log,
+                                       VariableSpace space) throws Exception {
+        return get(modelFile, log, space, true);
+    }
+
+    /**
+     * Get a model from the cache (loading it if necessary) without pinning it.
+     * Intended for design-time lookups such as field propagation and the dialog.
+     *
+     * @param modelFile the (possibly unresolved) name of the model file
+     * @param log the log to use
+     * @param space the variable space to resolve the file name against
+     * @return the shared model. Callers must not modify it.
+     * @throws Exception if the model can't be loaded
+     */
+    public RNNForecastingModel get(String modelFile, LogChannelInterface log,
+                                   VariableSpace space) throws Exception {
+        return get(modelFile, log, space, false);
+    }
+
+    /**
+     * Unpin a model previously obtained from {@link #acquire}
+     *
+     * @param model the model to release
+     */
+    public synchronized void release(RNNForecastingModel model) {
+        Entry entry = m_byModel.get(model);
+        if (entry != null && entry.m_refCount > 0) {
+            entry.m_refCount--;
+            evict();
+        }
+    }
+
+    /**
+     * Remove all models that are not in use
+     */
+    public synchronized void clear() {
+        Iterator<Entry> it = m_entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.m_refCount == 0 && entry.m_loaded.getCount() == 0) {
+                it.remove();
+                forget(entry);
+            }
+        }
+    }
+
+    private RNNForecastingModel get(String modelFile, LogChannelInterface log,
+                                    VariableSpace space, boolean pin) throws Exception {
+
+        String resolved = space.environmentSubstitute(modelFile);
+        FileObject modelF = KettleVFS.getFileObject(resolved);
+        if (!modelF.exists()) {
+            throw new Exception(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecasting.Error.NonExistentModelFile", resolved)); //$NON-NLS-1$
+        }
+
+        String uri = modelF.getName().getURI();
+        long size = modelF.getContent().getSize();
+        String key = uri + "|" + modelF.getContent().getLastModifiedTime() + "|" + size; //$NON-NLS-1$ //$NON-NLS-2$
+
+        Entry entry;
+        boolean load = false;
+        synchronized (this) {
+            entry = m_entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key, uri, size);
+                m_entries.put(key, entry);
+                m_misses++;
+                load = true;
+            } else {
+                m_hits++;
+            }
+            if (pin) {
+                entry.m_refCount++;
+            }
+        }
+
+        if (load) {
+            load(entry, resolved, log, space);
+        } else {
+            entry.m_loaded.await();
+        }
+
+        if (entry.m_failure != null) {
+            if (pin) {
+                synchronized (this) {
+                    entry.m_refCount--;
+                }
+            }
+            throw entry.m_failure;
+        }
+
+        if (log != null && log.isDetailed()) {
+            log.logDetailed(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    load ? "RNNForecastingModelCache.Message.Loaded" //$NON-NLS-1$
+                            : "RNNForecastingModelCache.Message.Hit", uri)); //$NON-NLS-1$
+        }
+        return entry.m_model;
+    }
+
+    private void load(Entry entry, String resolved, LogChannelInterface log,
+                      VariableSpace space) {
+        long start = System.nanoTime();
+        try {
+            entry.m_model = RNNForecastingData.loadSerializedModel(resolved, log, space);
+        } catch (Exception ex) {
+            entry.m_failure = ex;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        synchronized (this) {
+            m_loadTimeNanos += elapsed;
+            if (entry.m_failure != null) {
+                m_entries.remove(entry.m_key);
+            } else {
+                m_byModel.put(entry.m_model, entry);
+                m_usedBytes += entry.m_size;
+                removeStale(entry);
+                evict();
+            }
+        }
+        entry.m_loaded.countDown();
+    }
+
+    /**
+     * Drop unused entries for older versions of the same model file
+     */
+    private void removeStale(Entry current) {
+        Iterator<Entry> it = m_entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry != current && entry.m_uri.equals(current.m_uri)
+                    && entry.m_refCount == 0 && entry.m_loaded.getCount() == 0) {
+                it.remove();
+                forget(entry);
+            }
+        }
+    }
+
+    /**
+     * Evict unused entries, least recently used first, until we are within budget
+     */
+    private void evict() {
+        if (m_usedBytes <= m_budget) {
+            return;
+        }
+        List<Entry> victims = new ArrayList<Entry>();
+        long used = m_usedBytes;
+        for (Entry entry : m_entries.values()) {
+            if (used <= m_budget) {
+                break;
+            }
+            if (entry.m_refCount == 0 && entry.m_loaded.getCount() == 0) {
+                victims.add(entry);
+                used -= entry.m_size;
+            }
+        }
+        for (Entry entry : victims) {
+            m_entries.remove(entry.m_key);
+            forget(entry);
+            m_evictions++;
+        }
+    }
+
+    private void forget(Entry entry) {
+        if (entry.m_model != null) {
+            m_byModel.remove(entry.m_model);
+            m_usedBytes -= entry.m_size;
+        }
+    }
+
+    /**
+     * Get the number of requests served from the cache
+     *
+     * @return the number of cache hits
+     */
+    public synchronized long getHits() {
+        return m_hits;
+    }
+
+    /**
+     * Get the number of requests that required loading a model
+     *
+     * @return the number of cache misses
+     */
+    public synchronized long getMisses() {
+        return m_misses;
+    }
+
+    /**
+     * Get the number of models evicted to stay within the memory budget
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return m_evictions;
+    }
+
+    /**
+     * Get the total time spent loading models
+     *
+     * @return the load time in milliseconds
+     */
+    public synchronized long getLoadTime() {
+        return m_loadTimeNanos / 1000000L;
+    }
+
+    /**
+     * Get the estimated number of bytes held by cached models
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getUsedBytes() {
+        return m_usedBytes;
+    }
+
+    /**
+     * Get the number of cached models
+     *
+     * @return the number of cached models
+     */
+    public synchronized int size() {
+        return m_entries.size();
+    }
+
+    /**
+     * Returns a one line summary of the cache statistics
+     *
+     * @return the statistics as a String
+     */
+    @Override
+    public synchronized String toString() {
+        return BaseMessages.getString(RNNForecastingMeta.PKG,
+                "RNNForecastingModelCache.Message.Statistics", m_entries.size(), //$NON-NLS-1$
+                m_hits, m_misses, m_evictions, getLoadTime(), m_usedBytes / (1024 * 1024));
+    }
+}
@@ -0,0 +1,246 @@
+package org.pentaho.di.plugins.dl4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.vfs2.FileObject;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.vfs.KettleVFS;
+import org.pentaho.di.i18n.BaseMessages;
+
+import weka.core.Instances;
+
+/**
+ * Everything about a model that is needed at design time (field propagation,
+ * step validation and the dialog) without the weights: the Instances header,
+ * the target field names, the date attribute and the lag settings.
+ *
+ * A copy is written as a small sidecar file next to the model file (the model
+ * file name with {@link #SIDECAR_EXTENSION} appended) when the dialog has to
+ * load a model in full, and read back instead of the model where possible.
+ * Running the step never writes it. The sidecar records the size and
+ * modification time of the model file so that stale sidecars are ignored.
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingModelHeader implements Serializable {
+
+    /** For serialization */
+    private static final long serialVersionUID = -2658230873498326412L;
+
+    /** Extension appended to the model file name to get the sidecar file name */
+    public static final String SIDECAR_EXTENSION = ".header"; //$NON-NLS-1$
+
+    /** The header of the Instances used to build the model */
+    private final Instances m_header;
+
+    /** The names of the forecasting targets */
+    private final List<String> m_targetFieldNames;
+
+    /** The name of the date (time stamp) attribute, or null if there is none */
+    private final String m_timeStampField;
+
+    /** Lag settings */
+    private final int m_minLag;
+    private final int m_maxLag;
+
+    /** Textual description of the model */
+    private final String m_description;
+
+    /** Fingerprint of the model */
+    private final String m_fingerprint;
+
+    /** Size and modification time of the model file this was taken from */
+    private long m_modelSize = -1;
+    private long m_modelModified = -1;
+
+    /**
+     * Creates a new <code>RNNForecastingModelHeader</code> describing a model
+     *
+     * @param model the model
+     */
+    public RNNForecastingModelHeader(RNNForecastingModel model) {
+        m_header = new Instances(model.getHeader(), 0);
+        m_targetFieldNames = new ArrayList<String>(model.getTargetFieldNames());
+        m_timeStampField = model.getTimeStampField();
+        m_minLag = model.getMinLag();
+        m_maxLag = model.getMaxLag();
+        m_description = model.toString();
+        m_fingerprint = model.getFingerprint();
+    }
+
+    /**
+     * Get the header of the Instances that was used build the model
+     *
+     * @return an <code>Instances</code> value
+     */
+    public Instances getHeader() {
+        return m_header;
+    }
+
+    /**
+     * Get the names of the forecasting targets
+     *
+     * @return the target field names
+     */
+    public List<String> getTargetFieldNames() {
+        return m_targetFieldNames;
+    }
+
+    /**
+     * Get the name of the date (time stamp) attribute
+     *
+     * @return the name of the date attribute or null if the model doesn't use one
+     */
+    public String getTimeStampField() {
+        return m_timeStampField;
+    }
+
+    /**
+     * Get the minimum lag used by the model
+     *
+     * @return the minimum lag
+     */
+    public int getMinLag() {
+        return m_minLag;
+    }
+
+    /**
+     * Get the maximum lag used by the model
+     *
+     * @return the maximum lag
+     */
+    public int getMaxLag() {
+        return m_maxLag;
+    }
+
+    /**
+     * Get the fingerprint of the model
+     *
+     * @return the fingerprint
+     */
+    public String getFingerprint() {
+        return m_fingerprint;
+    }
+
+    /**
+     * Returns the textual description of the model
+     *
+     * @return the description
+     */
+    @Override
+    public String toString() {
+        return m_description;
+    }
+
+    /**
+     * Write the sidecar for a model that has just been loaded from a file,
+     * unless there is an up to date one. It is written to a temporary file
+     * first, which then replaces the sidecar, so the sidecar is never seen half
+     * written. Problems (e.g. a read-only location) are logged and otherwise
+     * ignored.
+     *
+     * @param modelFile the (possibly unresolved) name of the model file
+     * @param space the variable space to resolve the file name against
+     * @param model the model loaded from it
+     * @param log the log to use (may be null)
+     */
+    public static void writeSidecar(String modelFile, VariableSpace space, RNNForecastingModel model,
+                                    LogChannelInterface log) {
+        String resolved = space.environmentSubstitute(modelFile);
+        try {
+            FileObject modelF = KettleVFS.getFileObject(resolved);
+            String sidecarName = modelF.getName().getURI() + SIDECAR_EXTENSION;
+            FileObject sidecar = KettleVFS.getFileObject(sidecarName);
+            long size = modelF.getContent().getSize();
+            long modified = modelF.getContent().getLastModifiedTime();
+
+            if (sidecar.exists()) {
+                RNNForecastingModelHeader existing = read(sidecar);
+                if (existing != null && existing.m_modelSize == size
+                        && existing.m_modelModified == modified) {
+                    return;
+                }
+            }
+
+            RNNForecastingModelHeader header = new RNNForecastingModelHeader(model);
+            header.m_modelSize = size;
+            header.m_modelModified = modified;
+
+            // a name of its own, as another dialog may be writing the same sidecar
+            FileObject temp = KettleVFS.getFileObject(sidecarName + "." + UUID.randomUUID() //$NON-NLS-1$
+                    + ".tmp"); //$NON-NLS-1$
+            boolean written = false;
+            try {
+                ObjectOutputStream oo = new ObjectOutputStream(new BufferedOutputStream(
+                        KettleVFS.getOutputStream(temp, false)));
+                try {
+                    oo.writeObject(header);
+                } finally {
+                    oo.close();
+                }
+                RNNForecastingCheckpoint.replace(temp, sidecar);
+                written = true;
+            } finally {
+                if (!written) {
+                    temp.delete();
+                }
+            }
+        } catch (Exception ex) {
+            if (log != null && log.isDetailed()) {
+                log.logDetailed(BaseMessages.getString(RNNForecastingMeta.PKG,
+                        "RNNForecastingModelHeader.Message.UnableToWriteSidecar", //$NON-NLS-1$
+                        resolved, ex.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Read the sidecar for a model file
+     *
+     * @param modelFile the (possibly unresolved) name of the model file
+     * @param space the variable space to resolve the file name against
+     * @return the header, or null if there is no up to date sidecar for the model
+     */
+    public static RNNForecastingModelHeader readSidecar(String modelFile, VariableSpace space) {
+        try {
+            FileObject modelF = KettleVFS.getFileObject(space.environmentSubstitute(modelFile));
+            FileObject sidecar = KettleVFS.getFileObject(modelF.getName().getURI() + SIDECAR_EXTENSION);
+            if (!modelF.exists() || !sidecar.exists()) {
+                return null;
+            }
+
+            RNNForecastingModelHeader header = read(sidecar);
+            if (header == null || header.m_modelSize != modelF.getContent().getSize()
+                    || header.m_modelModified != modelF.getContent().getLastModifiedTime()) {
+                return null;
+            }
+            return header;
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static RNNForecastingModelHeader read(FileObject sidecar) {
+        try {
+            ObjectInputStream oi = new ObjectInputStream(new BufferedInputStream(
+                    KettleVFS.getInputStream(sidecar)));
+            try {
+                return (RNNForecastingModelHeader) oi.readObject();
+            } finally {
+                oi.close();
+            }
+        } catch (Exception ex) {
+            // unreadable or written by an incompatible version
+            return null;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.pentaho.di.plugins.dl4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+import org.apache.commons.vfs2.FileObject;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.vfs.KettleVFS;
+import org.pentaho.di.i18n.BaseMessages;
+
+import weka.core.Instances;
+
+/**
+ * Loads a serialized forecaster from a (VFS) model file. Local files are
+ * memory-mapped and the forecaster and header are deserialized straight from
+ * the mapping, with the model fingerprint digested from the same bytes as they
+ * are deserialized. Non-local files are copied to a local temporary file in
+ * one buffered pass over the VFS stream and then treated as local files, so
+ * the original source is only read once.
+ *
+ * Loading is not a single pass over the local file, though: WekaForecaster
+ * only restores the base network and the serialized RNN state from a path,
+ * and each does its own read of the file, so the local file is read three
+ * times in all. These reads are usually served from the page cache, as the
+ * file has just been mapped, and they are counted in the bytes read that are
+ * reported.
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingModelLoader {
+
+    /** Size of the buffer used when copying non-local files */
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    /** The model file to load */
+    private final FileObject m_modelFile;
+
+    /** Number of bytes read from the model file and the copy of it */
+    private long m_bytesRead;
+
+    /** Number of bytes read from the (possibly remote) source of the model file */
+    private long m_sourceBytesRead;
+
+    /** Time taken to load the model (nanoseconds) */
+    private long m_elapsed;
+
+    /** Digest of the serialized forecaster and header (the model fingerprint) */
+    private final MessageDigest m_digest = RNNForecastingModel.newDigest();
+
+    /**
+     * Creates a new <code>RNNForecastingModelLoader</code> for the supplied file.
+     *
+     * @param modelFile the model file
+     */
+    public RNNForecastingModelLoader(FileObject modelFile) {
+        m_modelFile = modelFile;
+    }
+
+    /**
+     * Load the model.
+     *
+     * @param log the log to use (may be null)
+     * @return the model
+     * @throws Exception if there is a problem loading the model
+     */
+    public RNNForecastingModel load(LogChannelInterface log) throws Exception {
+        long start = System.nanoTime();
+        m_bytesRead = 0;
+        m_sourceBytesRead = 0;
+        m_digest.reset();
+
+        File local = null;
+        File temp = null;
+        if ("file".equalsIgnoreCase(m_modelFile.getName().getScheme())) { //$NON-NLS-1$
+            local = new File(KettleVFS.getFilename(m_modelFile));
+        } else {
+            temp = copyToLocal();
+            local = temp;
+        }
+
+        try {
+            RNNForecastingModel wfm = loadLocal(local, temp == null);
+
+            m_elapsed = System.nanoTime() - start;
+            if (log != null && log.isDetailed()) {
+                log.logDetailed(BaseMessages.getString(RNNForecastingMeta.PKG,
+                        "RNNForecastingModelLoader.Message.Loaded", //$NON-NLS-1$
+                        m_modelFile.getName().getURI(), m_sourceBytesRead, m_bytesRead,
+                        getElapsedTime()));
+            }
+            return wfm;
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Get the number of bytes read by the last load, over all the reads of
+     * the model file and of its local copy, if one was made. The reads that restore the base
+     * network and RNN state are counted as reading the whole file.
+     *
+     * @return the number of bytes read
+     */
+    public long getBytesRead() {
+        return m_bytesRead;
+    }
+
+    /**
+     * Get the number of bytes read from the source of the model file by the
+     * last load. For local files this is the size of the file, for others the
+     * number of bytes copied to the local temporary file.
+     *
+     * @return the number of bytes read from the source
+     */
+    public long getSourceBytesRead() {
+        return m_sourceBytesRead;
+    }
+
+    /**
+     * Get the time taken by the last load
+     *
+     * @return the elapsed time in milliseconds
+     */
+    public long getElapsedTime() {
+        return m_elapsed / 1000000L;
+    }
+
+    /**
+     * Load the model from a local file
+     *
+     * @param file the local file
+     * @param source true if the file is the model file itself rather than a
+     *          copy (whose bytes have been counted while copying)
+     */
+    private RNNForecastingModel loadLocal(File file, boolean source) throws Exception {
+        Object model;
+        Instances header;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            InputStream is;
+            if (size <= Integer.MAX_VALUE) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                is = new ByteBufferInputStream(mapped);
+            } else {
+                is = new BufferedInputStream(new FileInputStream(file), COPY_BUFFER_SIZE);
+            }
+
+            // digest exactly the bytes deserialized (any read-ahead happens
+            // below the digest)
+            ObjectInputStream oi = new ObjectInputStream(new DigestInputStream(is, m_digest));
+            model = oi.readObject();
+
+            // try and grab the header
+            header = (Instances) oi.readObject();
+            oi.close();
+
+            if (source) {
+                m_sourceBytesRead = size;
+            }
+            m_bytesRead += size;
+        } finally {
+            raf.close();
+        }
+
+        RNNForecastingModel wfm = RNNForecastingModel.createScorer(model);
+        wfm.setHeader(header);
+        wfm.setFingerprint(RNNForecastingModel.toFingerprint(m_digest));
+
+        // each of these reads the file again
+        String path = file.getAbsolutePath();
+        wfm.loadBaseModel(path);
+        m_bytesRead += file.length();
+        wfm.loadSerializedState(path);
+        m_bytesRead += file.length();
+
+        return wfm;
+    }
+
+    /**
+     * Copy a non-local model file to a local temporary file in one pass
+     */
+    private File copyToLocal() throws IOException {
+        File temp = File.createTempFile("rnnforecaster", ".model"); //$NON-NLS-1$ //$NON-NLS-2$
+        temp.deleteOnExit();
+
+        InputStream is = KettleVFS.getInputStream(m_modelFile);
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(temp), COPY_BUFFER_SIZE);
+        try {
+            byte[] buff = new byte[COPY_BUFFER_SIZE];
+            int n;
+            while ((n = is.read(buff)) > 0) {
+                os.write(buff, 0, n);
+                m_sourceBytesRead += n;
+                m_bytesRead += n;
+            }
+        } finally {
+            is.close();
+            os.close();
+        }
+        return temp;
+    }
+
+    /**
+     * InputStream over a (memory-mapped) ByteBuffer
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer m_buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            m_buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            if (!m_buffer.hasRemaining()) {
+                return -1;
+            }
+            return m_buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!m_buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, m_buffer.remaining());
+            m_buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.min(n, m_buffer.remaining());
+            m_buffer.position(m_buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return m_buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.pentaho.di.plugins.dl4j;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.vfs2.FileObject;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.vfs.KettleVFS;
+import org.pentaho.di.i18n.BaseMessages;
+
+import weka.core.Instances;
+
+/**
+ * Watches a model file for new versions while a transformation is running.
+ * The file's size and modification time are checked periodically on a
+ * background thread. When they change, the new version is loaded through the
+ * {@link RNNForecastingModelCache} and, if its fingerprint differs from the
+ * model currently in use and it was trained on the same data format, handed
+ * over via {@link #poll}. The step switches to it between batches, so a
+ * forecast is always produced by a single version of the model.
+ *
+ * Models handed out by {@link #poll} are pinned in the cache and must be
+ * released by the caller.
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingModelWatcher implements Runnable {
+
+    /** The (possibly unresolved) name of the model file */
+    private final String m_modelFile;
+
+    /** The variable space to resolve the file name against */
+    private final VariableSpace m_space;
+
+    /** The log to use */
+    private final LogChannelInterface m_log;
+
+    /** The header that new versions of the model must match */
+    private final Instances m_header;
+
+    /** Fingerprint of the latest version of the model */
+    private String m_fingerprint;
+
+    /** Size and modification time of the model file when last checked */
+    private long m_size = -1;
+    private long m_modified = -1;
+
+    /** A newly loaded version of the model that hasn't been picked up yet */
+    private final AtomicReference<RNNForecastingModel> m_pending = new AtomicReference<RNNForecastingModel>();
+
+    /** Runs the checks */
+    private ScheduledExecutorService m_executor;
+
+    /**
+     * Creates a new <code>RNNForecastingModelWatcher</code>
+     *
+     * @param modelFile the (possibly unresolved) name of the model file
+     * @param current the model currently in use
+     * @param space the variable space to resolve the file name against
+     * @param log the log to use
+     */
+    public RNNForecastingModelWatcher(String modelFile, RNNForecastingModel current,
+                                      VariableSpace space, LogChannelInterface log) {
+        m_modelFile = modelFile;
+        m_space = space;
+        m_log = log;
+        m_header = new Instances(current.getHeader(), 0);
+        m_fingerprint = current.getFingerprint();
+
+        try {
+            FileObject modelF = KettleVFS.getFileObject(m_space.environmentSubstitute(m_modelFile));
+            m_size = modelF.getContent().getSize();
+            m_modified = modelF.getContent().getLastModifiedTime();
+        } catch (Exception ex) {
+            // the first check will load the file and compare fingerprints
+        }
+    }
+
+    /**
+     * Start checking the model file
+     *
+     * @param interval the time between checks in milliseconds
+     * @param name the name for the watching thread
+     */
+    public synchronized void start(long interval, final String name) {
+        if (m_executor != null) {
+            return;
+        }
+        m_executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        m_executor.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop checking the model file. Any version that hasn't been picked up is
+     * released.
+     */
+    public synchronized void stop() {
+        if (m_executor != null) {
+            m_executor.shutdownNow();
+            try {
+                m_executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            m_executor = null;
+        }
+
+        RNNForecastingModel pending = m_pending.getAndSet(null);
+        if (pending != null) {
+            RNNForecastingModelCache.getInstance().release(pending);
+        }
+    }
+
+    /**
+     * Get the newest version of the model, if one has been loaded since the last
+     * call
+     *
+     * @return the new (shared and pinned) model, or null if there isn't one
+     */
+    public RNNForecastingModel poll() {
+        return m_pending.getAndSet(null);
+    }
+
+    /**
+     * Check the model file and load it if it has changed
+     */
+    public void run() {
+        RNNForecastingModelCache cache = RNNForecastingModelCache.getInstance();
+        try {
+            FileObject modelF = KettleVFS.getFileObject(m_space.environmentSubstitute(m_modelFile));
+            modelF.refresh();
+            if (!modelF.exists()) {
+                // possibly in the middle of being replaced
+                return;
+            }
+
+            long size = modelF.getContent().getSize();
+            long modified = modelF.getContent().getLastModifiedTime();
+            if (size == m_size && modified == m_modified) {
+                return;
+            }
+
+            RNNForecastingModel candidate = cache.acquire(m_modelFile, m_log, m_space);
+            m_size = size;
+            m_modified = modified;
+
+            if (candidate.getFingerprint() != null
+                    && candidate.getFingerprint().equals(m_fingerprint)) {
+                // touched or re-written but unchanged
+                cache.release(candidate);
+                return;
+            }
+
+            if (!m_header.equalHeaders(candidate.getHeader())) {
+                m_log.logError(BaseMessages.getString(RNNForecastingMeta.PKG,
+                        "RNNForecastingModelWatcher.Error.IncompatibleModel", //$NON-NLS-1$
+                        modelF.getName().getURI(), m_header.equalHeadersMsg(candidate.getHeader())));
+                cache.release(candidate);
+                return;
+            }
+
+            m_fingerprint = candidate.getFingerprint();
+            RNNForecastingModel superseded = m_pending.getAndSet(candidate);
+            if (superseded != null) {
+                cache.release(superseded);
+            }
+            m_log.logBasic(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecastingModelWatcher.Message.NewVersion", //$NON-NLS-1$
+                    modelF.getName().getURI()));
+        } catch (Exception ex) {
+            // most likely a partially written file - try again next time
+            m_size = -1;
+            m_log.logError(BaseMessages.getString(RNNForecastingMeta.PKG,
+                    "RNNForecastingModelWatcher.Error.UnableToLoad", m_modelFile, //$NON-NLS-1$
+                    ex.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package org.pentaho.di.plugins.dl4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import weka.filters.Filter;
+
+/**
+ * Helpers for working with the DL4J networks held inside a Weka forecaster,
+ * which doesn't give access to them: finding (and replacing) them and the
+ * filters that pre-process their inputs, sharing their parameters, and
+ * copying a forecaster without copying them.
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+final class RNNForecastingNetworks {
+
+    /** How far to search into the forecaster for networks */
+    private static final int MAX_DEPTH = 6;
+
+    private RNNForecastingNetworks() {
+    }
+
+    /**
+     * Find the networks held by the Weka objects reachable from a forecaster,
+     * in a fixed order (so that the networks of two copies of a forecaster
+     * are found in the same order)
+     *
+     * @param root the forecaster
+     * @return the places that hold the networks
+     * @throws Exception if the forecaster can't be searched
+     */
+    static List<Slot> find(Object root) throws Exception {
+        List<Slot> found = new ArrayList<Slot>();
+        find(root, MultiLayerNetwork.class, 0, new IdentityHashMap<Object, Boolean>(), found);
+        List<Slot> settable = new ArrayList<Slot>();
+        for (Slot slot : found) {
+            if (slot.m_field == null || !Modifier.isFinal(slot.m_field.getModifiers())) {
+                settable.add(slot);
+            }
+        }
+        return settable;
+    }
+
+    /**
+     * Find the Weka filters held by a classifier (its pre-processing), in the
+     * order their fields are declared. Filters inside a found filter (e.g.
+     * the parts of a MultiFilter) are not listed separately.
+     *
+     * @param root the classifier
+     * @return the filters
+     * @throws Exception if the classifier can't be searched
+     */
+    static List<Filter> findFilters(Object root) throws Exception {
+        List<Slot> found = new ArrayList<Slot>();
+        find(root, Filter.class, 0, new IdentityHashMap<Object, Boolean>(), found);
+        List<Filter> filters = new ArrayList<Filter>();
+        for (Slot slot : found) {
+            filters.add((Filter) slot.value());
+        }
+        return filters;
+    }
+
+    /**
+     * Create a network that shares the configuration and parameters of
+     * another one, but has its own layers (and so its own state)
+     *
+     * @param network the network
+     * @return the new network
+     */
+    static MultiLayerNetwork share(MultiLayerNetwork network) {
+        MultiLayerNetwork shared = new MultiLayerNetwork(network.getLayerWiseConfigurations().clone(),
+                network.params());
+        shared.init();
+        return shared;
+    }
+
+    /**
+     * Make a copy of a forecaster (or any other serializable object) whose
+     * networks share their parameters with the networks of the original. The
+     * rest (lag maker, filters, settings) is copied, so the copy can prime
+     * and forecast at the same time as the original or any other copy. The
+     * networks of the copy start with no RNN state.
+     *
+     * @param root the forecaster, which must not be changed while it is copied
+     * @return the copy
+     * @throws Exception if the forecaster can't be copied
+     */
+    static Object copySharing(Object root) throws Exception {
+        final List<MultiLayerNetwork> originals = new ArrayList<MultiLayerNetwork>();
+        final Map<Object, Integer> indexes = new IdentityHashMap<Object, Integer>();
+        final Set<Object> shared = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+        // the networks are written as references, and read back as new
+        // networks on the original parameters
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new SharingOutputStream(bytes, originals, indexes);
+        out.writeObject(root);
+        out.close();
+        ObjectInputStream in = new SharingInputStream(new ByteArrayInputStream(bytes.toByteArray()),
+                originals, shared);
+        Object copy = in.readObject();
+        in.close();
+
+        // networks written by custom serialization code come back as full
+        // copies: swap them for shared ones, so that the copies can be dropped
+        List<Slot> from = find(root);
+        List<Slot> to = find(copy);
+        if (from.size() == to.size()) {
+            for (int i = 0; i < to.size(); i++) {
+                if (!shared.contains(to.get(i).get())) {
+                    to.get(i).set(share(from.get(i).get()));
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * A reference to a network of the object being copied
+     */
+    private static final class NetworkRef implements Serializable {
+
+        /** For serialization */
+        private static final long serialVersionUID = 2930711043394129367L;
+
+        final int m_index;
+
+        NetworkRef(int index) {
+            m_index = index;
+        }
+    }
+
+    /**
+     * Writes networks as references
+     */
+    private static final class SharingOutputStream extends ObjectOutputStream {
+        private final List<MultiLayerNetwork> m_originals;
+        private final Map<Object, Integer> m_indexes;
+
+        SharingOutputStream(OutputStream out, List<MultiLayerNetwork> originals,
+                            Map<Object, Integer> indexes) throws IOException {
+            super(out);
+            m_originals = originals;
+            m_indexes = indexes;
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) {
+            if (!(obj instanceof MultiLayerNetwork)) {
+                return obj;
+            }
+            Integer index = m_indexes.get(obj);
+            if (index == null) {
+                index = m_originals.size();
+                m_originals.add((MultiLayerNetwork) obj);
+                m_indexes.put(obj, index);
+            }
+            return new NetworkRef(index);
+        }
+    }
+
+    /**
+     * Reads network references back as networks sharing the parameters
+     */
+    private static final class SharingInputStream extends ObjectInputStream {
+        private final List<MultiLayerNetwork> m_originals;
+        private final Set<Object> m_shared;
+        private final Map<Integer, MultiLayerNetwork> m_networks = new HashMap<Integer, MultiLayerNetwork>();
+
+        SharingInputStream(InputStream in, List<MultiLayerNetwork> originals, Set<Object> shared)
+                throws IOException {
+            super(in);
+            m_originals = originals;
+            m_shared = shared;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) {
+            if (!(obj instanceof NetworkRef)) {
+                return obj;
+            }
+            int index = ((NetworkRef) obj).m_index;
+            MultiLayerNetwork network = m_networks.get(index);
+            if (network == null) {
+                network = share(m_originals.get(index));
+                m_networks.put(index, network);
+                m_shared.add(network);
+            }
+            return network;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+                ClassNotFoundException {
+            // Weka and DL4J classes come from the plugin's class loader
+            try {
+                return Class.forName(desc.getName(), false, RNNForecastingNetworks.class.getClassLoader());
+            } catch (ClassNotFoundException ex) {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+
+    /**
+     * Work out which layers of a network are recurrent (have a state)
+     *
+     * @param network the network
+     * @return true for each recurrent layer
+     */
+    static boolean[] recurrentLayers(MultiLayerNetwork network) {
+        boolean[] recurrent = new boolean[network.getnLayers()];
+        for (int i = 0; i < recurrent.length; i++) {
+            try {
+                network.rnnGetPreviousState(i);
+                recurrent[i] = true;
+            } catch (IllegalArgumentException ex) {
+                // not a recurrent layer
+            }
+        }
+        return recurrent;
+    }
+
+    /**
+     * A place in the forecaster that holds a network
+     */
+    static final class Slot {
+        private final Object m_owner;
+        private final Field m_field;
+        private final int m_index;
+
+        Slot(Object owner, Field field, int index) {
+            m_owner = owner;
+            m_field = field;
+            m_index = index;
+        }
+
+        MultiLayerNetwork get() throws Exception {
+            return (MultiLayerNetwork) value();
+        }
+
+        Object value() throws Exception {
+            if (m_field != null) {
+                return m_field.get(m_owner);
+            }
+            if (m_owner instanceof List) {
+                return ((List<?>) m_owner).get(m_index);
+            }
+            return ((Object[]) m_owner)[m_index];
+        }
+
+        @SuppressWarnings("unchecked")
+        void set(MultiLayerNetwork network) throws Exception {
+            if (m_field != null) {
+                m_field.set(m_owner, network);
+            } else if (m_owner instanceof List) {
+                ((List<Object>) m_owner).set(m_index, network);
+            } else {
+                ((Object[]) m_owner)[m_index] = network;
+            }
+        }
+    }
+
+    private static void find(Object object, Class<?> type, int depth, Map<Object, Boolean> seen,
+                             List<Slot> found) throws Exception {
+        if (object == null || depth > MAX_DEPTH || seen.put(object, Boolean.TRUE) != null) {
+            return;
+        }
+
+        if (object instanceof List) {
+            List<?> list = (List<?>) object;
+            for (int i = 0; i < list.size(); i++) {
+                if (type.isInstance(list.get(i))) {
+                    found.add(new Slot(list, null, i));
+                } else {
+                    find(list.get(i), type, depth + 1, seen, found);
+                }
+            }
+            return;
+        }
+        if (object instanceof Object[]) {
+            Object[] array = (Object[]) object;
+            for (int i = 0; i < array.length; i++) {
+                if (type.isInstance(array[i])) {
+                    found.add(new Slot(array, null, i));
+                } else {
+                    find(array[i], type, depth + 1, seen, found);
+                }
+            }
+            return;
+        }
+        if (!object.getClass().getName().startsWith("weka.")) { //$NON-NLS-1$
+            return;
+        }
+
+        for (Class<?> c = object.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                    continue;
+                }
+                field.setAccessible(true);
+                Object value = field.get(object);
+                if (type.isInstance(value)) {
+                    found.add(new Slot(object, field, -1));
+                } else {
+                    find(value, type, depth + 1, seen, found);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compare two RNN states (lists and maps of arrays), allowing for a
+     * relative difference between numbers
+     *
+     * @param a one state
+     * @param b the other state
+     * @param tolerance the largest difference allowed, relative to the
+     *          magnitude of the numbers (or absolute, below 1)
+     * @return true if the states are the same
+     */
+    static boolean sameState(Object a, Object b, double tolerance) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a instanceof List && b instanceof List) {
+            List<?> listA = (List<?>) a;
+            List<?> listB = (List<?>) b;
+            if (listA.size() != listB.size()) {
+                return false;
+            }
+            for (int i = 0; i < listA.size(); i++) {
+                if (!sameState(listA.get(i), listB.get(i), tolerance)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof Map && b instanceof Map) {
+            Map<?, ?> mapA = (Map<?, ?>) a;
+            Map<?, ?> mapB = (Map<?, ?>) b;
+            if (!mapA.keySet().equals(mapB.keySet())) {
+                return false;
+            }
+            for (Map.Entry<?, ?> entry : mapA.entrySet()) {
+                if (!sameState(entry.getValue(), mapB.get(entry.getKey()), tolerance)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof INDArray && b instanceof INDArray) {
+            INDArray arrayA = (INDArray) a;
+            INDArray arrayB = (INDArray) b;
+            if (arrayA.length() != arrayB.length()) {
+                return false;
+            }
+            for (int i = 0; i < arrayA.length(); i++) {
+                if (!close(arrayA.getDouble(i), arrayB.getDouble(i), tolerance)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return a.equals(b);
+    }
+
+    /**
+     * Whether two numbers are within a tolerance of each other, relative to
+     * their magnitude (or absolute, below 1)
+     *
+     * @param a one number
+     * @param b the other number
+     * @param tolerance the tolerance
+     * @return true if they are close
+     */
+    static boolean close(double a, double b, double tolerance) {
+        if (Double.isNaN(a) || Double.isNaN(b)) {
+            return Double.isNaN(a) && Double.isNaN(b);
+        }
+        return Math.abs(a - b) <= tolerance * Math.max(1, Math.max(Math.abs(a), Math.abs(b)));
+    }
+}
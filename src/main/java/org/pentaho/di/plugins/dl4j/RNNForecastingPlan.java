@@ -0,0 +1,267 @@
+package org.pentaho.di.plugins.dl4j;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import weka.core.Instances;
+
+/**
+ * Everything about how to forecast that only depends on the model and the
+ * incoming row format: the class index, the columns that hold the targets
+ * and the time stamp, the output row layout and the number of steps to
+ * forecast. Built once per step copy (and again if the model is replaced), so
+ * that none of it is worked out again for every batch or series.
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public final class RNNForecastingPlan {
+
+    /** The meta data for the incoming and outgoing rows */
+    private final RowMetaInterface m_inputMeta;
+    private final RowMetaInterface m_outputMeta;
+
+    /** Index in the model header of the first target (the class attribute) */
+    private final int m_classIndex;
+
+    /** Index in the rows of each target */
+    private final int[] m_targetIndexes;
+
+    /** Index in the rows of the time stamp field, or -1 if there is none */
+    private final int m_dateIndex;
+
+    /** Index in the model header of the time stamp attribute, or -1 if there is none */
+    private final int m_modelDateIndex;
+
+    /** Date format of the model's time stamp attribute */
+    private final String m_datePattern;
+
+    /**
+     * Parser for time stamps that come in as strings (forecast time stamps
+     * are always output as Dates). SimpleDateFormat isn't thread-safe, so
+     * each thread gets its own.
+     */
+    private final ThreadLocal<SimpleDateFormat> m_dateFormat = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat(m_datePattern);
+        }
+    };
+
+    /**
+     * Indexes of the fields whose type is changed on output (targets become
+     * numbers, the time stamp a date), so must be converted in rows that are
+     * passed on
+     */
+    private final int[] m_convertIndexes;
+
+    /** Number of fields in an output row */
+    private final int m_outputSize;
+
+    /** Number of steps to forecast */
+    private final int m_horizon;
+
+    /**
+     * Creates a new <code>RNNForecastingPlan</code>
+     *
+     * @param model the model
+     * @param inputMeta the meta data for the incoming rows
+     * @param outputMeta the meta data for the output rows
+     * @param horizon the number of steps to forecast
+     */
+    public RNNForecastingPlan(RNNForecastingModel model, RowMetaInterface inputMeta,
+                              RowMetaInterface outputMeta, int horizon) {
+        m_inputMeta = inputMeta;
+        m_outputMeta = outputMeta;
+        m_outputSize = outputMeta.size();
+        m_horizon = horizon;
+
+        Instances header = model.getHeader();
+        List<String> targetFieldNames = model.getTargetFieldNames();
+        String[] fieldNames = inputMeta.getFieldNames();
+
+        m_targetIndexes = new int[targetFieldNames.size()];
+        for (int i = 0; i < m_targetIndexes.length; i++) {
+            m_targetIndexes[i] = indexOf(fieldNames, targetFieldNames.get(i));
+        }
+
+        int classIndex = -1;
+        String[] attNames = new String[header.numAttributes()];
+        for (int i = 0; i < attNames.length; i++) {
+            attNames[i] = header.attribute(i).name();
+        }
+        if (!targetFieldNames.isEmpty()) {
+            classIndex = indexOf(attNames, targetFieldNames.get(0));
+        }
+        m_classIndex = classIndex;
+
+        int modelDateIndex = -1;
+        for (int i = 0; i < header.numAttributes(); i++) {
+            if (header.attribute(i).isDate()) {
+                modelDateIndex = i;
+                break;
+            }
+        }
+        m_modelDateIndex = modelDateIndex;
+        m_dateIndex = modelDateIndex < 0 ? -1 : indexOf(fieldNames, attNames[modelDateIndex]);
+        m_datePattern = modelDateIndex < 0 ? null : header.attribute(modelDateIndex).getDateFormat();
+
+        List<Integer> convert = new ArrayList<Integer>();
+        for (int i = 0; i < inputMeta.size(); i++) {
+            ValueMetaInterface in = inputMeta.getValueMeta(i);
+            ValueMetaInterface out = outputMeta.getValueMeta(i);
+            if (in.getType() != out.getType() || in.getStorageType() != out.getStorageType()) {
+                convert.add(i);
+            }
+        }
+        m_convertIndexes = new int[convert.size()];
+        for (int i = 0; i < m_convertIndexes.length; i++) {
+            m_convertIndexes[i] = convert.get(i);
+        }
+    }
+
+    /**
+     * Create a plan for a replacement model (e.g. a new version of the model
+     * file) with the same row formats and horizon as this one
+     *
+     * @param model the new model
+     * @return the plan for the new model
+     */
+    public RNNForecastingPlan forModel(RNNForecastingModel model) {
+        return new RNNForecastingPlan(model, m_inputMeta, m_outputMeta, m_horizon);
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (name.equalsIgnoreCase(names[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the index in the model header of the first target
+     *
+     * @return the class index
+     */
+    public int getClassIndex() {
+        return m_classIndex;
+    }
+
+    /**
+     * Get the index in the rows of each target
+     *
+     * @return the target indexes (-1 for a target that isn't in the rows)
+     */
+    public int[] getTargetIndexes() {
+        return m_targetIndexes.clone();
+    }
+
+    /**
+     * Get the index in the rows of the target with the given position
+     *
+     * @param target the position of the target in the model's target list
+     * @return the index of the target in the rows, or -1 if it isn't there
+     */
+    public int getTargetIndex(int target) {
+        return m_targetIndexes[target];
+    }
+
+    /**
+     * Get the number of targets
+     *
+     * @return the number of targets
+     */
+    public int numTargets() {
+        return m_targetIndexes.length;
+    }
+
+    /**
+     * Get the index in the rows of the time stamp field
+     *
+     * @return the index, or -1 if there is no time stamp
+     */
+    public int getDateIndex() {
+        return m_dateIndex;
+    }
+
+    /**
+     * Get the index in the model header of the time stamp attribute
+     *
+     * @return the index, or -1 if there is no time stamp
+     */
+    public int getModelDateIndex() {
+        return m_modelDateIndex;
+    }
+
+    /**
+     * Convert the fields of an incoming row that is passed on (in place) to the
+     * types they have in the output rows
+     *
+     * @param row the row, which may be longer than the incoming row format
+     * @return the row
+     * @throws KettleValueException if a value can't be converted
+     */
+    public Object[] convertPassThrough(Object[] row) throws KettleValueException {
+        for (int i : m_convertIndexes) {
+            ValueMetaInterface in = m_inputMeta.getValueMeta(i);
+            switch (m_outputMeta.getValueMeta(i).getType()) {
+                case ValueMetaInterface.TYPE_NUMBER:
+                    row[i] = in.getNumber(row[i]);
+                    break;
+                case ValueMetaInterface.TYPE_DATE:
+                    // string time stamps are in the model's date format (as
+                    // they are read for the model), not the field's mask
+                    row[i] = in.isString() ? parseDate(in.getString(row[i])) : in.getDate(row[i]);
+                    break;
+                default:
+                    row[i] = in.convertToNormalStorageType(row[i]);
+                    break;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Parse a time stamp with the date format of the model's time stamp
+     * attribute
+     *
+     * @param value the time stamp
+     * @return the date, or null if the value is empty or can't be parsed (it
+     *         is a missing value for the model too)
+     */
+    private Date parseDate(String value) {
+        if (value == null || value.length() == 0) {
+            return null;
+        }
+        ParsePosition position = new ParsePosition(0);
+        Date date = m_dateFormat.get().parse(value, position);
+        return position.getIndex() == 0 ? null : date;
+    }
+
+    /**
+     * Get the number of fields in an output row
+     *
+     * @return the output row size
+     */
+    public int getOutputSize() {
+        return m_outputSize;
+    }
+
+    /**
+     * Get the number of steps to forecast
+     *
+     * @return the horizon
+     */
+    public int getHorizon() {
+        return m_horizon;
+    }
+}
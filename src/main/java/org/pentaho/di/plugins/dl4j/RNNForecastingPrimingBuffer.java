@@ -0,0 +1,87 @@
+package org.pentaho.di.plugins.dl4j;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Fixed size ring buffer of converted (attribute value) rows used to prime the
+ * forecaster. The forecaster only needs as many rows as the largest lag it
+ * uses, so only the most recent rows are kept and older ones are overwritten.
+ * The slots are allocated once, so memory use is constant no matter how many
+ * rows pass through the step.
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingPrimingBuffer {
+
+    /** The slots, each holding the attribute values of one row */
+    private final double[][] m_rows;
+
+    /** Index of the slot that the next row goes in */
+    private int m_next;
+
+    /** Number of slots in use */
+    private int m_size;
+
+    /**
+     * Creates a new <code>RNNForecastingPrimingBuffer</code>
+     *
+     * @param capacity the number of rows to keep
+     * @param numAttributes the number of attributes in each row
+     */
+    public RNNForecastingPrimingBuffer(int capacity, int numAttributes) {
+        m_rows = new double[Math.max(capacity, 1)][numAttributes];
+    }
+
+    /**
+     * Get the slot for the next row, overwriting the oldest row if the buffer
+     * is full. The caller fills in the values.
+     *
+     * @return the slot to fill in
+     */
+    public double[] nextSlot() {
+        double[] slot = m_rows[m_next];
+        m_next = (m_next + 1) % m_rows.length;
+        if (m_size < m_rows.length) {
+            m_size++;
+        }
+        return slot;
+    }
+
+    /**
+     * Get the number of rows held
+     *
+     * @return the number of rows
+     */
+    public int size() {
+        return m_size;
+    }
+
+    /**
+     * Get the maximum number of rows held
+     *
+     * @return the capacity
+     */
+    public int capacity() {
+        return m_rows.length;
+    }
+
+    /**
+     * Copy the rows held (oldest first) into a new set of instances
+     *
+     * @param header the header for the instances
+     * @return the instances
+     */
+    public Instances toInstances(Instances header) {
+        Instances result = new Instances(header, m_size);
+        int first = (m_next - m_size + m_rows.length) % m_rows.length;
+        for (int i = 0; i < m_size; i++) {
+            Instance inst = new DenseInstance(1.0, m_rows[(first + i) % m_rows.length].clone());
+            inst.setDataset(result);
+            result.add(inst);
+        }
+        return result;
+    }
+}
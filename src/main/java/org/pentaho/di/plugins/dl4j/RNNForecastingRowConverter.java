@@ -0,0 +1,307 @@
+package org.pentaho.di.plugins.dl4j;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Converts incoming Kettle rows to the attribute values of a model's Instances
+ * header. The attribute-to-field mapping is compiled once into one converter
+ * per attribute, chosen from the attribute type and the Kettle field's type and
+ * storage. Numeric, integer, boolean and big number fields in normal storage,
+ * and string fields mapped to nominal attributes, are read directly from the
+ * row without boxing through the value meta or catching exceptions, as are
+ * date fields mapped to date attributes (the epoch millis are used as is,
+ * rather than formatting and re-parsing the date). Labels of nominal
+ * attributes, and of string attributes if they are dictionary encoded, are
+ * looked up in the step's {@link RNNForecastingDictionary}s. Anything else
+ * (binary string storage, string attributes that aren't encoded) goes through
+ * the general (slower) conversion.
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingRowConverter {
+
+    /** One converter per attribute */
+    private final AttributeConverter[] m_converters;
+
+    /**
+     * Whether values are set on the header's attributes (string attributes
+     * that aren't encoded), which ties the converter to that header
+     */
+    private final boolean m_setsHeader;
+
+    /**
+     * Compile the converters for a header and incoming row format
+     *
+     * @param header the header of the model
+     * @param inputMeta the meta data for the incoming rows
+     * @param mappingIndexes the attribute-to-field mapping (see
+     *          {@link RNNForecastingData#findMappings})
+     * @param dictionaries the dictionary for each nominal attribute, and each
+     *          string attribute that is to be encoded (null for others)
+     */
+    public RNNForecastingRowConverter(Instances header, RowMetaInterface inputMeta,
+                                      int[] mappingIndexes, RNNForecastingDictionary[] dictionaries) {
+        m_converters = new AttributeConverter[header.numAttributes()];
+        boolean setsHeader = false;
+        for (int i = 0; i < m_converters.length; i++) {
+            m_converters[i] = compile(header.attribute(i), inputMeta, mappingIndexes[i],
+                    dictionaries[i]);
+            setsHeader |= mappingIndexes[i] >= 0 && header.attribute(i).isString()
+                    && dictionaries[i] == null;
+        }
+        m_setsHeader = setsHeader;
+    }
+
+    /**
+     * Check whether the converter can be used for any header with the same
+     * structure as the one it was compiled for (copies of the model's header,
+     * e.g. those of the model's replicas)
+     *
+     * @return false if values are set on the attributes of the header the
+     *         converter was compiled for
+     */
+    public boolean isShareable() {
+        return !m_setsHeader;
+    }
+
+    /**
+     * Get the number of attributes that rows are converted to
+     *
+     * @return the number of attributes
+     */
+    public int numAttributes() {
+        return m_converters.length;
+    }
+
+    /**
+     * Convert a row
+     *
+     * @param row the incoming row
+     * @param vals the array to fill in with the attribute values
+     */
+    public void convert(Object[] row, double[] vals) {
+        for (int i = 0; i < m_converters.length; i++) {
+            vals[i] = m_converters[i].convert(row);
+        }
+    }
+
+    private static AttributeConverter compile(Attribute att, RowMetaInterface inputMeta,
+                                              int fieldIndex, RNNForecastingDictionary dictionary) {
+        if (fieldIndex < 0) {
+            return new MissingConverter();
+        }
+
+        ValueMetaInterface field = inputMeta.getValueMeta(fieldIndex);
+        if (field.getStorageType() == ValueMetaInterface.STORAGE_TYPE_NORMAL) {
+            if (att.type() == Attribute.NUMERIC) {
+                switch (field.getType()) {
+                    case ValueMetaInterface.TYPE_NUMBER:
+                        return new NumberConverter(fieldIndex);
+                    case ValueMetaInterface.TYPE_INTEGER:
+                        return new IntegerConverter(fieldIndex);
+                    case ValueMetaInterface.TYPE_BOOLEAN:
+                        return new BooleanConverter(fieldIndex);
+                    case ValueMetaInterface.TYPE_BIGNUMBER:
+                        return new BigNumberConverter(fieldIndex);
+                    default:
+                        break;
+                }
+            } else if (att.type() == Attribute.DATE
+                    && field.getType() == ValueMetaInterface.TYPE_DATE) {
+                return new DateConverter(fieldIndex);
+            } else if (dictionary != null && field.getType() == ValueMetaInterface.TYPE_STRING) {
+                return new LabelConverter(fieldIndex, dictionary, att.type() == Attribute.STRING);
+            }
+        }
+        return new GeneralConverter(fieldIndex, att, field, dictionary);
+    }
+
+    /**
+     * Converts one attribute
+     */
+    private abstract static class AttributeConverter {
+        abstract double convert(Object[] row);
+    }
+
+    /**
+     * For attributes that have no matching incoming field
+     */
+    private static final class MissingConverter extends AttributeConverter {
+        double convert(Object[] row) {
+            return Utils.missingValue();
+        }
+    }
+
+    private static final class NumberConverter extends AttributeConverter {
+        private final int m_index;
+
+        NumberConverter(int index) {
+            m_index = index;
+        }
+
+        double convert(Object[] row) {
+            Object v = row[m_index];
+            return v == null ? Utils.missingValue() : ((Double) v).doubleValue();
+        }
+    }
+
+    private static final class IntegerConverter extends AttributeConverter {
+        private final int m_index;
+
+        IntegerConverter(int index) {
+            m_index = index;
+        }
+
+        double convert(Object[] row) {
+            Object v = row[m_index];
+            return v == null ? Utils.missingValue() : ((Long) v).longValue();
+        }
+    }
+
+    private static final class BooleanConverter extends AttributeConverter {
+        private final int m_index;
+
+        BooleanConverter(int index) {
+            m_index = index;
+        }
+
+        double convert(Object[] row) {
+            Object v = row[m_index];
+            if (v == null) {
+                return Utils.missingValue();
+            }
+            return ((Boolean) v).booleanValue() ? 1.0 : 0.0;
+        }
+    }
+
+    private static final class BigNumberConverter extends AttributeConverter {
+        private final int m_index;
+
+        BigNumberConverter(int index) {
+            m_index = index;
+        }
+
+        double convert(Object[] row) {
+            Object v = row[m_index];
+            return v == null ? Utils.missingValue() : ((BigDecimal) v).doubleValue();
+        }
+    }
+
+    private static final class DateConverter extends AttributeConverter {
+        private final int m_index;
+
+        DateConverter(int index) {
+            m_index = index;
+        }
+
+        double convert(Object[] row) {
+            Object v = row[m_index];
+            return v == null ? Utils.missingValue() : ((Date) v).getTime();
+        }
+    }
+
+    /**
+     * Looks labels up in a dictionary. Labels of nominal attributes that the
+     * model wasn't trained on become missing values; labels of (encoded)
+     * string attributes are added to the dictionary.
+     */
+    private static final class LabelConverter extends AttributeConverter {
+        private final int m_index;
+        private final RNNForecastingDictionary m_dictionary;
+        private final boolean m_add;
+
+        LabelConverter(int index, RNNForecastingDictionary dictionary, boolean add) {
+            m_index = index;
+            m_dictionary = dictionary;
+            m_add = add;
+        }
+
+        double convert(Object[] row) {
+            String s = (String) row[m_index];
+            if (s == null || s.length() == 0) {
+                return Utils.missingValue();
+            }
+            int index = m_add ? m_dictionary.encode(s) : m_dictionary.indexOf(s);
+            return index < 0 ? Utils.missingValue() : index;
+        }
+    }
+
+    /**
+     * Converts any type of field via its value meta
+     */
+    private static final class GeneralConverter extends AttributeConverter {
+        private final int m_index;
+        private final Attribute m_att;
+        private final ValueMetaInterface m_field;
+        private final RNNForecastingDictionary m_dictionary;
+
+        GeneralConverter(int index, Attribute att, ValueMetaInterface field,
+                         RNNForecastingDictionary dictionary) {
+            m_index = index;
+            m_att = att;
+            m_field = field;
+            m_dictionary = dictionary;
+        }
+
+        double convert(Object[] row) {
+            try {
+                Object inputVal = row[m_index];
+                int fieldType = m_field.getType();
+
+                // Check for missing value (null or empty string)
+                if (m_field.isNull(inputVal)) {
+                    return Utils.missingValue();
+                }
+
+                switch (m_att.type()) {
+                    case Attribute.DATE: {
+                        if (fieldType == ValueMetaInterface.TYPE_DATE) {
+                            return m_field.getDate(inputVal).getTime();
+                        }
+                        String s = m_field.getString(inputVal);
+                        return m_att.parseDate(s);
+                    }
+                    case Attribute.NUMERIC: {
+                        if (fieldType == ValueMetaInterface.TYPE_BOOLEAN) {
+                            Boolean b = m_field.getBoolean(inputVal);
+                            return b.booleanValue() ? 1.0 : 0.0;
+                        } else if (fieldType == ValueMetaInterface.TYPE_INTEGER) {
+                            Long t = m_field.getInteger(inputVal);
+                            return t.longValue();
+                        } else {
+                            Double n = m_field.getNumber(inputVal);
+                            return n.doubleValue();
+                        }
+                    }
+                    case Attribute.NOMINAL: {
+                        String s = m_field.getString(inputVal);
+                        int index = m_dictionary.indexOf(s);
+                        return index < 0 ? Utils.missingValue() : index;
+                    }
+                    case Attribute.STRING: {
+                        String s = m_field.getString(inputVal);
+                        if (m_dictionary != null) {
+                            return m_dictionary.encode(s);
+                        }
+                        // Set the attribute in the header to contain just this string value
+                        m_att.setStringValue(s);
+                        return 0.0;
+                    }
+                    default:
+                        return Utils.missingValue();
+                }
+            } catch (Exception e) {
+                return Utils.missingValue();
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package org.pentaho.di.plugins.dl4j;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * Holds rows that have to be kept until the forecast is made, in the compact
+ * binary form written by {@link RowMetaInterface#writeData}. Rows are kept in
+ * memory until there are more than a given number of them, or they take up
+ * more than a given number of bytes, after which all rows go to a temporary
+ * file. The file is memory-mapped (in chunks) to replay the rows.
+ *
+ * Rows must all be added before they are replayed.
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingRowSpool {
+
+    /** Size of the chunks of the spool file that are mapped at a time */
+    private static final long MAP_CHUNK = 64L * 1024 * 1024;
+
+    /** The format of the rows */
+    private final RowMetaInterface m_rowMeta;
+
+    /** Spill to disk after this many rows (if positive) */
+    private final long m_maxRows;
+
+    /** Spill to disk above this many bytes (if positive) */
+    private final long m_maxBytes;
+
+    /** The rows held in memory, and the stream that writes them */
+    private ByteArrayOutputStream m_memory = new ByteArrayOutputStream();
+    private DataOutputStream m_out = new DataOutputStream(m_memory);
+
+    /** The spool file, once the rows have been spilled to disk */
+    private File m_file;
+
+    /** Number of rows held */
+    private long m_rows;
+
+    /** Number of rows and bytes written to the spool file */
+    private long m_spilledRows;
+    private long m_spilledBytes;
+
+    /**
+     * Creates a new <code>RNNForecastingRowSpool</code>
+     *
+     * @param rowMeta the format of the rows
+     * @param maxRows the number of rows to keep in memory (0 for no limit)
+     * @param maxBytes the number of bytes to keep in memory (0 for no limit)
+     */
+    public RNNForecastingRowSpool(RowMetaInterface rowMeta, long maxRows, long maxBytes) {
+        m_rowMeta = rowMeta;
+        m_maxRows = maxRows;
+        m_maxBytes = maxBytes;
+    }
+
+    /**
+     * Add a row to the spool
+     *
+     * @param row the row
+     * @throws KettleException if the row can't be written
+     */
+    public void add(Object[] row) throws KettleException {
+        m_rowMeta.writeData(m_out, row);
+        m_rows++;
+
+        if (m_file == null) {
+            if ((m_maxRows > 0 && m_rows > m_maxRows)
+                    || (m_maxBytes > 0 && m_memory.size() > m_maxBytes)) {
+                spill();
+            }
+        } else {
+            m_spilledRows++;
+        }
+    }
+
+    /**
+     * Move the rows held in memory to the spool file, which all further rows
+     * are written to
+     */
+    private void spill() throws KettleException {
+        try {
+            m_file = File.createTempFile("rnnforecasting", ".spool"); //$NON-NLS-1$ //$NON-NLS-2$
+            m_file.deleteOnExit();
+            m_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_file), 64 * 1024));
+            m_memory.writeTo(m_out);
+            m_memory = null;
+            m_spilledRows = m_rows;
+        } catch (IOException ex) {
+            throw new KettleException(ex);
+        }
+    }
+
+    /**
+     * Get the number of rows held
+     *
+     * @return the number of rows
+     */
+    public long size() {
+        return m_rows;
+    }
+
+    /**
+     * Get the number of rows that have been written to disk
+     *
+     * @return the number of rows spilled
+     */
+    public long getSpilledRows() {
+        return m_spilledRows;
+    }
+
+    /**
+     * Get the number of bytes that have been written to disk. Only known once
+     * the rows are being replayed.
+     *
+     * @return the number of bytes spilled
+     */
+    public long getSpilledBytes() {
+        return m_spilledBytes;
+    }
+
+    /**
+     * Get a reader for the rows, in the order they were added. No more rows
+     * can be added once the rows have been replayed.
+     *
+     * @return the reader
+     * @throws KettleException if the spool file can't be read
+     */
+    public Reader replay() throws KettleException {
+        try {
+            m_out.flush();
+            if (m_file == null) {
+                return new Reader(new ByteArrayInputStream(m_memory.toByteArray()));
+            }
+            m_spilledBytes = m_file.length();
+            return new Reader(new MappedInputStream(m_file));
+        } catch (IOException ex) {
+            throw new KettleException(ex);
+        }
+    }
+
+    /**
+     * Release the rows and delete the spool file (if any)
+     */
+    public void close() {
+        try {
+            m_out.close();
+        } catch (IOException ex) {
+            // nothing more to be done
+        }
+        m_memory = null;
+        if (m_file != null) {
+            m_file.delete();
+            m_file = null;
+        }
+    }
+
+    /**
+     * Reads the rows back
+     */
+    public class Reader {
+        private final DataInputStream m_in;
+        private long m_read;
+
+        Reader(InputStream in) {
+            m_in = new DataInputStream(in);
+        }
+
+        /**
+         * Get the next row
+         *
+         * @return the row, or null if all rows have been read
+         * @throws KettleException if the row can't be read
+         */
+        public Object[] next() throws KettleException {
+            if (m_read == m_rows) {
+                close();
+                return null;
+            }
+            try {
+                Object[] row = m_rowMeta.readData(m_in);
+                m_read++;
+                return row;
+            } catch (Exception ex) {
+                throw new KettleException(ex);
+            }
+        }
+
+        /**
+         * Stop reading
+         */
+        public void close() {
+            try {
+                m_in.close();
+            } catch (IOException ex) {
+                // nothing more to be done
+            }
+        }
+    }
+
+    /**
+     * Reads a file by mapping successive chunks of it into memory
+     */
+    private static class MappedInputStream extends InputStream {
+        private final RandomAccessFile m_raf;
+        private final FileChannel m_channel;
+        private final long m_size;
+        private long m_position;
+        private MappedByteBuffer m_buffer;
+
+        MappedInputStream(File file) throws IOException {
+            m_raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+            m_channel = m_raf.getChannel();
+            m_size = m_channel.size();
+        }
+
+        /**
+         * Map the next chunk if the current one has been read
+         *
+         * @return false at the end of the file
+         */
+        private boolean ensure() throws IOException {
+            if (m_buffer != null && m_buffer.hasRemaining()) {
+                return true;
+            }
+            if (m_position >= m_size) {
+                return false;
+            }
+            long length = Math.min(MAP_CHUNK, m_size - m_position);
+            m_buffer = m_channel.map(FileChannel.MapMode.READ_ONLY, m_position, length);
+            m_position += length;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ensure() ? m_buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensure()) {
+                return -1;
+            }
+            int n = Math.min(len, m_buffer.remaining());
+            m_buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            m_buffer = null;
+            m_channel.close();
+            m_raf.close();
+        }
+    }
+}
@@ -0,0 +1,512 @@
+package org.pentaho.di.plugins.dl4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a value (e.g. the RNN state) per series key, for more keys than fit on
+ * the heap. The most recently used values are held on the heap, in a least
+ * recently used cache of fixed size. Values that drop out of the cache are
+ * serialized and appended to a local temporary file in batches, and read back
+ * (again in batches, in file order, via {@link #prefetch}) when they are
+ * needed. Values must be serializable.
+ *
+ * The file is only appended to: a value that is evicted again after being
+ * read back is written again, leaving the old copy behind as dead space. Once
+ * there are more dead bytes in the file than live ones, the live values are
+ * copied to a new file and the old one is deleted.
+ *
+ * If evicted values can't be written (e.g. the disk is full), they stay on the
+ * heap and the failure is thrown from the call that evicted them, so the heap
+ * doesn't grow unnoticed past its capacity.
+ *
+ * The methods are synchronized, as series are forecast in parallel.
+ *
+ * @param <V> the type of the values
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingStateStore<V> {
+
+    /** Number of evicted values written to the file at a time */
+    private static final int WRITE_BATCH = 256;
+
+    /** Number of values held on the heap */
+    private final int m_capacity;
+
+    /** The values held on the heap, least recently used first */
+    private final LinkedHashMap<String, V> m_hot;
+
+    /** Values evicted from the heap that haven't been written yet */
+    private final Map<String, V> m_pending = new LinkedHashMap<String, V>();
+
+    /** Position and length in the file of each value that has been written */
+    private final Map<String, long[]> m_index = new HashMap<String, long[]>();
+
+    /** The file, and the channel used to read and write it */
+    private File m_file;
+    private RandomAccessFile m_raf;
+    private FileChannel m_channel;
+
+    /** Statistics */
+    private long m_hits;
+    private long m_misses;
+    private long m_evictions;
+    private long m_bytesWritten;
+    private long m_writeFailures;
+    private long m_compactions;
+
+    /** Number of bytes in the file that belong to values in the index */
+    private long m_liveBytes;
+
+    /** Failure to write evicted values, to be thrown to the caller that evicted them */
+    private IOException m_writeError;
+
+    /**
+     * Creates a new <code>RNNForecastingStateStore</code>
+     *
+     * @param capacity the number of values to hold on the heap
+     */
+    public RNNForecastingStateStore(int capacity) {
+        m_capacity = Math.max(capacity, 1);
+        m_hot = new LinkedHashMap<String, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                if (size() > m_capacity) {
+                    evict(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the value of a key, reading it back from the file if it isn't on the
+     * heap
+     *
+     * @param key the key
+     * @return the value, or null if the key has no value
+     * @throws IOException if the value can't be read back
+     */
+    public synchronized V get(String key) throws IOException {
+        V value = m_hot.get(key);
+        if (value != null || m_hot.containsKey(key)) {
+            m_hits++;
+            return value;
+        }
+        if (!m_pending.containsKey(key) && !m_index.containsKey(key)) {
+            return null;
+        }
+
+        m_misses++;
+        value = take(key);
+        m_hot.put(key, value);
+        checkWrite();
+        return value;
+    }
+
+    /**
+     * Set the value of a key
+     *
+     * @param key the key
+     * @param value the value
+     * @throws IOException if values evicted to make room can't be written
+     */
+    public synchronized void put(String key, V value) throws IOException {
+        m_pending.remove(key);
+        unindex(key);
+        m_hot.put(key, value);
+        checkWrite();
+    }
+
+    /**
+     * Remove the value of a key
+     *
+     * @param key the key
+     * @return the value, or null if the key had no value
+     * @throws IOException if the value can't be read back
+     */
+    public synchronized V remove(String key) throws IOException {
+        if (m_hot.containsKey(key)) {
+            return m_hot.remove(key);
+        }
+        if (!m_pending.containsKey(key) && !m_index.containsKey(key)) {
+            return null;
+        }
+        return take(key);
+    }
+
+    /**
+     * Check whether a key has a value
+     *
+     * @param key the key
+     * @return true if the key has a value
+     */
+    public synchronized boolean containsKey(String key) {
+        return m_hot.containsKey(key) || m_pending.containsKey(key) || m_index.containsKey(key);
+    }
+
+    /**
+     * Get the number of keys with a value
+     *
+     * @return the number of keys
+     */
+    public synchronized int size() {
+        return m_hot.size() + m_pending.size() + m_index.size();
+    }
+
+    /**
+     * Bring the values of the given keys onto the heap (as far as they fit),
+     * reading those that are in the file in one pass, in file order
+     *
+     * @param keys the keys that are about to be used
+     * @throws IOException if a value can't be read back, or values evicted to
+     *           make room can't be written
+     */
+    public synchronized void prefetch(Collection<String> keys) throws IOException {
+        List<Map.Entry<String, long[]>> cold = new ArrayList<Map.Entry<String, long[]>>();
+        int fetched = 0;
+        for (String key : keys) {
+            if (fetched >= m_capacity) {
+                break;
+            }
+            if (m_pending.containsKey(key)) {
+                m_hot.put(key, m_pending.remove(key));
+                fetched++;
+            } else if (m_index.containsKey(key)) {
+                cold.add(new AbstractMap.SimpleEntry<String, long[]>(key, m_index.get(key)));
+                fetched++;
+            }
+        }
+
+        sortByPosition(cold);
+        for (Map.Entry<String, long[]> entry : cold) {
+            m_misses++;
+            unindex(entry.getKey());
+            m_hot.put(entry.getKey(), read(entry.getValue()));
+        }
+        checkWrite();
+    }
+
+    /**
+     * Visit every key and value, without changing which values are held on
+     * the heap
+     *
+     * @param visitor the visitor
+     * @throws Exception if a value can't be read back, or the visitor fails
+     */
+    public synchronized void visit(Visitor<V> visitor) throws Exception {
+        for (Map.Entry<String, V> entry : m_hot.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, V> entry : m_pending.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue());
+        }
+        List<Map.Entry<String, long[]>> cold = new ArrayList<Map.Entry<String, long[]>>(m_index.entrySet());
+        sortByPosition(cold);
+        for (Map.Entry<String, long[]> entry : cold) {
+            visitor.visit(entry.getKey(), read(entry.getValue()));
+        }
+    }
+
+    /**
+     * Visits the keys and values of a store
+     *
+     * @param <V> the type of the values
+     */
+    public interface Visitor<V> {
+        void visit(String key, V value) throws Exception;
+    }
+
+    /**
+     * Remove all values and delete the file
+     */
+    public synchronized void clear() {
+        m_hot.clear();
+        m_pending.clear();
+        m_index.clear();
+        close();
+    }
+
+    /**
+     * Delete the file. Values that were only held in the file are lost.
+     */
+    public synchronized void close() {
+        if (m_channel != null) {
+            try {
+                m_channel.close();
+                m_raf.close();
+            } catch (IOException ex) {
+                // nothing more to be done
+            }
+            m_file.delete();
+            m_channel = null;
+            m_raf = null;
+            m_file = null;
+        }
+        m_index.clear();
+        m_liveBytes = 0;
+        m_writeError = null;
+    }
+
+    /**
+     * Get the number of lookups of values held on the heap
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return m_hits;
+    }
+
+    /**
+     * Get the number of lookups of values that had to be read back
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return m_misses;
+    }
+
+    /**
+     * Get the fraction of lookups that found the value on the heap
+     *
+     * @return the hit rate (0 if there have been no lookups)
+     */
+    public synchronized double getHitRate() {
+        long lookups = m_hits + m_misses;
+        return lookups == 0 ? 0 : (double) m_hits / lookups;
+    }
+
+    /**
+     * Get the number of values evicted from the heap
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return m_evictions;
+    }
+
+    /**
+     * Get the number of bytes written to the file
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getBytesWritten() {
+        return m_bytesWritten;
+    }
+
+    /**
+     * Get the number of times evicted values couldn't be written to the file
+     *
+     * @return the number of failed writes
+     */
+    public synchronized long getWriteFailures() {
+        return m_writeFailures;
+    }
+
+    /**
+     * Get the number of times the file was compacted
+     *
+     * @return the number of compactions
+     */
+    public synchronized long getCompactions() {
+        return m_compactions;
+    }
+
+    private void evict(String key, V value) {
+        m_evictions++;
+        m_pending.put(key, value);
+        if (m_pending.size() >= WRITE_BATCH) {
+            try {
+                flush();
+            } catch (IOException ex) {
+                // called from inside the heap map, so can't throw: the values
+                // stay pending, and the failure is thrown by the public method
+                // that caused the eviction
+                m_writeFailures++;
+                m_writeError = ex;
+            }
+        }
+    }
+
+    /**
+     * Throw the failure to write evicted values, if there was one
+     */
+    private void checkWrite() throws IOException {
+        if (m_writeError != null) {
+            IOException ex = m_writeError;
+            m_writeError = null;
+            throw ex;
+        }
+    }
+
+    /**
+     * Remove a key from the index, so that its copy in the file is dead space
+     */
+    private long[] unindex(String key) {
+        long[] location = m_index.remove(key);
+        if (location != null) {
+            m_liveBytes -= location[1];
+        }
+        return location;
+    }
+
+    /**
+     * Write the evicted values to the end of the file, in one write
+     */
+    private void flush() throws IOException {
+        if (m_channel == null) {
+            m_file = File.createTempFile("rnnforecasting", ".state"); //$NON-NLS-1$ //$NON-NLS-2$
+            m_file.deleteOnExit();
+            m_raf = new RandomAccessFile(m_file, "rw"); //$NON-NLS-1$
+            m_channel = m_raf.getChannel();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long position = m_channel.size();
+        List<Object[]> written = new ArrayList<Object[]>(m_pending.size());
+        for (Map.Entry<String, V> entry : m_pending.entrySet()) {
+            int start = bytes.size();
+            ObjectOutputStream os = new ObjectOutputStream(bytes);
+            os.writeObject(entry.getValue());
+            os.close();
+            written.add(new Object[] { entry.getKey(),
+                    new long[] { position + start, bytes.size() - start } });
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            m_channel.write(buffer, position + buffer.position());
+        }
+        m_bytesWritten += bytes.size();
+
+        for (Object[] entry : written) {
+            long[] location = (long[]) entry[1];
+            m_index.put((String) entry[0], location);
+            m_liveBytes += location[1];
+        }
+        m_pending.clear();
+
+        if (m_channel.size() - m_liveBytes > m_liveBytes) {
+            try {
+                compact();
+            } catch (IOException ex) {
+                // the values were written, and the old file is still complete;
+                // compacting is tried again after the next write
+            }
+        }
+    }
+
+    /**
+     * Copy the values in the index to a new file, in file order, and delete
+     * the old file with its dead space. If the copy fails, the old file is
+     * kept. The locations in the index are updated in place, as callers may
+     * hold on to them (e.g. a prefetch that evicts values).
+     */
+    private void compact() throws IOException {
+        File file = File.createTempFile("rnnforecasting", ".state"); //$NON-NLS-1$ //$NON-NLS-2$
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+        FileChannel channel = raf.getChannel();
+        List<Map.Entry<String, long[]>> live = new ArrayList<Map.Entry<String, long[]>>(m_index.entrySet());
+        sortByPosition(live);
+        long[] positions = new long[live.size()];
+        boolean done = false;
+        try {
+            long position = 0;
+            for (int i = 0; i < positions.length; i++) {
+                long[] location = live.get(i).getValue();
+                long copied = 0;
+                while (copied < location[1]) {
+                    long n = m_channel.transferTo(location[0] + copied, location[1] - copied, channel);
+                    if (n <= 0) {
+                        throw new IOException("Unexpected end of state store file"); //$NON-NLS-1$
+                    }
+                    copied += n;
+                }
+                positions[i] = position;
+                position += location[1];
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                channel.close();
+                raf.close();
+                file.delete();
+            }
+        }
+
+        File oldFile = m_file;
+        RandomAccessFile oldRaf = m_raf;
+        FileChannel oldChannel = m_channel;
+        m_file = file;
+        m_raf = raf;
+        m_channel = channel;
+        try {
+            oldChannel.close();
+            oldRaf.close();
+        } catch (IOException ex) {
+            // the values are all in the new file
+        }
+        oldFile.delete();
+        for (int i = 0; i < positions.length; i++) {
+            live.get(i).getValue()[0] = positions[i];
+        }
+        m_compactions++;
+    }
+
+    /**
+     * Take a value out of the pending values or the file
+     */
+    private V take(String key) throws IOException {
+        if (m_pending.containsKey(key)) {
+            return m_pending.remove(key);
+        }
+        return read(unindex(key));
+    }
+
+    @SuppressWarnings("unchecked")
+    private V read(long[] location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) location[1]);
+        while (buffer.hasRemaining()) {
+            if (m_channel.read(buffer, location[0] + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of state store file"); //$NON-NLS-1$
+            }
+        }
+        ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(buffer.array()));
+        try {
+            return (V) is.readObject();
+        } catch (ClassNotFoundException ex) {
+            throw new IOException(ex);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void sortByPosition(List<Map.Entry<String, long[]>> entries) {
+        Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+            public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                return Long.compare(a.getValue()[0], b.getValue()[0]);
+            }
+        });
+    }
+}
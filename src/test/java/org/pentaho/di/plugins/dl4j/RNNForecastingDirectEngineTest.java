@@ -0,0 +1,145 @@
+package org.pentaho.di.plugins.dl4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.evaluation.NumericPrediction;
+import weka.classifiers.timeseries.WekaForecaster;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+/**
+ * Checks that the direct engine forecasts what the Weka forecaster does, on a
+ * small RNN model trained on a synthetic series. The RNN classifier used as
+ * the base forecaster can be changed with the <code>rnn.classifier</code>
+ * system property.
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingDirectEngineTest {
+
+    /** Base forecaster used unless the rnn.classifier property names another */
+    private static final String RNN_CLASSIFIER = "weka.classifiers.functions.RNNForecaster"; //$NON-NLS-1$
+
+    /** Length of the synthetic series */
+    private static final int ROWS = 120;
+
+    /** Number of steps forecast in each comparison */
+    private static final int STEPS = 12;
+
+    private WekaForecaster m_forecaster;
+    private RNNForecastingModel m_model;
+    private Instances m_series;
+
+    @Before
+    public void setUp() throws Exception {
+        ArrayList<Attribute> atts = new ArrayList<Attribute>();
+        atts.add(new Attribute("y")); //$NON-NLS-1$
+        m_series = new Instances("series", atts, ROWS); //$NON-NLS-1$
+        for (int t = 0; t < ROWS; t++) {
+            m_series.add(new DenseInstance(1, new double[] { 10 + 3 * Math.sin(0.3 * t) + 0.05 * t }));
+        }
+
+        m_forecaster = new WekaForecaster();
+        m_forecaster.setFieldsToForecast("y"); //$NON-NLS-1$
+        m_forecaster.setBaseForecaster(AbstractClassifier.forName(
+                System.getProperty("rnn.classifier", RNN_CLASSIFIER), new String[0])); //$NON-NLS-1$
+        m_forecaster.getTSLagMaker().setMinLag(1);
+        m_forecaster.getTSLagMaker().setMaxLag(4);
+        m_forecaster.buildForecaster(m_series);
+
+        m_model = new RNNForecastingClassifier(m_forecaster);
+        m_model.setHeader(new Instances(m_series, 0));
+    }
+
+    @Test
+    public void testForecastFromClearedState() throws Exception {
+        RNNForecastingDirectEngine engine = calibrate();
+        Instances window = new Instances(m_series, 40, 30);
+
+        m_forecaster.clearPreviousState();
+        m_forecaster.primeForecaster(window);
+        List<List<NumericPrediction>> expected = m_forecaster.forecast(STEPS);
+
+        engine.clearState();
+        assertTrue("the engine declined the window", engine.prime(window)); //$NON-NLS-1$
+        assertForecast(expected, engine);
+    }
+
+    @Test
+    public void testForecastCarryingStateAcrossWindows() throws Exception {
+        RNNForecastingDirectEngine engine = calibrate();
+        Instances first = new Instances(m_series, 30, 25);
+        Instances second = new Instances(m_series, 55, 25);
+
+        m_forecaster.clearPreviousState();
+        m_forecaster.primeForecaster(first);
+        m_forecaster.primeForecaster(second);
+        List<List<NumericPrediction>> expected = m_forecaster.forecast(STEPS);
+
+        engine.clearState();
+        assertTrue("the engine declined the first window", engine.prime(first)); //$NON-NLS-1$
+        assertTrue("the engine declined the second window", engine.prime(second)); //$NON-NLS-1$
+        assertForecast(expected, engine);
+    }
+
+    @Test
+    public void testForecastPrimingOnlyNewRows() throws Exception {
+        RNNForecastingDirectEngine engine = calibrate();
+        Instances window = new Instances(m_series, 30, 25);
+        int fresh = 6;
+
+        m_forecaster.clearPreviousState();
+        m_forecaster.primeForecaster(window);
+        for (int t = 55; t < 55 + fresh; t++) {
+            m_forecaster.primeForecasterIncremental(m_series.instance(t));
+        }
+        List<List<NumericPrediction>> expected = m_forecaster.forecast(STEPS);
+
+        // the buffer only keeps as many rows as a streaming window would
+        RNNForecastingLagBuffer rows = engine.newBuffer(window.numInstances());
+        for (int t = 30; t < 55; t++) {
+            rows.push(m_series.instance(t));
+        }
+        engine.clearState();
+        assertTrue("the engine declined the window", engine.prime(rows)); //$NON-NLS-1$
+        for (int t = 55; t < 55 + fresh; t++) {
+            rows.push(m_series.instance(t));
+        }
+        assertTrue("the engine declined the new rows", engine.prime(rows, fresh)); //$NON-NLS-1$
+        assertForecast(expected, engine);
+    }
+
+    /**
+     * Calibrate an engine on the start of the series, running the model's
+     * own network
+     */
+    private RNNForecastingDirectEngine calibrate() throws Exception {
+        Instances sample = new Instances(m_series, 0, RNNForecastingDirectEngine.minSampleRows(m_model) + 10);
+        assertTrue(RNNForecastingDirectEngine.isCalibrationSample(m_model, sample));
+        return RNNForecastingDirectEngine.calibrate(m_model, sample);
+    }
+
+    /**
+     * Forecast with the engine and compare with the forecaster's predictions
+     */
+    private void assertForecast(List<List<NumericPrediction>> expected, RNNForecastingDirectEngine engine) {
+        double[][] actual = new double[STEPS][1];
+        engine.forecastInto(STEPS, null, actual);
+        assertEquals(STEPS, expected.size());
+        for (int k = 0; k < STEPS; k++) {
+            double predicted = expected.get(k).get(0).predicted();
+            assertTrue("step " + k + ": " + actual[k][0] + " != " + predicted, //$NON-NLS-1$ //$NON-NLS-2$
+                    RNNForecastingNetworks.close(actual[k][0], predicted, RNNForecastingDirectEngine.TOLERANCE));
+        }
+    }
+}
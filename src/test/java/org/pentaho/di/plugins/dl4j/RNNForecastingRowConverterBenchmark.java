@@ -0,0 +1,102 @@
+package org.pentaho.di.plugins.dl4j;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+
+/**
+ * Measures how many rows per second are converted to attribute values when
+ * the rows of several series are converted for the headers of the model's
+ * replicas in turn: with one converter shared by all the headers (as the step
+ * does now), and with a converter compiled again whenever the header changes.
+ * Run with
+ * <code>java org.pentaho.di.plugins.dl4j.RNNForecastingRowConverterBenchmark [rows] [replicas]</code>
+ *
+ * @author Pedro Ferreira (pferreira{[at]}pentaho{[dot]}org)
+ * @version 1.0
+ */
+public class RNNForecastingRowConverterBenchmark {
+
+    /** Number of numeric fields (and attributes) in each row */
+    private static final int FIELDS = 8;
+
+    /** Rows converted for one header before moving on to the next */
+    private static final int SERIES_ROWS = 50;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int replicas = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        RowMetaInterface inputMeta = new RowMeta();
+        ArrayList<Attribute> atts = new ArrayList<Attribute>();
+        int[] mapping = new int[FIELDS];
+        for (int i = 0; i < FIELDS; i++) {
+            String name = "f" + i; //$NON-NLS-1$
+            inputMeta.addValueMeta(new ValueMeta(name, i == 0 ? ValueMetaInterface.TYPE_INTEGER
+                    : ValueMetaInterface.TYPE_NUMBER));
+            atts.add(new Attribute(name));
+            mapping[i] = i;
+        }
+        Instances header = new Instances("bench", atts, 0); //$NON-NLS-1$
+        Instances[] headers = new Instances[replicas];
+        for (int r = 0; r < replicas; r++) {
+            headers[r] = new Instances(header, 0);
+        }
+        RNNForecastingDictionary[] dictionaries = new RNNForecastingDictionary[FIELDS];
+
+        Random random = new Random(1);
+        Object[][] data = new Object[1024][FIELDS];
+        for (Object[] row : data) {
+            row[0] = Long.valueOf(random.nextInt(1000));
+            for (int i = 1; i < FIELDS; i++) {
+                row[i] = Double.valueOf(random.nextGaussian());
+            }
+        }
+
+        // warm up both paths before measuring
+        for (int pass = 0; pass < 2; pass++) {
+            boolean measure = pass == 1;
+            int n = measure ? rows : rows / 10;
+
+            double[] vals = new double[FIELDS];
+            long start = System.nanoTime();
+            RNNForecastingRowConverter shared = new RNNForecastingRowConverter(header, inputMeta,
+                    mapping, dictionaries);
+            for (int k = 0; k < n; k++) {
+                shared.convert(data[k & 1023], vals);
+            }
+            long sharedNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            RNNForecastingRowConverter converter = null;
+            Instances converterHeader = null;
+            for (int k = 0; k < n; k++) {
+                Instances current = headers[(k / SERIES_ROWS) % replicas];
+                if (converter == null || converterHeader != current) {
+                    converter = new RNNForecastingRowConverter(current, inputMeta, mapping,
+                            dictionaries);
+                    converterHeader = current;
+                }
+                converter.convert(data[k & 1023], vals);
+            }
+            long perHeaderNanos = System.nanoTime() - start;
+
+            if (measure) {
+                report("shared converter", n, sharedNanos); //$NON-NLS-1$
+                report("converter per header", n, perHeaderNanos); //$NON-NLS-1$
+            }
+        }
+    }
+
+    private static void report(String label, int rows, long nanos) {
+        System.out.println(String.format("%-22s %,12.0f rows/sec", label, //$NON-NLS-1$
+                rows / (nanos / 1e9)));
+    }
+}